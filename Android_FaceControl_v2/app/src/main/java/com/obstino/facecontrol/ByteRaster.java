@@ -0,0 +1,69 @@
+package com.obstino.facecontrol;
+
+// Byte version of IntRaster, for masks and 8 bit gray images (values 0..255, read with get()).
+// Pixel (x, y) is data[offset + y*stride + x].
+class ByteRaster {
+    byte[] data;
+    int offset;
+    int width;
+    int height;
+    int stride;
+
+    ByteRaster() {
+        data = new byte[0];
+    }
+
+    ByteRaster(int width, int height) {
+        data = new byte[width * height];
+        this.width = width;
+        this.height = height;
+        this.stride = width;
+    }
+
+    void set(byte[] data, int offset, int width, int height, int stride) {
+        this.data = data;
+        this.offset = offset;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+    }
+
+    // Makes this a packed width x height raster, reusing the buffer when it's big enough
+    void reset(int width, int height) {
+        if(data.length < width * height)
+            data = new byte[width * height];
+        offset = 0;
+        this.width = width;
+        this.height = height;
+        this.stride = width;
+    }
+
+    // Region of interest sharing this raster's data
+    ByteRaster view(int x, int y, int w, int h) {
+        ByteRaster view = new ByteRaster();
+        setView(view, x, y, w, h);
+        return view;
+    }
+
+    void setView(ByteRaster dst, int x, int y, int w, int h) {
+        if(x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height)
+            throw new IllegalArgumentException("View " + x + "," + y + " " + w + "x" + h + " outside " + width + "x" + height);
+        dst.set(data, offset + y * stride + x, w, h, stride);
+    }
+
+    int get(int x, int y) {
+        return data[offset + y * stride + x] & 0xFF;
+    }
+
+    void put(int x, int y, int value) {
+        data[offset + y * stride + x] = (byte)value;
+    }
+
+    void fill(int value) {
+        for(int y = 0; y < height; y++) {
+            int row = offset + y * stride;
+            for(int x = 0; x < width; x++)
+                data[row + x] = (byte)value;
+        }
+    }
+}
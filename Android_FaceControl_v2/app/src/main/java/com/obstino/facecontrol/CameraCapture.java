@@ -43,7 +43,9 @@ public class CameraCapture {
     private CameraCaptureSession cameraCaptureSession;
     private Size finalSize;
     private Range<Integer> finalRange;
+    private Range<Integer> idleRange;   // slowest range, used while FrameRateGovernor says idle
     private int sensorOrientationDegrees;
+    private int imageFormat;
     private ImageReader imageReader;
 
     CameraCapture(Context context) {
@@ -51,7 +53,9 @@ public class CameraCapture {
         cyclicBarrier = new CyclicBarrier(2);
     }
 
-    public boolean openCamera(ImageReader.OnImageAvailableListener onImageAvailableListener) {  // opens camera with default (kindof hardcoded) settings
+    // imageFormat is either ImageFormat.YUV_420_888 or ImageFormat.JPEG; if the camera can't output
+    // the requested format we fall back to JPEG (check getImageFormat() after opening)
+    public boolean openCamera(ImageReader.OnImageAvailableListener onImageAvailableListener, int imageFormat) {  // opens camera with default (kindof hardcoded) settings
         String[] idList;
         int frontId;
         CameraCharacteristics characteristics;
@@ -108,9 +112,15 @@ public class CameraCapture {
         if (map == null)
             return false;
 
-        Size[] outputSizes = map.getOutputSizes(ImageFormat.JPEG);
+        Size[] outputSizes = map.getOutputSizes(imageFormat);
+        if ((outputSizes == null || outputSizes.length == 0) && imageFormat != ImageFormat.JPEG) {
+            Log.i(TAG, "No output sizes for format " + imageFormat + ", falling back to JPEG");
+            imageFormat = ImageFormat.JPEG;
+            outputSizes = map.getOutputSizes(imageFormat);
+        }
         if (outputSizes == null)
             return false;
+        this.imageFormat = imageFormat;
 
         Size desiredSize = new Size(MAX_WIDTH, MAX_HEIGHT);
 
@@ -141,6 +151,14 @@ public class CameraCapture {
                 finalRange = ranges[k];
         }
 
+        idleRange = ranges[0];  // find slowest range (lowest upper bound, then lowest lower bound)
+        for(int k = 1; k < ranges.length; k++) {
+            if(ranges[k].getUpper() < idleRange.getUpper() ||
+                    (ranges[k].getUpper().equals(idleRange.getUpper()) && ranges[k].getLower() < idleRange.getLower()))
+                idleRange = ranges[k];
+        }
+        Log.i(TAG, "Idle range is " + idleRange.getLower() + " - " + idleRange.getUpper());
+
         // start camera background thread; todo: make sure we don't ever run two such threads & that we close this thread at end maybe
         mBackgroundThread = new HandlerThread("CameraThread");
         mBackgroundThread.start();
@@ -177,7 +195,7 @@ public class CameraCapture {
 
         imageReader = ImageReader.newInstance(
                 finalSize.getWidth(), finalSize.getHeight(),
-                ImageFormat.JPEG,
+                imageFormat,
                 2); // I have no idea what maxImages=2 means LoL
         imageReader.setOnImageAvailableListener(onImageAvailableListener, mBackgroundHandler);
 
@@ -228,6 +246,13 @@ public class CameraCapture {
         }
     }
 
+    // Switches the AE target fps range between the fastest and the slowest one and restarts the
+    // repeating request (frames beyond what we want are still skipped in software)
+    public synchronized void setIdleFrameRate(boolean idle) {
+        captureRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, idle ? idleRange : finalRange);
+        startRepeatCapture();
+    }
+
     public void stop() {
         try {
             cyclicBarrier.reset();
@@ -257,6 +282,10 @@ public class CameraCapture {
         return sensorOrientationDegrees;
     }
 
+    public int getImageFormat() {
+        return imageFormat;
+    }
+
     private CameraDevice.StateCallback stateCallback = new CameraDevice.StateCallback() {
         @Override
         public void onOpened(@NonNull CameraDevice camera) {
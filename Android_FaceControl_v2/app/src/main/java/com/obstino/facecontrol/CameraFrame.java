@@ -0,0 +1,418 @@
+package com.obstino.facecontrol;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.ImageFormat;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.media.Image;
+
+import com.google.mlkit.vision.common.InputImage;
+import com.google.mlkit.vision.face.Face;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// One camera frame on its way from onImageAvailable to ML Kit and the GestureRecognizer.
+// Frames stay in sensor orientation: ML Kit gets the rotation as metadata (so its contours come
+// back in upright coordinates) and upright pixels are only produced on demand, through 'mapper':
+//  -getUprightPixels() reads a small upright region (e.g. an eye) straight from the raw frame
+//  -getBitmap()/getPreviewBitmap() rotate the whole frame, only if preview/drawing asks for it
+//  -JPEG frames carry the decoded (and optionally half scaled) Bitmap
+//  -YUV_420_888 frames only carry the NV21 bytes
+// In face tracking mode ML Kit only gets a crop of the frame (setDetectionRoi), and the faces it
+// finds are offset by roiOffsetX/roiOffsetY to get back to frame coordinates.
+// Frames belong to a FramePool and all their buffers are reused from one frame to the next,
+// they're only reallocated when the frame size changes (e.g. lowResMode toggled).
+class CameraFrame {
+    int format;     // ImageFormat.JPEG or ImageFormat.YUV_420_888
+    int width;      // raw (sensor orientation) size of the data handed to ML Kit
+    int height;
+    int rotation;   // clockwise rotation (degrees) that makes the frame upright
+    byte[] nv21;
+    final FrameCoordinateMapper mapper = new FrameCoordinateMapper();
+    List<Face> faces;   // ML Kit result, set by the detect stage
+    boolean hasRoi;     // ML Kit gets the crop below instead of the whole frame
+    int roiOffsetX;     // upright position of the crop within the frame
+    int roiOffsetY;
+
+    long sensorTimestamp;   // Image.getTimestamp(), ns; differences between frames give the filters' dt
+    int session;            // FaceControlService.cameraSession the frame was captured in
+
+    // stage hand-off times (SystemClock.elapsedRealtimeNanos), see PipelineStats
+    long captureTime;
+    long detectStartTime;
+    long detectEndTime;
+    long recognizeStartTime;
+    long recognizeEndTime;
+
+    // managed by FramePool
+    final FramePool pool;
+    int refCount;
+
+    // JPEG buffers
+    private byte[] jpegBytes;
+    private final BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+    private Bitmap decodedBitmap;   // decode target (reused through inBitmap), full size
+    private Bitmap scaledBitmap;    // half size (lowResMode)
+    private Bitmap rawBitmap;       // decodedBitmap or scaledBitmap, whichever goes to ML Kit
+    private Bitmap previewBitmap;   // upright, full size (lazy)
+    private boolean previewBitmapReady;
+    private int[] rawPixels;        // scratch for getUprightPixels()
+    private final Rect rawRect = new Rect();
+    private final Rect roiRawRect = new Rect();
+    private final Rect roiUprightRect = new Rect();
+    private final Rect roiDstRect = new Rect();
+    private ByteBuffer roiNv21;     // NV21 crop (YUV)
+    private Bitmap roiBitmap;       // bitmap crop (JPEG)
+    private final Matrix matrix = new Matrix();
+    private final Canvas canvas = new Canvas();
+
+    // YUV buffers
+    private int[] argbPixels;
+    private int[] uprightPixels;
+
+    private Bitmap uprightBitmap;   // upright version of the ML Kit input (lazy)
+    private boolean uprightBitmapReady;
+
+    CameraFrame(FramePool pool) {
+        this.pool = pool;
+        decodeOptions.inMutable = true;
+    }
+
+    void retain() {
+        pool.retain(this);
+    }
+
+    void release() {
+        pool.release(this);
+    }
+
+    void setFromYuvImage(Image image, int rotation, boolean halfScale) {
+        int scaleShift = halfScale ? 1 : 0;
+        format = ImageFormat.YUV_420_888;
+        // NV21 needs even dimensions (chroma is subsampled 2x2)
+        width = (image.getWidth() >> scaleShift) & ~1;
+        height = (image.getHeight() >> scaleShift) & ~1;
+        this.rotation = rotation;
+        mapper.set(width, height, rotation);
+
+        int size = width * height * 3 / 2;
+        if(nv21 == null || nv21.length != size)
+            nv21 = new byte[size];
+        yuvImageToNv21(image, nv21, width, height, scaleShift);
+
+        uprightBitmapReady = false;
+        previewBitmapReady = false;
+    }
+
+    void setFromJpegImage(Image image, int rotation, boolean halfScale) {
+        format = ImageFormat.JPEG;
+        this.rotation = rotation;
+
+        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+        int length = buffer.remaining();
+        if(jpegBytes == null || jpegBytes.length < length)
+            jpegBytes = new byte[length];
+        buffer.get(jpegBytes, 0, length);
+
+        // decode into the previous decodedBitmap if it has the right size
+        decodeOptions.inBitmap = decodedBitmap;
+        try {
+            decodedBitmap = BitmapFactory.decodeByteArray(jpegBytes, 0, length, decodeOptions);
+        } catch (IllegalArgumentException e) {
+            // inBitmap can't be reused (size changed), decode into a new one
+            decodeOptions.inBitmap = null;
+            decodedBitmap = BitmapFactory.decodeByteArray(jpegBytes, 0, length, decodeOptions);
+        }
+
+        if(halfScale) {
+            scaledBitmap = reuseBitmap(scaledBitmap, decodedBitmap.getWidth() / 2, decodedBitmap.getHeight() / 2);
+            matrix.reset();
+            matrix.postScale(0.5f, 0.5f);
+            canvas.setBitmap(scaledBitmap);
+            canvas.drawBitmap(decodedBitmap, matrix, null);
+            canvas.setBitmap(null);
+            rawBitmap = scaledBitmap;
+        } else {
+            rawBitmap = decodedBitmap;
+        }
+
+        width = rawBitmap.getWidth();
+        height = rawBitmap.getHeight();
+        mapper.set(width, height, rotation);
+
+        uprightBitmapReady = false;
+        previewBitmapReady = false;
+    }
+
+    boolean isYuv() {
+        return format == ImageFormat.YUV_420_888;
+    }
+
+    int getUprightWidth() {
+        return mapper.getUprightWidth();
+    }
+
+    int getUprightHeight() {
+        return mapper.getUprightHeight();
+    }
+
+    // Crops what ML Kit gets to the given upright region (null = whole frame). Call after setFrom...()
+    void setDetectionRoi(Rect uprightRoi) {
+        hasRoi = false;
+        roiOffsetX = roiOffsetY = 0;
+        if(uprightRoi == null)
+            return;
+
+        // ROI was computed on an earlier frame, which may have had another size
+        if(uprightRoi.left < 0 || uprightRoi.top < 0 || uprightRoi.right > getUprightWidth() || uprightRoi.bottom > getUprightHeight())
+            return;
+
+        mapper.uprightRectToRaw(uprightRoi.left, uprightRoi.top, uprightRoi.width(), uprightRoi.height(), roiRawRect);
+        if(isYuv()) {
+            // NV21 chroma is subsampled 2x2, so the crop has to start and end on even coordinates
+            roiRawRect.left &= ~1;
+            roiRawRect.top &= ~1;
+            roiRawRect.right = Math.min((roiRawRect.right + 1) & ~1, width);
+            roiRawRect.bottom = Math.min((roiRawRect.bottom + 1) & ~1, height);
+
+            int rw = roiRawRect.width(), rh = roiRawRect.height();
+            int size = rw * rh * 3 / 2;
+            if(roiNv21 == null || roiNv21.capacity() < size)
+                roiNv21 = ByteBuffer.allocateDirect(size);
+            roiNv21.clear();
+            for(int y = roiRawRect.top; y < roiRawRect.bottom; y++)
+                roiNv21.put(nv21, y * width + roiRawRect.left, rw);
+            for(int y = roiRawRect.top / 2; y < roiRawRect.bottom / 2; y++)
+                roiNv21.put(nv21, width * height + y * width + roiRawRect.left, rw);
+            roiNv21.flip();
+        } else {
+            roiBitmap = reuseBitmap(roiBitmap, roiRawRect.width(), roiRawRect.height());
+            roiDstRect.set(0, 0, roiRawRect.width(), roiRawRect.height());
+            canvas.setBitmap(roiBitmap);
+            canvas.drawBitmap(rawBitmap, roiRawRect, roiDstRect, null);
+            canvas.setBitmap(null);
+        }
+
+        mapper.rawRectToUpright(roiRawRect, roiUprightRect);
+        roiOffsetX = roiUprightRect.left;
+        roiOffsetY = roiUprightRect.top;
+        hasRoi = true;
+    }
+
+    InputImage getInputImage() {
+        if(hasRoi) {
+            if(isYuv())
+                return InputImage.fromByteBuffer(roiNv21, roiRawRect.width(), roiRawRect.height(), rotation, InputImage.IMAGE_FORMAT_NV21);
+            else
+                return InputImage.fromBitmap(roiBitmap, rotation);
+        }
+
+        if(isYuv())
+            return InputImage.fromByteArray(nv21, width, height, rotation, InputImage.IMAGE_FORMAT_NV21);
+        else
+            return InputImage.fromBitmap(rawBitmap, rotation);
+    }
+
+    // Copies the upright region at (x, y), of dst's size, into dst as ARGB, without rotating
+    // the rest of the frame
+    synchronized void getUprightPixels(IntRaster dst, int x, int y) {
+        int w = dst.width, h = dst.height;
+        if(uprightBitmapReady) {
+            uprightBitmap.getPixels(dst.data, dst.offset, dst.stride, x, y, w, h);
+            return;
+        }
+
+        mapper.uprightRectToRaw(x, y, w, h, rawRect);
+        if(isYuv()) {
+            for(int v = 0; v < h; v++) {
+                int row = dst.offset + v * dst.stride;
+                for(int u = 0; u < w; u++) {
+                    int rx = mapper.uprightToRawX(x + u, y + v);
+                    int ry = mapper.uprightToRawY(x + u, y + v);
+                    dst.data[row + u] = nv21PixelToArgb(nv21, width, height, rx, ry);
+                }
+            }
+        } else {
+            int rw = rawRect.width();
+            int rh = rawRect.height();
+            if(rawPixels == null || rawPixels.length < rw * rh)
+                rawPixels = new int[rw * rh];
+            rawBitmap.getPixels(rawPixels, 0, rw, rawRect.left, rawRect.top, rw, rh);
+            for(int v = 0; v < h; v++) {
+                int row = dst.offset + v * dst.stride;
+                for(int u = 0; u < w; u++) {
+                    int rx = mapper.uprightToRawX(x + u, y + v) - rawRect.left;
+                    int ry = mapper.uprightToRawY(x + u, y + v) - rawRect.top;
+                    dst.data[row + u] = rawPixels[ry * rw + rx];
+                }
+            }
+        }
+    }
+
+    // Upright ARGB bitmap of the ML Kit input. The whole frame gets rotated, but only on first call.
+    synchronized Bitmap getBitmap() {
+        if(!uprightBitmapReady) {
+            int uprightWidth = getUprightWidth();
+            int uprightHeight = getUprightHeight();
+            uprightBitmap = reuseBitmap(uprightBitmap, uprightWidth, uprightHeight);
+            if(isYuv()) {
+                if(argbPixels == null || argbPixels.length != width * height) {
+                    argbPixels = new int[width * height];
+                    uprightPixels = new int[width * height];
+                }
+
+                nv21ToArgb(nv21, width, height, argbPixels);
+                rotateArgb(argbPixels, width, height, rotation, uprightPixels);
+                uprightBitmap.setPixels(uprightPixels, 0, uprightWidth, 0, 0, uprightWidth, uprightHeight);
+            } else {
+                rotateBitmap(rawBitmap, uprightBitmap);
+            }
+            uprightBitmapReady = true;
+        }
+        return uprightBitmap;
+    }
+
+    // Bitmap for the calibration preview (full size for JPEG frames, like before)
+    synchronized Bitmap getPreviewBitmap() {
+        if(isYuv() || rawBitmap == decodedBitmap)
+            return getBitmap();
+
+        if(!previewBitmapReady) {
+            int w = decodedBitmap.getWidth(), h = decodedBitmap.getHeight();
+            previewBitmap = reuseBitmap(previewBitmap, (rotation % 180 == 0) ? w : h, (rotation % 180 == 0) ? h : w);
+            rotateBitmap(decodedBitmap, previewBitmap);
+            previewBitmapReady = true;
+        }
+        return previewBitmap;
+    }
+
+    private void rotateBitmap(Bitmap src, Bitmap dst) {
+        int srcWidth = src.getWidth();
+        int srcHeight = src.getHeight();
+        matrix.reset();
+        matrix.postRotate(rotation);
+        switch(rotation) {
+            case 90:
+                matrix.postTranslate(srcHeight, 0);
+                break;
+            case 180:
+                matrix.postTranslate(srcWidth, srcHeight);
+                break;
+            case 270:
+                matrix.postTranslate(0, srcWidth);
+                break;
+        }
+        canvas.setBitmap(dst);
+        canvas.drawBitmap(src, matrix, null);
+        canvas.setBitmap(null);
+    }
+
+    private static Bitmap reuseBitmap(Bitmap bitmap, int width, int height) {
+        if(bitmap != null && bitmap.getWidth() == width && bitmap.getHeight() == height)
+            return bitmap;
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    // Copies the three YUV_420_888 planes into an NV21 array (Y plane followed by interleaved VU),
+    // optionally keeping only every (1 << scaleShift)-th pixel in both directions
+    static void yuvImageToNv21(Image image, byte[] nv21, int outWidth, int outHeight, int scaleShift) {
+        int step = 1 << scaleShift;
+        Image.Plane[] planes = image.getPlanes();
+
+        ByteBuffer yBuffer = planes[0].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        int yPixelStride = planes[0].getPixelStride();
+        int pos = 0;
+        for(int y = 0; y < outHeight; y++) {
+            int rowOffset = y * step * yRowStride;
+            if(step == 1 && yPixelStride == 1) {
+                yBuffer.position(rowOffset);
+                yBuffer.get(nv21, pos, outWidth);
+                pos += outWidth;
+            } else {
+                for(int x = 0; x < outWidth; x++)
+                    nv21[pos++] = yBuffer.get(rowOffset + x * step * yPixelStride);
+            }
+        }
+
+        ByteBuffer uBuffer = planes[1].getBuffer();
+        ByteBuffer vBuffer = planes[2].getBuffer();
+        int uRowStride = planes[1].getRowStride();
+        int uPixelStride = planes[1].getPixelStride();
+        int vRowStride = planes[2].getRowStride();
+        int vPixelStride = planes[2].getPixelStride();
+        for(int y = 0; y < outHeight / 2; y++) {
+            for(int x = 0; x < outWidth / 2; x++) {
+                nv21[pos++] = vBuffer.get(y * step * vRowStride + x * step * vPixelStride);
+                nv21[pos++] = uBuffer.get(y * step * uRowStride + x * step * uPixelStride);
+            }
+        }
+    }
+
+    // Standard BT.601 integer conversion (video range)
+    static void nv21ToArgb(byte[] nv21, int width, int height, int[] argb) {
+        int frameSize = width * height;
+        for(int j = 0; j < height; j++) {
+            int uvPos = frameSize + (j >> 1) * width;
+            int u = 0, v = 0;
+            for(int i = 0; i < width; i++) {
+                if((i & 1) == 0) {
+                    v = (0xFF & nv21[uvPos++]) - 128;
+                    u = (0xFF & nv21[uvPos++]) - 128;
+                }
+                argb[j * width + i] = yuvToArgb(0xFF & nv21[j * width + i], u, v);
+            }
+        }
+    }
+
+    // Single pixel version of nv21ToArgb
+    static int nv21PixelToArgb(byte[] nv21, int width, int height, int x, int y) {
+        int uvPos = width * height + (y >> 1) * width + (x & ~1);
+        int v = (0xFF & nv21[uvPos]) - 128;
+        int u = (0xFF & nv21[uvPos + 1]) - 128;
+        return yuvToArgb(0xFF & nv21[y * width + x], u, v);
+    }
+
+    // y is 0..255, u and v are already centered around 0
+    static int yuvToArgb(int y, int u, int v) {
+        y -= 16;
+        if(y < 0)
+            y = 0;
+
+        int y1192 = 1192 * y;
+        int r = y1192 + 1634 * v;
+        int g = y1192 - 833 * v - 400 * u;
+        int b = y1192 + 2066 * u;
+        r = Math.max(0, Math.min(r, 262143));
+        g = Math.max(0, Math.min(g, 262143));
+        b = Math.max(0, Math.min(b, 262143));
+
+        return 0xFF000000 | ((r << 6) & 0xFF0000) | ((g >> 2) & 0xFF00) | ((b >> 10) & 0xFF);
+    }
+
+    // Rotates width*height pixels clockwise by 90, 180 or 270 degrees (same direction as Matrix.postRotate)
+    static void rotateArgb(int[] src, int width, int height, int rotation, int[] dst) {
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                int pix = src[y * width + x];
+                switch(rotation) {
+                    case 90:
+                        dst[x * height + (height - 1 - y)] = pix;
+                        break;
+                    case 180:
+                        dst[(height - 1 - y) * width + (width - 1 - x)] = pix;
+                        break;
+                    case 270:
+                        dst[(width - 1 - x) * height + y] = pix;
+                        break;
+                    default:
+                        dst[y * width + x] = pix;
+                        break;
+                }
+            }
+        }
+    }
+}
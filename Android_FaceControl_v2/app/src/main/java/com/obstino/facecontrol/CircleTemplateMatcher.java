@@ -0,0 +1,354 @@
+package com.obstino.facecontrol;
+
+// Finds the pupil in a (grayscale, masked) eye crop: correlates a dark filled circle with the image
+// on a searchStep grid, keeps positions scoring at least R*peak, groups them into connected areas
+// (points closer than 2*radius) and returns the correlation-weighted center of the biggest area.
+// All state lives in flat arrays that are reused from one call to the next (they only grow), so a
+// long-lived matcher doesn't allocate once it has seen the biggest eye crop.
+// Correlation samples are indexed in search order (x outer, y inner), peaks and areas keep the
+// order of the original linked-list implementation so the centers come out identical.
+class CircleTemplateMatcher {
+    int width;
+    int height;
+    int radius;
+    int searchStep;
+    private final IntRaster gray = new IntRaster();     // view of the caller's image
+    private final IntRaster ownGray = new IntRaster();  // gray buffer for setImage()
+    private int[] darknessPrefix = new int[0];  // per row: darknessPrefix[v*(width+1) + u] = sum of (255-gray) left of u
+
+    // circle span table for spanRadius: row dy (index dy+radius) covers dx in [-spanLeft, spanRight]
+    private int spanRadius = -1;
+    private int[] spanLeft = new int[0];
+    private int[] spanRight = new int[0];
+    private int circlePixels;   // pixels in the (unclipped) template circle
+
+    // search window (samples x in [searchX0, searchX1), y in [searchY0, searchY1)), whole image by default
+    int searchX0, searchY0, searchX1, searchY1;
+
+    // correlation samples
+    int corrCount;
+    int[] corrX = new int[0];
+    int[] corrY = new int[0];
+    int[] corrValue = new int[0];
+
+    // thresholded peaks (indices into corr*)
+    int peakCorr;
+    int peakSample = -1;    // sample with the highest correlation
+    int peakCount;
+    int[] peaks = new int[0];
+
+    // search grid: sample (gx, gy) is at (searchX0 + gx*searchStep, searchY0 + gy*searchStep) and has
+    // index gx*gridHeight + gy
+    int gridWidth;
+    int gridHeight;
+    private int[] peakAtSample = new int[0];    // peak index of a sample, -1 if below threshold / not labelled yet
+    private int[] neighbourAreas = new int[0];  // scratch: distinct areas next to the current peak
+
+    // connected peak areas (union-find over peak indices): an area is identified by its root, which
+    // is always its first (lowest index) peak; its peaks form a singly linked list (nextInArea)
+    int[] parent = new int[0];
+    int[] nextInArea = new int[0];
+    int[] areaHead = new int[0];
+    int[] areaTail = new int[0];
+    int[] areaSize = new int[0];
+    int maxPeakArea = -1;   // area chosen by findMaxPeakAreaCenterOfMass, -1 if none
+
+    // Sets a new image (ARGB pixels, row stride = width) and template; converts it to gray
+    void setImage(int[] argbPixels, int width, int height, int radius, int searchStep) {
+        ownGray.reset(width, height);
+        for(int k = 0; k < width * height; k++) {
+            int pix = argbPixels[k];
+            int B = pix & 0xFF;
+            int G = (pix >> 8) & 0xFF;
+            int R = (pix >> 16) & 0xFF;
+            ownGray.data[k] = (R+G+B)/3;
+        }
+        setGrayImage(ownGray, radius, searchStep);
+    }
+
+    // Gray values 0..255 (any stride, e.g. a view); the pixels are only referenced, not copied
+    void setGrayImage(IntRaster image, int radius, int searchStep) {
+        gray.set(image.data, image.offset, image.width, image.height, image.stride);
+        this.width = image.width;
+        this.height = image.height;
+        this.radius = radius;
+        this.searchStep = searchStep;
+
+        if(darknessPrefix.length < (width + 1) * height)
+            darknessPrefix = new int[(width + 1) * height];
+        for(int v = 0; v < height; v++) {
+            int rowStart = v * (width + 1);
+            int grayRow = gray.offset + v * gray.stride;
+            int sum = 0;
+            darknessPrefix[rowStart] = 0;
+            for(int u = 0; u < width; u++) {
+                sum += 255 - gray.data[grayRow + u];
+                darknessPrefix[rowStart + u + 1] = sum;
+            }
+        }
+        if(radius != spanRadius)
+            computeSpans(radius);
+
+        int maxSamples = ((width + searchStep - 1) / searchStep) * ((height + searchStep - 1) / searchStep);
+        if(corrX.length < maxSamples) {
+            corrX = new int[maxSamples];
+            corrY = new int[maxSamples];
+            corrValue = new int[maxSamples];
+            peaks = new int[maxSamples];
+            peakAtSample = new int[maxSamples];
+            neighbourAreas = new int[maxSamples];
+            parent = new int[maxSamples];
+            nextInArea = new int[maxSamples];
+            areaHead = new int[maxSamples];
+            areaTail = new int[maxSamples];
+            areaSize = new int[maxSamples];
+        }
+        setSearchWindow(0, 0, width, height);
+    }
+
+    // Only search template positions inside [x0, x1) x [y0, y1) (clipped to the image); the window start
+    // should be a multiple of searchStep so samples are a subset of the full search. Correlation still
+    // reads the image around the window.
+    void setSearchWindow(int x0, int y0, int x1, int y1) {
+        searchX0 = Math.max(x0, 0);
+        searchY0 = Math.max(y0, 0);
+        searchX1 = Math.min(x1, width);
+        searchY1 = Math.min(y1, height);
+        gridWidth = Math.max((searchX1 - searchX0 + searchStep - 1) / searchStep, 0);
+        gridHeight = Math.max((searchY1 - searchY0 + searchStep - 1) / searchStep, 0);
+        corrCount = 0;
+        peakCount = 0;
+        peakCorr = 0;
+        peakSample = -1;
+        maxPeakArea = -1;
+    }
+
+    boolean isFullSearch() {
+        return searchX0 == 0 && searchY0 == 0 && searchX1 == width && searchY1 == height;
+    }
+
+    // The reference loop tests (u-x)^2 + (v-y)^2 <= r^2 for u in [x-r, x+r), v in [y-r, y+r) (note the
+    // open upper ends). Since everything is integer, every row dy of that window is one contiguous span
+    // dx in [-h, min(h, r-1)] with h = floor(sqrt(r^2 - dy^2)).
+    private void computeSpans(int radius) {
+        if(spanLeft.length < 2 * radius)
+            spanLeft = new int[2 * radius];
+        if(spanRight.length < 2 * radius)
+            spanRight = new int[2 * radius];
+        long r2 = (long)radius * radius;
+        circlePixels = 0;
+        for(int dy = -radius; dy < radius; dy++) {
+            long rest = r2 - (long)dy * dy;
+            int h = (int)Math.sqrt((double)rest);
+            while((long)h * h > rest)
+                h--;
+            while((long)(h + 1) * (h + 1) <= rest)
+                h++;
+            spanLeft[dy + radius] = h;
+            spanRight[dy + radius] = Math.min(h, radius - 1);
+            circlePixels += spanLeft[dy + radius] + spanRight[dy + radius] + 1;
+        }
+        spanRadius = radius;
+    }
+
+    // Same scores as computeCorrelationReference(), bit for bit: each circle row is a span whose
+    // darkness sum comes out of the row prefix sums, O(r) per search position instead of O(r^2) pow()s.
+    void computeCorrelation() {
+        corrCount = 0;
+        int rowLength = width + 1;
+        for(int x = searchX0; x < searchX1; x+=searchStep) {
+            for(int y = searchY0; y < searchY1; y+=searchStep) {
+                int tmpCorr = 0;
+                int dyStart = Math.max(-radius, -y);
+                int dyEnd = Math.min(radius, height - y);   // exclusive
+                for(int dy = dyStart; dy < dyEnd; dy++) {
+                    int u0 = Math.max(x - spanLeft[dy + radius], 0);
+                    int u1 = Math.min(x + spanRight[dy + radius], width - 1);
+                    if(u1 >= u0) {
+                        int rowStart = (y + dy) * rowLength;
+                        tmpCorr += darknessPrefix[rowStart + u1 + 1] - darknessPrefix[rowStart + u0];
+                    }
+                }
+
+                corrX[corrCount] = x;
+                corrY[corrCount] = y;
+                corrValue[corrCount] = tmpCorr;
+                corrCount++;
+            }
+        }
+    }
+
+    // Original brute force correlation, kept as the reference for computeCorrelation()
+    void computeCorrelationReference() {
+        corrCount = 0;
+        for(int x = searchX0; x < searchX1; x+=searchStep) {
+            for(int y = searchY0; y < searchY1; y+=searchStep) {
+                // Now correlate area around (x,y) with circle of chosen radius
+                int tmpCorr = 0;
+                for(int u = Math.max(x-radius, 0); u < Math.min(x+radius, width); u++) {
+                    for(int v = Math.max(y-radius, 0); v < Math.min(y+radius, height); v++) {
+                        // Check if (u-x)^2 + (v-y)^2 <= r^2
+                        if(Math.pow((double)(u-x), 2.0) + Math.pow((double)(v-y), 2.0) <= Math.pow((double)radius, 2.0)) {
+                            tmpCorr += (255 - gray.get(u, v));
+                        }
+                    }
+                }
+
+                corrX[corrCount] = x;
+                corrY[corrCount] = y;
+                corrValue[corrCount] = tmpCorr;
+                corrCount++;
+            }
+        }
+    }
+
+    void thresholdCorrelations(double r) {
+        // r gives min percentage of peak that will be included in peaks
+        peakCorr = 0;
+        peakSample = -1;
+        for(int k = 0; k < corrCount; k++) {
+            if(corrValue[k] > peakCorr) {
+                peakCorr = corrValue[k];
+                peakSample = k;
+            }
+        }
+
+        peakCount = 0;
+        for(int k = 0; k < corrCount; k++) {
+            if((double)corrValue[k] >= r*(double)peakCorr)
+                peaks[peakCount++] = k;
+        }
+    }
+
+    // Each peak joins the first (oldest) area that has a point closer than 2*radius; any further area
+    // it's close to gets merged (appended) into that one, oldest first. Peaks close to no area start a
+    // new one. That's the order the original all-pairs implementation produced, which matters for
+    // the float center of mass and for which area wins a size tie.
+    // Peaks sit on the search grid, so only the grid window within 2*radius has to be checked, and
+    // areas are tracked with union-find: roughly linear in the number of peaks.
+    void findConnectedPeakAreas() {
+        int sampleCount = gridWidth * gridHeight;
+        for(int k = 0; k < sampleCount; k++)
+            peakAtSample[k] = -1;
+
+        long maxDist2 = 4L * radius * radius;   // distance < 2*radius <=> distance^2 < 4*radius^2 (integer points)
+        int window = (2 * radius - 1) / searchStep;     // grid cells; further cells are >= 2*radius away
+
+        for(int i = 0; i < peakCount; i++) {
+            int c1 = peaks[i];
+            int gx = c1 / gridHeight;
+            int gy = c1 % gridHeight;
+
+            // distinct areas of the earlier peaks close to this one
+            int neighbourCount = 0;
+            for(int nx = Math.max(gx - window, 0); nx <= Math.min(gx + window, gridWidth - 1); nx++) {
+                for(int ny = Math.max(gy - window, 0); ny <= Math.min(gy + window, gridHeight - 1); ny++) {
+                    int p = peakAtSample[nx * gridHeight + ny];
+                    if(p < 0)
+                        continue;
+                    int c2 = peaks[p];
+                    long dx = corrX[c1] - corrX[c2];
+                    long dy = corrY[c1] - corrY[c2];
+                    if(dx*dx + dy*dy >= maxDist2)
+                        continue;
+
+                    int area = findArea(p);
+                    boolean known = false;
+                    for(int n = 0; n < neighbourCount; n++) {
+                        if(neighbourAreas[n] == area) {
+                            known = true;
+                            break;
+                        }
+                    }
+                    if(!known)
+                        neighbourAreas[neighbourCount++] = area;
+                }
+            }
+
+            peakAtSample[c1] = i;
+            nextInArea[i] = -1;
+            if(neighbourCount == 0) {
+                parent[i] = i;
+                areaHead[i] = areaTail[i] = i;
+                areaSize[i] = 1;
+                continue;
+            }
+
+            // oldest area first (an area's id is its first peak)
+            for(int n = 1; n < neighbourCount; n++) {
+                int area = neighbourAreas[n];
+                int m = n - 1;
+                while(m >= 0 && neighbourAreas[m] > area) {
+                    neighbourAreas[m + 1] = neighbourAreas[m];
+                    m--;
+                }
+                neighbourAreas[m + 1] = area;
+            }
+
+            int target = neighbourAreas[0];
+            parent[i] = target;
+            nextInArea[areaTail[target]] = i;
+            areaTail[target] = i;
+            areaSize[target]++;
+            for(int n = 1; n < neighbourCount; n++) {
+                int area = neighbourAreas[n];
+                parent[area] = target;
+                nextInArea[areaTail[target]] = areaHead[area];
+                areaTail[target] = areaTail[area];
+                areaSize[target] += areaSize[area];
+            }
+        }
+    }
+
+    private int findArea(int p) {
+        int root = p;
+        while(parent[root] != root)
+            root = parent[root];
+        // path compression
+        while(parent[p] != root) {
+            int next = parent[p];
+            parent[p] = root;
+            p = next;
+        }
+        return root;
+    }
+
+    // Match confidence 0..1: mean darkness inside the best template circle (1 = black pupil).
+    // Call after thresholdCorrelations().
+    float getPeakDarkness() {
+        if(circlePixels == 0)
+            return 0.0f;
+        return Math.min(peakCorr / (255.0f * circlePixels), 1.0f);
+    }
+
+    // Writes the center into out[0], out[1] (NaN if there are no peaks)
+    void findMaxPeakAreaCenterOfMass(float[] out) {
+        int maxPeakAreaSize = 0;
+        maxPeakArea = -1;
+        for(int area = 0; area < peakCount; area++) {
+            if(parent[area] == area && areaSize[area] > maxPeakAreaSize) {
+                maxPeakAreaSize = areaSize[area];
+                maxPeakArea = area;
+            }
+        }
+
+        if(maxPeakArea < 0) {
+            out[0] = Float.NaN;
+            out[1] = Float.NaN;
+            return;
+        }
+
+        // float accumulation in area order, same as before
+        float cx = 0, cy = 0;
+        float M = 0;
+        for(int p = areaHead[maxPeakArea]; p >= 0; p = nextInArea[p]) {
+            int c = peaks[p];
+            float m = corrValue[c];
+            cx += m * (float)corrX[c];
+            cy += m * (float)corrY[c];
+            M += m;
+        }
+        out[0] = cx / M;
+        out[1] = cy / M;
+    }
+}
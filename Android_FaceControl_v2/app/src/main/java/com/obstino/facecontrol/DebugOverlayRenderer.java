@@ -0,0 +1,212 @@
+package com.obstino.facecontrol;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Builds the calibration screen preview off the recognize thread: the recognize stage only retains
+// the frame and hands over a DebugOverlaySnapshot (submit()), this renderer's background priority
+// thread rotates the frame upright, draws the eye contours, peak area, pupils and gaze ratios
+// onto it and passes the result to the listener.
+// At most one frame per MIN_RENDER_INTERVAL_MS is rendered; frames submitted meanwhile replace
+// the pending one (latest frame wins), so a slow renderer never backs up the pipeline.
+class DebugOverlayRenderer {
+    String TAG = "FaceControl.DebugOverlayRenderer";
+
+    static final long MIN_RENDER_INTERVAL_MS = 66;  // ~15 fps is plenty for a preview
+    static final int MAX_FREE_SNAPSHOTS = 4;
+
+    interface Listener {
+        // Called on the renderer thread; bitmap belongs to frame, which is retained for the
+        // listener (it has to release() it once the bitmap isn't shown anymore)
+        void onPreviewRendered(CameraFrame frame, Bitmap bitmap);
+    }
+
+    private final Listener listener;
+    private final Object lock = new Object();
+    private ScheduledExecutorService executor;     // guarded by lock
+    private CameraFrame pendingFrame;              // guarded by lock
+    private DebugOverlaySnapshot pendingSnapshot;  // guarded by lock
+    private boolean renderScheduled;               // guarded by lock
+    private long lastRenderTime;                   // guarded by lock
+    private final ArrayDeque<DebugOverlaySnapshot> freeSnapshots = new ArrayDeque<>();  // guarded by lock
+
+    // only used on the renderer thread
+    private final Canvas canvas = new Canvas();
+    private final Paint linePaint = new Paint();
+    private final Paint pointPaint = new Paint();
+    private final Paint textPaint = new Paint();
+
+    DebugOverlayRenderer(Listener listener) {
+        this.listener = listener;
+        linePaint.setStyle(Paint.Style.STROKE);
+        linePaint.setAntiAlias(true);
+        pointPaint.setStyle(Paint.Style.FILL);
+        textPaint.setARGB(255, 50, 50, 255);
+        textPaint.setTextSize(60.0f);
+        textPaint.setFakeBoldText(true);
+    }
+
+    // A cleared snapshot for the next frame; give it back through submit()
+    DebugOverlaySnapshot obtainSnapshot() {
+        DebugOverlaySnapshot snapshot;
+        synchronized (lock) {
+            snapshot = freeSnapshots.poll();
+        }
+        if(snapshot == null)
+            snapshot = new DebugOverlaySnapshot();
+        snapshot.clear();
+        return snapshot;
+    }
+
+    // Queues frame (retained here) for rendering with snapshot's overlay (may be null: plain preview)
+    void submit(CameraFrame frame, DebugOverlaySnapshot snapshot) {
+        frame.retain();
+        CameraFrame replaced = null;
+        synchronized (lock) {
+            if(pendingFrame != null) {
+                replaced = pendingFrame;
+                recycle(pendingSnapshot);
+            }
+            pendingFrame = frame;
+            pendingSnapshot = snapshot;
+            if(!renderScheduled) {
+                long delay = Math.max(lastRenderTime + MIN_RENDER_INTERVAL_MS - SystemClock.elapsedRealtime(), 0);
+                try {
+                    getExecutor().schedule(renderTask, delay, TimeUnit.MILLISECONDS);
+                    renderScheduled = true;
+                } catch (RejectedExecutionException e) {
+                    Log.i(TAG, "Renderer is shut down, dropping frame");
+                }
+            }
+        }
+        if(replaced != null)
+            replaced.release();
+    }
+
+    // Drops the pending frame, if any (preview turned off)
+    void clear() {
+        CameraFrame dropped;
+        synchronized (lock) {
+            dropped = pendingFrame;
+            recycle(pendingSnapshot);
+            pendingFrame = null;
+            pendingSnapshot = null;
+        }
+        if(dropped != null)
+            dropped.release();
+    }
+
+    void shutdown() {
+        clear();
+        synchronized (lock) {
+            if(executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+            renderScheduled = false;
+        }
+    }
+
+    private ScheduledExecutorService getExecutor() {
+        if(executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "DebugOverlayRenderer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private void recycle(DebugOverlaySnapshot snapshot) {
+        if(snapshot != null && freeSnapshots.size() < MAX_FREE_SNAPSHOTS)
+            freeSnapshots.add(snapshot);
+    }
+
+    private final Runnable renderTask = new Runnable() {
+        @Override
+        public void run() {
+            CameraFrame frame;
+            DebugOverlaySnapshot snapshot;
+            synchronized (lock) {
+                frame = pendingFrame;
+                snapshot = pendingSnapshot;
+                pendingFrame = null;
+                pendingSnapshot = null;
+                renderScheduled = false;
+                lastRenderTime = SystemClock.elapsedRealtime();
+            }
+            if(frame == null)
+                return;
+
+            // the frame is done being recognized, so its upright bitmap is ours to draw on
+            Bitmap bitmap = frame.getPreviewBitmap();
+            if(snapshot != null) {
+                drawOverlay(bitmap, (float)bitmap.getWidth() / frame.getUprightWidth(), snapshot);
+                synchronized (lock) {
+                    recycle(snapshot);
+                }
+            }
+            listener.onPreviewRendered(frame, bitmap);
+        }
+    };
+
+    private void drawOverlay(Bitmap bitmap, float scale, DebugOverlaySnapshot snapshot) {
+        canvas.setBitmap(bitmap);
+        canvas.save();
+        canvas.scale(scale, scale);
+        drawEye(snapshot.left);
+        drawEye(snapshot.right);
+        canvas.restore();
+
+        float textY = 60;
+        for(DebugOverlaySnapshot.Eye eye : new DebugOverlaySnapshot.Eye[] {snapshot.left, snapshot.right}) {
+            if(eye.valid) {
+                canvas.drawText(String.format(Locale.getDefault(), "%s: x=%.2f; y=%.2f (%.2f)", eye.name, eye.ratioX, eye.ratioY, eye.confidence), 0, textY, textPaint);
+                textY += 60;
+            }
+        }
+        canvas.setBitmap(null);
+    }
+
+    private void drawEye(DebugOverlaySnapshot.Eye eye) {
+        if(!eye.valid)
+            return;
+
+        linePaint.setARGB(255, 50, 50, 255);
+        linePaint.setStrokeWidth(1.0f);
+        canvas.drawRect(eye.cropX, eye.cropY, eye.cropX + eye.cropWidth, eye.cropY + eye.cropHeight, linePaint);
+
+        linePaint.setARGB(255, 0, 255, 0);
+        for(int i = 0, j = DebugOverlaySnapshot.CONTOUR_POINTS - 1; i < DebugOverlaySnapshot.CONTOUR_POINTS; j = i++)
+            canvas.drawLine(eye.contourX[j], eye.contourY[j], eye.contourX[i], eye.contourY[i], linePaint);
+
+        pointPaint.setARGB(255, 255, 255, 0);
+        for(int k = 0; k < eye.peakCount; k++)
+            canvas.drawCircle(eye.peakX[k], eye.peakY[k], 0.5f, pointPaint);
+
+        pointPaint.setARGB(255, 255, 0, 0);
+        canvas.drawCircle(eye.pupilX, eye.pupilY, 1.5f, pointPaint);
+    }
+}
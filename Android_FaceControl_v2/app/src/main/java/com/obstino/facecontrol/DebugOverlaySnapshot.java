@@ -0,0 +1,36 @@
+package com.obstino.facecontrol;
+
+// What the debug overlay shows about one frame, copied out of EyeCenterFinder on the recognize
+// thread: a handful of floats per eye, no pixels (the renderer reads those from the frame itself).
+// All coordinates are upright frame coordinates.
+// Snapshots are recycled by DebugOverlayRenderer, so they never allocate once created.
+class DebugOverlaySnapshot {
+    static final int CONTOUR_POINTS = 16;
+    static final int MAX_PEAKS = 64;    // peak area points beyond this aren't drawn
+
+    static class Eye {
+        final String name;
+        boolean valid;      // eye was analyzed in this frame
+        final float[] contourX = new float[CONTOUR_POINTS];
+        final float[] contourY = new float[CONTOUR_POINTS];
+        int cropX, cropY, cropWidth, cropHeight;
+        float pupilX, pupilY;
+        float ratioX, ratioY;   // gaze, as returned by EyeCenterFinder
+        float confidence;
+        int peakCount;      // template matcher's winning peak area (empty for other estimators)
+        final float[] peakX = new float[MAX_PEAKS];
+        final float[] peakY = new float[MAX_PEAKS];
+
+        Eye(String name) {
+            this.name = name;
+        }
+    }
+
+    final Eye left = new Eye("L");
+    final Eye right = new Eye("R");
+
+    void clear() {
+        left.valid = false;
+        right.valid = false;
+    }
+}
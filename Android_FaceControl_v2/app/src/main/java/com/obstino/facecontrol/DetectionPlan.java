@@ -0,0 +1,68 @@
+package com.obstino.facecontrol;
+
+import com.google.mlkit.vision.face.FaceDetectorOptions;
+
+// Which gesture detectors processImage() runs and which ML Kit options they need, derived from the
+// switch bindings (SwitchBindings, in any context). Most users bind only a couple of gestures,
+// so there's no point computing the rest (eye gaze runs EyeCenterFinder twice per frame) or asking
+// ML Kit for classification nobody reads.
+// Immutable; FaceControlService swaps in a new plan whenever bindings/settings change.
+class DetectionPlan {
+    final boolean smile;
+    final boolean eyebrow;
+    final boolean eyeClosed;    // winks, and the eyes-closed (un)pause gesture
+    final boolean eyeGaze;
+    final boolean mouthOpen;
+
+    DetectionPlan(boolean smile, boolean eyebrow, boolean eyeClosed, boolean eyeGaze, boolean mouthOpen) {
+        this.smile = smile;
+        this.eyebrow = eyebrow;
+        this.eyeClosed = eyeClosed;
+        this.eyeGaze = eyeGaze;
+        this.mouthOpen = mouthOpen;
+    }
+
+    // allGestures: calibration screen is open, the user wants to try out every gesture
+    static DetectionPlan fromBindings(SwitchBindings bindings, boolean eyesClosedPause, boolean allGestures) {
+        if(allGestures)
+            return new DetectionPlan(true, true, true, true, true);
+
+        return new DetectionPlan(
+                bindings.isBound(SettingsActivity.SwitchElement.SwitchType.smile),
+                bindings.isBound(SettingsActivity.SwitchElement.SwitchType.eyebrow),
+                eyesClosedPause || bindings.isBound(SettingsActivity.SwitchElement.SwitchType.left_wink) ||
+                        bindings.isBound(SettingsActivity.SwitchElement.SwitchType.right_wink),
+                bindings.isBound(SettingsActivity.SwitchElement.SwitchType.look_left) ||
+                        bindings.isBound(SettingsActivity.SwitchElement.SwitchType.look_right),
+                bindings.isBound(SettingsActivity.SwitchElement.SwitchType.mouth_open));
+    }
+
+    // smile, eyebrow, gaze and mouth all work on contour points
+    boolean needsContours() {
+        return smile || eyebrow || eyeGaze || mouthOpen;
+    }
+
+    // eye open probabilities: winks/pause, and gaze ignores frames with closed eyes
+    boolean needsClassification() {
+        return eyeClosed || eyeGaze;
+    }
+
+    boolean sameDetectorOptions(DetectionPlan other) {
+        return other != null && needsContours() == other.needsContours() && needsClassification() == other.needsClassification();
+    }
+
+    FaceDetectorOptions buildDetectorOptions() {
+        return new FaceDetectorOptions.Builder()
+                .setPerformanceMode(FaceDetectorOptions.PERFORMANCE_MODE_FAST)
+                .setContourMode(needsContours() ? FaceDetectorOptions.CONTOUR_MODE_ALL : FaceDetectorOptions.CONTOUR_MODE_NONE)
+                //.setLandmarkMode(FaceDetectorOptions.LANDMARK_MODE_ALL)
+                .setClassificationMode(needsClassification() ? FaceDetectorOptions.CLASSIFICATION_MODE_ALL : FaceDetectorOptions.CLASSIFICATION_MODE_NONE)
+                .build();
+    }
+
+    @Override
+    public String toString() {
+        return "smile=" + smile + ", eyebrow=" + eyebrow + ", eyeClosed=" + eyeClosed + ", eyeGaze=" + eyeGaze + ", mouthOpen=" + mouthOpen +
+                " (contours=" + needsContours() + ", classification=" + needsClassification() + ")";
+    }
+}
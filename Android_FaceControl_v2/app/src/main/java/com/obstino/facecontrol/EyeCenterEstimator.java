@@ -0,0 +1,12 @@
+package com.obstino.facecontrol;
+
+// Finds the pupil center in a preprocessed eye crop. Implementations keep their own scratch
+// buffers (and possibly state from the previous frame), so use one instance per eye.
+interface EyeCenterEstimator {
+    // Writes the pupil center (crop coordinates) into center[0], center[1], NaN if none was found,
+    // and returns a confidence 0..1 (0 if none was found)
+    float estimate(EyeCrop crop, float[] center);
+
+    // Forget anything carried over from previous frames (face lost, settings changed)
+    void reset();
+}
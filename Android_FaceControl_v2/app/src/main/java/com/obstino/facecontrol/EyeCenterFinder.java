@@ -1,611 +1,358 @@
 package com.obstino.facecontrol;
 
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.ColorMatrix;
-import android.graphics.ColorMatrixColorFilter;
-import android.graphics.Paint;
-import android.graphics.Path;
 import android.graphics.PointF;
+import android.util.Log;
 
 import com.google.mlkit.vision.face.Face;
 import com.google.mlkit.vision.face.FaceContour;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
-
-class Node<T> {
-    T data;
-    Node<T> prev;
-    Node<T> next;
-    Node(T data) {
-        this.data = data;
-    }
-}
-
-class MyLinkedList<T> {
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// Long-lived (one per GestureRecognizer): call setFrame() for every frame, the eye crop, mask, contour
+// and estimator buffers are reused between frames and only grow with the eye size, so analyzing a frame
+// allocates nothing (results go into caller supplied arrays).
+// The pupil itself is found by an EyeCenterEstimator picked in settings (estimatorType).
+// Each eye has its own buffers (EyeScratch), so findMeanEyeCenter() can analyze the left eye on
+// eyeExecutor while the calling thread does the right one; they only share the read-only frame.
+public class EyeCenterFinder {
+    String TAG = "FaceControl.EyeCenterFinder";
 
-    Node<T> head, tail;
-    MyLinkedList() { head = null; tail = null; }
+    CameraFrame frame;  // eye pixels are read through the frame's coordinate mapper (contours are upright)
+    Face face;
 
-    Node<T> getHeadNode() {
-        return head;
+    enum EstimatorType {
+        template,   // TemplateMatchingEstimator
+        gradient    // GradientEyeCenterEstimator
     }
 
-    void pushBack(T element) {
-        Node<T> new_tail = new Node<T>(element);
-
-        if(head == null) {
-            new_tail.prev = null;
-            new_tail.next = null;
-            head = new_tail;
-            tail = new_tail;
-        } else {
-            new_tail.next = null;
-            new_tail.prev = tail;
-            tail.next = new_tail;
-            tail = new_tail;
+    static class EyeScratch {
+        final String name;
+        final EyePreprocessor eyePreprocessor = new EyePreprocessor();
+        final EyeCrop crop = new EyeCrop();
+        final TemplateMatchingEstimator templateEstimator = new TemplateMatchingEstimator();
+        final GradientEyeCenterEstimator gradientEstimator = new GradientEyeCenterEstimator();
+        final float[] center = new float[2];
+        final IntRaster eyePixels = new IntRaster();    // ARGB crop of the upright frame
+        final float[] pointX = new float[16]; // eye contour in the upright frame (rotated in place if asked)
+        final float[] pointY = new float[16];
+        final float[] maskX = new float[16];  // eye contour relative to the crop
+        final float[] maskY = new float[16];
+        final float[] ratio = new float[2];   // result of the last analysis
+        float confidence;   // of the last result, 0 if none
+
+        EyeScratch(String name) {
+            this.name = name;
         }
-    }
 
-    void removeNode(Node<T> node) {
-        // We have the following cases:
-        //  -There is only 1 element (node=head and node=tail)
-        //  -There are at least 2 elements, but node is head
-        //  -There are at least 2 elements, but node is tail
-        //  -There are more than 2 elements, and node is somewhere in between
-
-        if(node == head && node == tail) {
-            head = null;
-            tail = null;
-        } else if(node == head) {
-            head = node.next;
-        } else if(node == tail) {
-            Node<T> prevNode;
-            prevNode = node.prev;
-            prevNode.next = null;
-            tail = prevNode;
-        } else {
-            Node<T> prevNode = node.prev;
-            Node<T> nextNode = node.next;
-            prevNode.next = nextNode;
-            nextNode.prev = prevNode;
+        EyeCenterEstimator getEstimator(EstimatorType type) {
+            return (type == EstimatorType.gradient) ? gradientEstimator : templateEstimator;
         }
     }
 
-    void appendList(MyLinkedList<T> list) {
-        if(list.head != null) { // at least 1 element must be inside
-            if(tail == null) {
-                // if our list is empty (head=tail=null), set our head and tail to that of the second list
-                head = list.head;
-                tail = list.tail;
-            } else {
-                // apparently our list has at least 1 element
-                Node<T> prevNode = tail;
-                Node<T> nextNode = list.head;
-                prevNode.next = nextNode;
-                nextNode.prev = prevNode;
-                tail = list.tail;
-            }
-        }
-    }
+    private final EyeScratch leftEye = new EyeScratch("L");
+    private final EyeScratch rightEye = new EyeScratch("R");
+    final EyeCropRecorder cropRecorder = new EyeCropRecorder();
 
-    int size() {
-        int size = 0;
-        Node<T> node = head;
-        while(node != null) {
-            size++;
-            node = node.next;
-        }
+    private volatile boolean parallelEyes = false;
+    private volatile EstimatorType estimatorType = EstimatorType.template;
+    private volatile boolean trackingReset = false;
+    private volatile DebugOverlaySnapshot overlaySnapshot;  // filled in by this frame's analysis, if set
+    private ExecutorService eyeExecutor;    // created on first parallel use
 
-        return size;
+    void setFrame(CameraFrame frame, Face face) {
+        this.frame = frame;
+        this.face = face;
     }
-}
 
-class CircleTemplateMatcher {
-    static class Correlation {
-        PointF point;
-        int corr;
-        Correlation(PointF point, int corr) {
-            this.point = point;
-            this.corr = corr;
-        }
-    };
-
-    Bitmap image;
-    int [][] imageArray;
-    MyLinkedList<Correlation> corrList = new MyLinkedList<>();
-    int radius;
-    int searchStep;
-
-    MyLinkedList<Correlation> peakList = new MyLinkedList<>();
-    MyLinkedList<MyLinkedList<Correlation>> peakAreas = new MyLinkedList<>();
-    MyLinkedList<Correlation> maxPeakArea = null;
-
-    CircleTemplateMatcher(Bitmap image, int radius, int searchStep) {
-        this.image = image;
-        this.radius = radius;
-        this.searchStep = searchStep;
-
-        // Convert the image to a 2D grayscale array
-        imageArray = new int[image.getHeight()][image.getWidth()];
-        int[] imagePixels = new int[image.getWidth()*image.getHeight()];
-        image.getPixels(imagePixels, 0, image.getWidth(), 0, 0, image.getWidth(), image.getHeight());
-        for(int y = 0; y < image.getHeight(); y++) {
-            for(int x = 0; x < image.getWidth(); x++) {
-                int pix = imagePixels[y*image.getWidth() + x];
-                int B = pix & 0xFF;
-                int G = (pix >> 8) & 0xFF;
-                int R = (pix >> 16) & 0xFF;
-                imageArray[y][x] = (R+G+B)/3;
-            }
-        }
+    // Debug overlay of the next findMeanEyeCenter() calls goes into snapshot (null: no overlay);
+    // only a few floats per eye are copied, drawing happens in DebugOverlayRenderer
+    void setOverlaySnapshot(DebugOverlaySnapshot snapshot) {
+        overlaySnapshot = snapshot;
     }
 
-    void computeCorrelation() {
-        for(int x = 0; x < image.getWidth(); x+=searchStep) {
-            for(int y = 0; y < image.getHeight(); y+=searchStep) {
-                // Now correlate area around (x,y) with circle of chosen radius
-                int tmpCorr = 0;
-                for(int u = Math.max(x-radius, 0); u < Math.min(x+radius, image.getWidth()); u++) {
-                    for(int v = Math.max(y-radius, 0); v < Math.min(y+radius, image.getHeight()); v++) {
-                        // Check if (u-x)^2 + (v-y)^2 <= r^2
-                        if(Math.pow((double)(u-x), 2.0) + Math.pow((double)(v-y), 2.0) <= Math.pow((double)radius, 2.0)) {
-                            tmpCorr += (255 - imageArray[v][u]);
-                        }
-                    }
-                }
-
-                corrList.pushBack(new Correlation(new PointF(x, y), tmpCorr));
-                //correlations.push_back(new Correlation())
-                //image.at<unsigned char>(y, x)
-            }
-        }
+    void setParallelEyes(boolean parallel) {
+        if(parallel != parallelEyes)
+            Log.i(TAG, "Parallel eye analysis " + (parallel ? "on" : "off"));
+        parallelEyes = parallel;
     }
 
-    void thresholdCorrelations(double r) {
-        // r gives min percentage of peak that will be included in peakVect
-        int peakCorr = 0;
-        Node<Correlation> corrIterator;
-
-        corrIterator = corrList.getHeadNode();
-        while(corrIterator != null) {
-            Correlation c = corrIterator.data;
-            if(c.corr > peakCorr) {
-                peakCorr = c.corr;
-            }
-            corrIterator = corrIterator.next;
-        }
-
-        corrIterator = corrList.getHeadNode();
-        while(corrIterator != null) {
-            Correlation c = corrIterator.data;
-            if((double)c.corr >= r*(double)peakCorr) {
-                peakList.pushBack(c);
-            }
-            corrIterator = corrIterator.next;
-        }
+    void setPupilTracking(boolean tracking) {
+        leftEye.templateEstimator.setTrackingEnabled(tracking);
+        rightEye.templateEstimator.setTrackingEnabled(tracking);
+        trackingReset = true;
     }
 
-    void findConnectedPeakAreas() {
-        Node<Correlation> peakListIterator = peakList.getHeadNode();
-        while (peakListIterator != null) {
-            Correlation c1 = peakListIterator.data;
-            Node<MyLinkedList<Correlation>> targetCorrListIterator = null;
-
-            Node<MyLinkedList<Correlation>> corrListIterator = peakAreas.getHeadNode();
-            while (corrListIterator != null) {
-                MyLinkedList<Correlation> corrList = corrListIterator.data;
-                boolean incIterator = true;
-
-                Node<Correlation> corrIterator = corrList.getHeadNode();
-                while(corrIterator != null) {
-                    Correlation c2 = corrIterator.data;
-
-                    //std::cout << "p1=" << ((Point)c1.point).toString() << "; p2=" << ((Point)c2.point).toString()
-                    //	<< "; distance = " << sqrt(pow(c1.point.x - c2.point.x, 2) + pow(c1.point.y - c2.point.y, 2)) << std::endl;
-
-                    if (Math.sqrt(Math.pow(c1.point.x - c2.point.x, 2) + Math.pow(c1.point.y - c2.point.y, 2)) < (double)(2 * radius)) {
-                        if (targetCorrListIterator == null) {
-                            // if point c1 wasn't added to any other peak area,
-                            // choose corrListIterator as the target merge correlation list
-                            targetCorrListIterator = corrListIterator;
-                            targetCorrListIterator.data.pushBack(c1);
-                            break;
-                        }
-                        else {
-                            //std::cout << "@ELSE: " << "p1=" << ((Point)c1.point).toString() << "; p2=" << ((Point)c2.point).toString() << std::endl;
-
-                            // if point c1 was already added to another peak area, merge this area into that one
-                            targetCorrListIterator.data.appendList(corrListIterator.data);
-                            // Now delete corrList pointed to by corrListIterator
-                            Node<MyLinkedList<Correlation>> nextCorrListIterator = corrListIterator.next;
-                            peakAreas.removeNode(corrListIterator);
-                            corrListIterator = nextCorrListIterator;
-                            //corrListIterator = peakAreas.erase(corrListIterator);
-                            incIterator = false;
-                            break;
-                        }
-                    }
-
-                    corrIterator = corrIterator.next;
-                }
-
-                if(incIterator) {
-                    corrListIterator = corrListIterator.next;
-                }
-            }
-
-            if (targetCorrListIterator == null) {
-                MyLinkedList<Correlation> targetCorrList = new MyLinkedList<>();
-                targetCorrList.pushBack(c1);
-                peakAreas.pushBack(targetCorrList);
-                targetCorrListIterator = peakAreas.getHeadNode();
-            }
-
-            peakListIterator = peakListIterator.next;
-        }
-
-		/*
-		std::cout << "There are " << peakAreas.size() << " peak areas" << std::endl;
-		for(const auto &i : peakAreas) {
-			std::cout << "\t" "One peak area size is " << i.size() << std::endl;
-		}
-		std::cout << std::endl;
-		*/
+    void setEstimatorType(EstimatorType type) {
+        if(type != estimatorType)
+            Log.i(TAG, "Eye center estimator: " + type);
+        estimatorType = type;
+        trackingReset = true;
     }
 
-    PointF findMaxPeakAreaCenterOfMass() {
-        PointF c = new PointF();
-        c.x = 0;
-        c.y = 0;
-        int maxPeakAreaSize = 0;
-
-        Node<MyLinkedList<Correlation>> peakAreaIterator = peakAreas.getHeadNode();
-        while (peakAreaIterator != null) {
-            MyLinkedList<Correlation> peakArea = peakAreaIterator.data;
-            int peakAreaSize = peakArea.size();
-            if(peakAreaSize > maxPeakAreaSize) {
-                maxPeakAreaSize = peakAreaSize;
-                maxPeakArea = peakArea;
-            }
-            peakAreaIterator = peakAreaIterator.next;
-        }
-        if(maxPeakArea == null)
-            return new PointF(Float.NaN, Float.NaN);
-		else {
-            float M = 0;
-            Node<Correlation> correlationIterator = maxPeakArea.getHeadNode();
-            while(correlationIterator != null) {
-                Correlation correlation = correlationIterator.data;
-
-                float m;
-                m = correlation.corr;
-                c.x += m * correlation.point.x;
-                c.y += m * correlation.point.y;
-                M += m;
-
-                correlationIterator = correlationIterator.next;
-            }
-            c.x /= M;
-            c.y /= M;
-            return c;
-        }
+    // e.g. face lost: next frame searches the whole eye boxes
+    void resetTracking() {
+        trackingReset = true;
     }
-};
-
-public class EyeCenterFinder {
-    Bitmap faceBitmap;
-    Face face;
 
-    static Bitmap myDrawBitmap;
+    float getLeftEyeConfidence() {
+        return leftEye.confidence;
+    }
 
-    EyeCenterFinder(Bitmap faceBitmap, Face face) {
-        this.faceBitmap = faceBitmap;
-        this.face = face;
+    float getRightEyeConfidence() {
+        return rightEye.confidence;
     }
 
-    /**
-     *
-     * @param bmp input bitmap
-     * @param contrast 0..10 1 is default
-     * @param brightness -255..255 0 is default
-     * @return new bitmap
-     */
-    public static Bitmap changeBitmapContrastBrightness(Bitmap bmp, float contrast, float brightness)
-    {
-        ColorMatrix cm = new ColorMatrix(new float[]
-                {
-                        contrast, 0, 0, 0, brightness,
-                        0, contrast, 0, 0, brightness,
-                        0, 0, contrast, 0, brightness,
-                        0, 0, 0, 1, 0
-                });
-
-        Bitmap ret = Bitmap.createBitmap(bmp.getWidth(), bmp.getHeight(), bmp.getConfig());
-
-        Canvas canvas = new Canvas(ret);
-
-        Paint paint = new Paint();
-        paint.setColorFilter(new ColorMatrixColorFilter(cm));
-        canvas.drawBitmap(bmp, 0, 0, paint);
-
-        return ret;
+    // confidence of the last findMeanEyeCenter() result: the worse of the two eyes
+    float getMeanEyeConfidence() {
+        return Math.min(leftEye.confidence, rightEye.confidence);
     }
 
-    int[] setImageContrast(int[] imagePixels, int[] maskPixels, int width, int height, double alpha)
-    {
-        int [] outputPixels = new int[width*height];
-        double I_mean_r = 0.0;
-        double I_mean_g = 0.0;
-        double I_mean_b = 0.0;
-        int N = 0;
-
-        for(int y = 0; y < height; y++) {
-            for(int x = 0; x < width; x++) {
-                if(maskPixels[y*width + x] == Color.argb(255, 0, 0, 0)) {
-                    int pix = imagePixels[y*width + x];
-                    int r = (pix >> 16) & 0xFF;
-                    int g = (pix >> 8) & 0xFF;
-                    int b = (pix) & 0xFF;
-                    I_mean_r += r/255.0;
-                    I_mean_g += g/255.0;
-                    I_mean_b += b/255.0;
-                    N++;
+    private synchronized ExecutorService getEyeExecutor() {
+        if(eyeExecutor == null) {
+            eyeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "EyeCenterFinder");
+                    thread.setDaemon(true);
+                    return thread;
                 }
-            }
+            });
         }
+        return eyeExecutor;
+    }
 
-        I_mean_r /= (double)N;
-        I_mean_g /= (double)N;
-        I_mean_b /= (double)N;
-
-        for(int y = 0; y < height; y++) {
-            for(int x = 0; x < width; x++) {
-                if(maskPixels[y*width + x] == Color.argb(255, 0, 0, 0)) {
-                    int pix = imagePixels[y*width + x];
-                    int r = (pix >> 16) & 0xFF;
-                    int g = (pix >> 8) & 0xFF;
-                    int b = (pix) & 0xFF;
-                    double I_r = (double)r/255.0;
-                    double I_g = (double)g/255.0;
-                    double I_b = (double)b/255.0;
-                    I_r = Math.pow(I_r, Math.pow(1.0 + I_mean_r - I_r, alpha)) * 255.0;
-                    I_g = Math.pow(I_g, Math.pow(1.0 + I_mean_g - I_g, alpha)) * 255.0;
-                    I_b = Math.pow(I_b, Math.pow(1.0 + I_mean_b - I_b, alpha)) * 255.0;
-                    int I = (int)(I_r + I_g + I_b)/3;   // convert to grayscale
-                    outputPixels[y*width + x] = Color.argb(255, I, I, I);
-                } else {
-                    outputPixels[y*width + x] = Color.argb(255, 255, 255, 255);;
-                }
-            }
+    synchronized void shutdown() {
+        if(eyeExecutor != null) {
+            eyeExecutor.shutdown();
+            eyeExecutor = null;
         }
-        return outputPixels;
     }
 
-    float findMin(List <Float> list) {
-        float min = list.get(0);
-        for(Float f:list) {
-            if(f < min)
-                min = f;
+    static float findMin(float[] values, int n) {
+        float min = values[0];
+        for(int k = 1; k < n; k++) {
+            if(values[k] < min)
+                min = values[k];
         }
         return min;
     }
 
-    float findMax(List <Float> list) {
-        float max = list.get(0);
-        for(Float f:list) {
-            if(f > max)
-                max = f;
+    static float findMax(float[] values, int n) {
+        float max = values[0];
+        for(int k = 1; k < n; k++) {
+            if(values[k] > max)
+                max = values[k];
         }
         return max;
     }
 
-    private PointF findEyeCenterGivenPoints(List<PointF> eyePoints, boolean rotate, boolean draw) {
+    // Writes the pupil position relative to the eye corners (x) and lids (y), 0..1, into ratio;
+    // returns false if the eye is (partly) outside the frame
+    private boolean findEyeCenterGivenPoints(EyeScratch scratch, List<PointF> eyePoints, boolean rotate, DebugOverlaySnapshot.Eye overlay, float[] ratio) {
         int eyeX, eyeY, eyeWidth, eyeHeight;
-        List<Float> eyeXPosList, eyeYPosList;
-
-        eyeXPosList = new ArrayList<>();
-        eyeYPosList = new ArrayList<>();
-        for(PointF p:eyePoints) {
-            eyeXPosList.add(p.x);
-            eyeYPosList.add(p.y);
+        float[] pointX = scratch.pointX;
+        float[] pointY = scratch.pointY;
+        for(int k = 0; k <= 15; k++) {
+            PointF p = eyePoints.get(k);
+            pointX[k] = p.x;
+            pointY[k] = p.y;
         }
 
-        eyeX = (int)findMin(eyeXPosList);
-        eyeWidth = (int)(findMax(eyeXPosList) - eyeX);
-        eyeY = (int)findMin(eyeYPosList);
-        eyeHeight = (int)(findMax(eyeYPosList) - eyeY);
+        eyeX = (int)findMin(pointX, 16);
+        eyeWidth = (int)(findMax(pointX, 16) - eyeX);
+        eyeY = (int)findMin(pointY, 16);
+        eyeHeight = (int)(findMax(pointY, 16) - eyeY);
 
-        if(eyeX >= 0 && eyeY >= 0 && (eyeX+eyeWidth) < faceBitmap.getWidth() && (eyeY+eyeHeight) < faceBitmap.getHeight())
+        if(eyeX >= 0 && eyeY >= 0 && (eyeX+eyeWidth) < frame.getUprightWidth() && (eyeY+eyeHeight) < frame.getUprightHeight())
         {
-            Bitmap eyeBitmap = Bitmap.createBitmap(faceBitmap, eyeX, eyeY, eyeWidth, eyeHeight);
-            Bitmap maskBitmap = Bitmap.createBitmap(eyeWidth, eyeHeight, faceBitmap.getConfig());
-
-//            eyeBitmap = changeBitmapContrastBrightness(eyeBitmap, 2.0f, 0.0f);
+            IntRaster eyePixels = scratch.eyePixels;
+            float[] maskX = scratch.maskX;
+            float[] maskY = scratch.maskY;
+            EyePreprocessor eyePreprocessor = scratch.eyePreprocessor;
+            EyeCrop crop = scratch.crop;
 
             float maskOffsetX, maskOffsetY;
             maskOffsetX = eyeX;   // point where we begin drawing our mask
             maskOffsetY = eyeY;    // -||-
-            Path path = new Path();
-            path.moveTo(eyePoints.get(0).x - maskOffsetX, eyePoints.get(0).y - maskOffsetY);
-            for(int k = 1; k <= 15; k++)
-                path.lineTo(eyePoints.get(k).x - maskOffsetX, eyePoints.get(k).y - maskOffsetY);
-            path.close();
-
-            Paint paint = new Paint();
-            paint.setStyle(Paint.Style.FILL);
-            Canvas maskCanvas = new Canvas(maskBitmap);
-            maskCanvas.drawPath(path, paint);
+            for(int k = 0; k <= 15; k++) {
+                maskX[k] = pointX[k] - maskOffsetX;
+                maskY[k] = pointY[k] - maskOffsetY;
+            }
+            crop.reset(eyeWidth, eyeHeight);
+            eyePreprocessor.rasterizeMask(maskX, maskY, 16, crop.mask);
 
             double contrast = 5.0;
-            // At this point we have eyeBitmap and maskBitmap ready!
-            // Let's bitwise AND those bitmaps!
-            int r, g, b, rgb;
-            int [] eyePixels = new int[eyeWidth * eyeHeight];
-            int [] maskPixels = new int[eyeWidth * eyeHeight];
-            eyeBitmap.getPixels(eyePixels, 0, eyeWidth, 0, 0, eyeWidth, eyeHeight);
-            maskBitmap.getPixels(maskPixels, 0, eyeWidth, 0, 0, eyeWidth, eyeHeight);
-            eyePixels = setImageContrast(eyePixels, maskPixels, eyeWidth, eyeHeight, contrast); // sets contrast and converts to grayscale
-            /*for(int k = 0; k < eyeWidth * eyeHeight; k++) {
-                if(maskPixels[k] == Color.argb(0, 0, 0, 0))  // if mask pixel is transparent, set eye pixel to white
-                    eyePixels[k] = Color.argb(255, 255, 255, 255);
-                else {
-                    // the order of these isn't really important, we only need a greyscale image
-                    b = (eyePixels[k]) & 0xFF;
-                    g = (eyePixels[k] >> 8) & 0xFF;
-                    r = (eyePixels[k] >> 16) & 0xFF;
-                    rgb = (r+g+b)/3;
-                    eyePixels[k] = Color.argb(255, rgb, rgb, rgb);
-                }
-            }*/
-            eyeBitmap.setPixels(eyePixels, 0, eyeWidth, 0, 0, eyeWidth, eyeHeight);
+            // sets contrast and converts to grayscale, straight into the crop the estimator reads
+            eyePixels.reset(eyeWidth, eyeHeight);
+            frame.getUprightPixels(eyePixels, eyeX, eyeY);
+            eyePreprocessor.applyContrast(eyePixels, crop.mask, contrast, crop.gray);
 
-            // At this point, eye bitmap is ready. Now we just calculate some things and start detection!
+            // At this point, eye crop is ready. Now we just calculate some things and start detection!
             // ###########################################################################################
             // Palpebral Fissure Length in pixels
-            int PFL_pix = (int)Math.sqrt(Math.pow(eyePoints.get(8).x - eyePoints.get(0).x, 2) + Math.pow(eyePoints.get(8).y - eyePoints.get(0).y, 2)); //eyeWidth;
-            // Iris diameter to PFL length ratio
-            // (based on paper "Periocular Anthropometry of Normal Chinese and Indian Populations in Singapore")
-            double min_iris2PFL_ratio = 11.6/35.0;	// could lower this even further, though...
-            double max_iris2PFL_ratio = 12.0/18.0;
-            int minRadius = (int)((double)PFL_pix * min_iris2PFL_ratio/2.0); // divide by 2 to get radius
-            int maxRadius = (int)((double)PFL_pix * max_iris2PFL_ratio/2.0);
-            int radius = minRadius/2;	// circle radius to do template matching (correlation) with
-            float R = 0.85f;
-
-            CircleTemplateMatcher circleTemplateMatcher = new CircleTemplateMatcher(eyeBitmap, Math.max(radius, 1), Math.max(radius/2, 1));
-            circleTemplateMatcher.computeCorrelation();
-            circleTemplateMatcher.thresholdCorrelations(R);
-            circleTemplateMatcher.findConnectedPeakAreas();
-            PointF c = circleTemplateMatcher.findMaxPeakAreaCenterOfMass();
-
-            PointF c_abs = new PointF(c.x+eyeX, c.y+eyeY);
+            int PFL_pix = (int)Math.sqrt(Math.pow(pointX[8] - pointX[0], 2) + Math.pow(pointY[8] - pointY[0], 2)); //eyeWidth;
+            crop.pfl = PFL_pix;
+            crop.cornerMidX = (pointX[0] + pointX[8]) / 2.0f - eyeX;
+            crop.cornerMidY = (pointY[0] + pointY[8]) / 2.0f - eyeY;
+            cropRecorder.record(crop, scratch.name);
+
+            EyeCenterEstimator estimator = scratch.getEstimator(estimatorType);
+            float[] c = scratch.center;
+            scratch.confidence = estimator.estimate(crop, c);
+
+            float cx = c[0]+eyeX, cy = c[1]+eyeY;
             if(rotate) {
                 // sin angle is opposite (eye corner y diff) divided by hypotenuse (PFL length calculated earlier)
-                double angle = Math.asin(((double)eyePoints.get(8).y - (double)eyePoints.get(0).y)/(double)PFL_pix);
-                c_abs = rotatePoint(c_abs, (float)-angle);
-                eyePoints = rotatePointList(eyePoints, (float)-angle);
-
-                eyeXPosList.clear();
-                eyeYPosList.clear();
-                for(PointF p: eyePoints) {
-                    eyeYPosList.add(p.y);
-                    eyeXPosList.add(p.x);
+                double angle = Math.asin(((double)pointY[8] - (double)pointY[0])/(double)PFL_pix);
+                // counterclockwise rotation by -angle
+                float beta = (float)-angle;
+                double cos = Math.cos(beta), sin = Math.sin(beta);
+                float x = cx;
+                cx = (float)(cos*x - sin*cy);
+                cy = (float)(sin*x + cos*cy);
+                for(int k = 0; k <= 15; k++) {
+                    x = pointX[k];
+                    pointX[k] = (float)(cos*x - sin*pointY[k]);
+                    pointY[k] = (float)(sin*x + cos*pointY[k]);
                 }
             }
 
-            float eyeMiddleY = eyePoints.get(0).y;
-            float eyeBottomY = findMax(eyeYPosList);
-            float eyeTopY = Math.min(findMin(eyeYPosList), eyeMiddleY - (eyeBottomY - eyeMiddleY));
+            float eyeMiddleY = pointY[0];
+            float eyeBottomY = findMax(pointY, 16);
+            float eyeTopY = Math.min(findMin(pointY, 16), eyeMiddleY - (eyeBottomY - eyeMiddleY));
             float eyeRealHeight = eyeBottomY - eyeTopY;
 
-            float eyeX_ratio = (c_abs.x - eyePoints.get(0).x)/(eyePoints.get(8).x - eyePoints.get(0).x);
-            float eyeY_ratio = (c_abs.y - eyeTopY)/eyeRealHeight;
-
-            if(draw) {
-                Paint eyePaint = new Paint();
-                Canvas eyeCanvas = new Canvas(eyeBitmap);
-                eyePaint.setARGB(255, 0, 255, 0);
-                MyLinkedList<CircleTemplateMatcher.Correlation> peakArea = circleTemplateMatcher.maxPeakArea;
-                if (peakArea != null) {
-                    Node<CircleTemplateMatcher.Correlation> corrNode = peakArea.getHeadNode();
-                    while (corrNode != null) {
-                        CircleTemplateMatcher.Correlation correlation = corrNode.data;
-                        eyeCanvas.drawPoint(correlation.point.x, correlation.point.y, eyePaint);
-                        corrNode = corrNode.next;
-                    }
-                    //eyeCanvas.drawCircle(c.x, c.y, 1, eyePaint);
-                }
-                eyePaint.setARGB(255, 255, 0, 0);
-                eyeCanvas.drawPoint(c.x, c.y, eyePaint);
-                eyeBitmap = Bitmap.createScaledBitmap(eyeBitmap, eyeWidth * 10, eyeHeight * 10, false);
-
-                Bitmap mutableFaceBitmap = faceBitmap.copy(faceBitmap.getConfig(), true);
-                Paint facePaint = new Paint();
-                Canvas faceCanvas = new Canvas(mutableFaceBitmap);
-                facePaint.setARGB(255, 50, 50, 255);
-                facePaint.setTextSize(60.0f);
-                facePaint.setFakeBoldText(true);
-                faceCanvas.drawText(String.format(Locale.getDefault(), "x=%.2f; y=%.2f", eyeX_ratio, eyeY_ratio), 0, 60, facePaint);
-                facePaint.setARGB(255, 255, 0, 0);
-                faceCanvas.drawCircle(c.x+eyeX, c.y+eyeY, 5.0f, facePaint);
-
-                FaceControlService service = FaceControlService.sharedServiceInst;
-                if (service != null) {
-                    synchronized (service.drawLock) {
-                        myDrawBitmap = mutableFaceBitmap;
-                    }
-                }
-            }
+            float eyeX_ratio = (cx - pointX[0])/(pointX[8] - pointX[0]);
+            float eyeY_ratio = (cy - eyeTopY)/eyeRealHeight;
+
+            if(overlay != null)
+                fillOverlay(overlay, scratch, estimator, eyeX, eyeY, eyeWidth, eyeHeight, eyeX_ratio, eyeY_ratio);
 
-            return new PointF(eyeX_ratio, eyeY_ratio);
+            ratio[0] = eyeX_ratio;
+            ratio[1] = eyeY_ratio;
+            return true;
         } else {
-            return null; //new PointF(Float.NaN, Float.NaN);
+            scratch.getEstimator(estimatorType).reset();
+            scratch.confidence = 0.0f;
+            return false;
+        }
+    }
+
+    // Before rotation the eye contour still sits in scratch.maskX/maskY (relative to the crop)
+    private void fillOverlay(DebugOverlaySnapshot.Eye overlay, EyeScratch scratch, EyeCenterEstimator estimator,
+                             int eyeX, int eyeY, int eyeWidth, int eyeHeight, float ratioX, float ratioY) {
+        for(int k = 0; k < DebugOverlaySnapshot.CONTOUR_POINTS; k++) {
+            overlay.contourX[k] = scratch.maskX[k] + eyeX;
+            overlay.contourY[k] = scratch.maskY[k] + eyeY;
+        }
+        overlay.cropX = eyeX;
+        overlay.cropY = eyeY;
+        overlay.cropWidth = eyeWidth;
+        overlay.cropHeight = eyeHeight;
+        overlay.pupilX = scratch.center[0] + eyeX;
+        overlay.pupilY = scratch.center[1] + eyeY;
+        overlay.ratioX = ratioX;
+        overlay.ratioY = ratioY;
+        overlay.confidence = scratch.confidence;
+
+        overlay.peakCount = 0;
+        CircleTemplateMatcher matcher = scratch.templateEstimator.circleTemplateMatcher;
+        int peakArea = matcher.maxPeakArea;
+        if(estimator == scratch.templateEstimator && peakArea >= 0) {
+            for(int p = matcher.areaHead[peakArea]; p >= 0 && overlay.peakCount < DebugOverlaySnapshot.MAX_PEAKS; p = matcher.nextInArea[p]) {
+                int corr = matcher.peaks[p];
+                overlay.peakX[overlay.peakCount] = matcher.corrX[corr] + eyeX;
+                overlay.peakY[overlay.peakCount] = matcher.corrY[corr] + eyeY;
+                overlay.peakCount++;
+            }
         }
+        overlay.valid = true;
     }
 
-    public PointF findLeftEyeCenter(boolean rotate) {
+    // Pupil position of each eye, relative to its corners (x) and lids (y), 0..1, goes into ratio;
+    // false if the eye is missing or (partly) outside the frame
+    public boolean findLeftEyeCenter(boolean rotate, float[] ratio) {
         FaceContour leftEyeContour = face.getContour(FaceContour.LEFT_EYE);
         if(leftEyeContour != null) {
-            return findEyeCenterGivenPoints(leftEyeContour.getPoints(), rotate, false);
+            DebugOverlaySnapshot snapshot = overlaySnapshot;
+            return findEyeCenterGivenPoints(leftEye, leftEyeContour.getPoints(), rotate, snapshot != null ? snapshot.left : null, ratio);
         } else {
-            return null; //new PointF(Float.NaN, Float.NaN);
+            leftEye.getEstimator(estimatorType).reset();
+            leftEye.confidence = 0.0f;
+            return false;
         }
     }
 
-    public PointF findRightEyeCenter(boolean rotate) {
+    public boolean findRightEyeCenter(boolean rotate, float[] ratio) {
         FaceContour rightEyeContour = face.getContour(FaceContour.RIGHT_EYE);
         if(rightEyeContour != null) {
-            return findEyeCenterGivenPoints(rightEyeContour.getPoints(), rotate,false);
+            DebugOverlaySnapshot snapshot = overlaySnapshot;
+            return findEyeCenterGivenPoints(rightEye, rightEyeContour.getPoints(), rotate, snapshot != null ? snapshot.right : null, ratio);
         } else {
-            return null; //new PointF(Float.NaN, Float.NaN);
+            rightEye.getEstimator(estimatorType).reset();
+            rightEye.confidence = 0.0f;
+            return false;
         }
     }
 
-    public PointF findMeanEyeCenter(boolean rotate) {
-        PointF leftEyeCenter, rightEyeCenter, meanEyeCenter;
-
-        leftEyeCenter = findLeftEyeCenter(rotate);
-        rightEyeCenter = findRightEyeCenter(rotate);
-
-        if(leftEyeCenter == null || rightEyeCenter == null)
-            return null;
-
-        meanEyeCenter = new PointF((leftEyeCenter.x+rightEyeCenter.x)/2.0f, (leftEyeCenter.y+rightEyeCenter.y)/2.0f);
-
-        /*
-        Bitmap mutableFaceBitmap = faceBitmap.copy(faceBitmap.getConfig(), true);
-        Paint facePaint = new Paint();
-        Canvas faceCanvas = new Canvas(mutableFaceBitmap);
-        facePaint.setARGB(255, 50, 50, 255);
-        facePaint.setTextSize(60.0f);
-        facePaint.setFakeBoldText(true);
-        faceCanvas.drawText(String.format(Locale.getDefault(), "L: x=%.2f; y=%.2f", meanEyeCenter.x, meanEyeCenter.y), 0, 60, facePaint);
-        //faceCanvas.drawText(String.format(Locale.getDefault(), "L: x=%.2f; y=%.2f", leftEyeCenter.x, leftEyeCenter.y), 0, 60, facePaint);
-        //faceCanvas.drawText(String.format(Locale.getDefault(), "R: x=%.2f; y=%.2f", rightEyeCenter.x, rightEyeCenter.y), 0, 120, facePaint);
-        FaceControlService service = FaceControlService.sharedServiceInst;
-        if (service != null) {
-            synchronized (service.drawLock) {
-                myDrawBitmap = mutableFaceBitmap;
-            }
-        }*/
+    // Left eye analysis for eyeExecutor, reused every frame; rotate is passed through leftEyeRotate
+    private volatile boolean leftEyeRotate;
+    private final Callable<Boolean> leftEyeTask = new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+            return findLeftEyeCenter(leftEyeRotate, leftEye.ratio);
+        }
+    };
 
-        return meanEyeCenter;
-    }
+    // Mean of both eyes' ratios into mean (x, y); false if either eye wasn't found
+    public boolean findMeanEyeCenter(boolean rotate, float[] mean) {
+        boolean leftFound, rightFound;
 
-    PointF rotatePoint(PointF p, float beta) { // counterclockwise rotation
-        return new PointF((float)(Math.cos(beta)*p.x - Math.sin(beta)*p.y), (float)(Math.sin(beta)*p.x + Math.cos(beta)*p.y));
-    }
+        if(trackingReset) {
+            trackingReset = false;
+            leftEye.templateEstimator.reset();
+            rightEye.templateEstimator.reset();
+            leftEye.gradientEstimator.reset();
+            rightEye.gradientEstimator.reset();
+        }
 
-    List<PointF> rotatePointList(List<PointF> list, float beta) {
-        List<PointF> list_out = new ArrayList<>();
-        for(PointF p : list) {
-            PointF p_out = rotatePoint(p, beta);
-            list_out.add(p_out);
+        if(parallelEyes) {
+            leftEyeRotate = rotate;
+            Future<Boolean> leftEyeFuture = getEyeExecutor().submit(leftEyeTask);
+            rightFound = findRightEyeCenter(rotate, rightEye.ratio);
+            // The left eye task writes leftEye and the overlay snapshot, so it must be done before we
+            // return, even if we get interrupted: it takes a few ms, wait it out and re-assert the interrupt
+            boolean interrupted = false;
+            leftFound = false;
+            while(true) {
+                try {
+                    leftFound = leftEyeFuture.get();
+                    break;
+                } catch (ExecutionException e) {
+                    Log.i(TAG, "Left eye analysis failed: " + e.getCause());
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        } else {
+            leftFound = findLeftEyeCenter(rotate, leftEye.ratio);
+            rightFound = findRightEyeCenter(rotate, rightEye.ratio);
         }
-        return list_out;
+
+        if(!leftFound || !rightFound)
+            return false;
+
+        mean[0] = (leftEye.ratio[0]+rightEye.ratio[0])/2.0f;
+        mean[1] = (leftEye.ratio[1]+rightEye.ratio[1])/2.0f;
+        return true;
     }
 }
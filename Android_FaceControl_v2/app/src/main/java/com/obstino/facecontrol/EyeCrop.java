@@ -0,0 +1,17 @@
+package com.obstino.facecontrol;
+
+// One preprocessed eye (see EyePreprocessor) as handed to an EyeCenterEstimator, in crop coordinates.
+// Pure Java so estimators can be run on recorded crops off-device.
+class EyeCrop {
+    final IntRaster gray = new IntRaster();     // 0..255 (255 outside the eye contour)
+    final ByteRaster mask = new ByteRaster();   // 1 inside the eye contour, 0 outside; same size as gray
+    float cornerMidX;           // midpoint of the eye corners (contour points 0 and 8)
+    float cornerMidY;
+    int pfl;                    // palpebral fissure length (corner to corner) in pixels
+
+    // Packs gray and mask to width x height (buffers are reused)
+    void reset(int width, int height) {
+        gray.reset(width, height);
+        mask.reset(width, height);
+    }
+}
@@ -0,0 +1,71 @@
+package com.obstino.facecontrol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Binary PGM (P5) file format for eye crops, shared by EyeCropRecorder (writes them on the device)
+// and the offline tools that read them back (unit test harness, benchmarks module).
+// The crop geometry goes into a header comment: "# pfl=<int> corner_mid=<x>,<y>"; pixels outside
+// the eye contour are 255, so the mask is recovered as gray < 255.
+class EyeCropPgm {
+    static void write(EyeCrop crop, OutputStream out) throws IOException {
+        String header = String.format(Locale.US, "P5\n# pfl=%d corner_mid=%.2f,%.2f\n%d %d\n255\n",
+                crop.pfl, crop.cornerMidX, crop.cornerMidY, crop.gray.width, crop.gray.height);
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+        for(int y = 0; y < crop.gray.height; y++) {
+            for(int x = 0; x < crop.gray.width; x++)
+                out.write(crop.gray.get(x, y));
+        }
+    }
+
+    static EyeCrop read(InputStream in) throws IOException {
+        EyeCrop crop = new EyeCrop();
+        List<String> tokens = new ArrayList<>();
+        while(tokens.size() < 4) {
+            String line = readLine(in);
+            if(line == null)
+                throw new IOException("Truncated PGM header");
+            if(line.startsWith("#")) {
+                for(String field : line.substring(1).trim().split(" ")) {
+                    if(field.startsWith("pfl="))
+                        crop.pfl = Integer.parseInt(field.substring(4));
+                    else if(field.startsWith("corner_mid=")) {
+                        String[] xy = field.substring(11).split(",");
+                        crop.cornerMidX = Float.parseFloat(xy[0]);
+                        crop.cornerMidY = Float.parseFloat(xy[1]);
+                    }
+                }
+                continue;
+            }
+            tokens.addAll(Arrays.asList(line.trim().split("\\s+")));
+        }
+        if(!tokens.get(0).equals("P5"))
+            throw new IOException("Not a binary PGM");
+
+        int width = Integer.parseInt(tokens.get(1));
+        int height = Integer.parseInt(tokens.get(2));
+        crop.reset(width, height);
+        for(int k = 0; k < width * height; k++) {
+            int value = in.read();
+            if(value < 0)
+                throw new IOException("Truncated PGM pixels");
+            crop.gray.data[k] = value;
+            crop.mask.data[k] = (byte)(value < 255 ? 1 : 0);
+        }
+        return crop;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while((c = in.read()) >= 0 && c != '\n')
+            sb.append((char)c);
+        return (c < 0 && sb.length() == 0) ? null : sb.toString();
+    }
+}
@@ -0,0 +1,60 @@
+package com.obstino.facecontrol;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+// Debug aid: saves preprocessed eye crops as binary PGM files, so the eye center estimators can be
+// compared offline on real eyes (EyeCenterEstimatorTest in the unit tests and the benchmarks
+// module read them). File format: see EyeCropPgm.
+// At most MAX_CROPS files per start(), both eyes may record concurrently.
+class EyeCropRecorder {
+    String TAG = "FaceControl.EyeCropRecorder";
+
+    static final int MAX_CROPS = 300;
+
+    private File dir;
+    private int count;
+
+    synchronized void start(File dir) {
+        if(dir == null || (!dir.isDirectory() && !dir.mkdirs())) {
+            Log.i(TAG, "Can't record eye crops into " + dir);
+            return;
+        }
+        this.dir = dir;
+        count = 0;
+        Log.i(TAG, "Recording eye crops into " + dir);
+    }
+
+    synchronized void stop() {
+        dir = null;
+    }
+
+    synchronized boolean isRecording() {
+        return dir != null;
+    }
+
+    synchronized void record(EyeCrop crop, String eyeName) {
+        if(dir == null)
+            return;
+        if(count >= MAX_CROPS) {
+            Log.i(TAG, "Recorded " + count + " eye crops, stopping");
+            dir = null;
+            return;
+        }
+
+        File file = new File(dir, String.format(Locale.US, "eye_%d_%04d_%s.pgm", System.currentTimeMillis(), count, eyeName));
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            EyeCropPgm.write(crop, out);
+            count++;
+        } catch (IOException e) {
+            Log.i(TAG, "Can't write " + file + ": " + e.getMessage() + ", stopping");
+            dir = null;
+        }
+    }
+}
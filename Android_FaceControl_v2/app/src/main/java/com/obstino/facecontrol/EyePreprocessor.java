@@ -0,0 +1,117 @@
+package com.obstino.facecontrol;
+
+// Turns an eye crop into the gray image CircleTemplateMatcher searches: pixels inside the eye
+// contour get a local contrast stretch and are converted to gray, everything outside is white.
+// The contour polygon is rasterized with a scanline fill straight into a reusable mask (pixel
+// centers inside the polygon, like a non-antialiased Canvas fill), and the contrast curve, which
+// only depends on the channel value and the masked mean, goes through per-channel lookup tables
+// instead of two Math.pow calls per channel and pixel.
+// Works on rasters of any stride (e.g. views into a bigger frame).
+// Buffers only grow; one instance per eye if eyes are processed concurrently.
+class EyePreprocessor {
+    private float[] crossings = new float[0];   // scanline/polygon edge intersections of one row
+    private final double[] lutR = new double[256];
+    private final double[] lutG = new double[256];
+    private final double[] lutB = new double[256];
+
+    // Fills mask (1 inside, 0 outside) with the polygon (polyX/polyY, first n points, mask coordinates)
+    void rasterizeMask(float[] polyX, float[] polyY, int n, ByteRaster mask) {
+        int width = mask.width, height = mask.height;
+        byte[] maskData = mask.data;
+        if(crossings.length < n)
+            crossings = new float[n];
+
+        for(int y = 0; y < height; y++) {
+            float sampleY = y + 0.5f;
+            int crossingCount = 0;
+            for(int i = 0, j = n - 1; i < n; j = i++) {
+                float y0 = polyY[j], y1 = polyY[i];
+                if((y0 <= sampleY && y1 > sampleY) || (y1 <= sampleY && y0 > sampleY)) {
+                    float x = polyX[j] + (sampleY - y0) / (y1 - y0) * (polyX[i] - polyX[j]);
+                    // insertion sort, there's only a handful per row
+                    int k = crossingCount++;
+                    while(k > 0 && crossings[k - 1] > x) {
+                        crossings[k] = crossings[k - 1];
+                        k--;
+                    }
+                    crossings[k] = x;
+                }
+            }
+
+            int rowStart = mask.offset + y * mask.stride;
+            for(int x = 0; x < width; x++)
+                maskData[rowStart + x] = 0;
+            // even-odd pairs; the eye contour doesn't self-intersect, so that equals the winding fill
+            for(int k = 0; k + 1 < crossingCount; k += 2) {
+                // pixel x is inside if its center x+0.5 is in [crossings[k], crossings[k+1])
+                int x0 = Math.max((int)Math.ceil(crossings[k] - 0.5f), 0);
+                int x1 = Math.min((int)Math.ceil(crossings[k + 1] - 0.5f), width);
+                for(int x = x0; x < x1; x++)
+                    maskData[rowStart + x] = 1;
+            }
+        }
+    }
+
+    // Contrast adjustment I' = I^((1 + mean - I)^alpha) per channel (I in 0..1, mean over the masked
+    // pixels), then grayscale; writes 0..255 gray values into grayOut, 255 outside the mask.
+    // image (ARGB), mask (see rasterizeMask()) and grayOut have the same size.
+    void applyContrast(IntRaster image, ByteRaster mask, double alpha, IntRaster grayOut) {
+        int width = image.width, height = image.height;
+        int[] pixels = image.data;
+        byte[] maskData = mask.data;
+        int[] out = grayOut.data;
+        double I_mean_r = 0.0;
+        double I_mean_g = 0.0;
+        double I_mean_b = 0.0;
+        int N = 0;
+
+        for(int y = 0; y < height; y++) {
+            int pixRow = image.offset + y * image.stride;
+            int maskRow = mask.offset + y * mask.stride;
+            for(int x = 0; x < width; x++) {
+                if(maskData[maskRow + x] != 0) {
+                    int pix = pixels[pixRow + x];
+                    I_mean_r += ((pix >> 16) & 0xFF)/255.0;
+                    I_mean_g += ((pix >> 8) & 0xFF)/255.0;
+                    I_mean_b += (pix & 0xFF)/255.0;
+                    N++;
+                }
+            }
+        }
+        if(N == 0) {
+            grayOut.fill(255);
+            return;
+        }
+
+        I_mean_r /= (double)N;
+        I_mean_g /= (double)N;
+        I_mean_b /= (double)N;
+        fillContrastTable(lutR, I_mean_r, alpha);
+        fillContrastTable(lutG, I_mean_g, alpha);
+        fillContrastTable(lutB, I_mean_b, alpha);
+
+        for(int y = 0; y < height; y++) {
+            int pixRow = image.offset + y * image.stride;
+            int maskRow = mask.offset + y * mask.stride;
+            int outRow = grayOut.offset + y * grayOut.stride;
+            for(int x = 0; x < width; x++) {
+                if(maskData[maskRow + x] != 0) {
+                    int pix = pixels[pixRow + x];
+                    double I_r = lutR[(pix >> 16) & 0xFF];
+                    double I_g = lutG[(pix >> 8) & 0xFF];
+                    double I_b = lutB[pix & 0xFF];
+                    out[outRow + x] = (int)(I_r + I_g + I_b)/3;   // convert to grayscale
+                } else {
+                    out[outRow + x] = 255;
+                }
+            }
+        }
+    }
+
+    private static void fillContrastTable(double[] lut, double I_mean, double alpha) {
+        for(int value = 0; value < 256; value++) {
+            double I = (double)value/255.0;
+            lut[value] = Math.pow(I, Math.pow(1.0 + I_mean - I, alpha)) * 255.0;
+        }
+    }
+}
@@ -19,7 +19,7 @@ import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Matrix;
+import android.graphics.ImageFormat;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PixelFormat;
@@ -49,55 +49,25 @@ import android.view.accessibility.AccessibilityWindowInfo;
 import androidx.annotation.NonNull;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.Task;
 import com.google.mlkit.vision.common.InputImage;
 import com.google.mlkit.vision.face.Face;
 import com.google.mlkit.vision.face.FaceDetection;
 import com.google.mlkit.vision.face.FaceDetector;
 import com.google.mlkit.vision.face.FaceDetectorOptions;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Stack;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
-enum ProcessingImage {
-    // When .ready, onImageAvailable gives us the Bitmap and sets status to .preprocessing
-// When we detect .preprocessing, we start ML code; when ML code finishes, it sets status to .processing
-// When we are .processing, we do some image and feature processing and then change status to .drawing
-    ready,  // ready to receive new Bitmap object
-    preprocessing,  // signal to start ML code
-    processing, // processing the Bitmap
-    drawing,    // drawing the Bitmap
-    done    // done drawing the Bitmap
-}
-
-enum SwitchAction {
-    select,   // used to initiate actions (scan start & stop scan line, and also select )
-    next,   // used to select menu items (home, back, recents, notifications, scroll, zoom,...)
-            // NOTE: If no switch is assigned to menu, it will auto-select (scan) from items,
-            // until it gets to end of list (then menu disappears)
-    prev,   // either opens menu or selects previous item
-    scroll_down,
-    scroll_up,
-    scroll_left,
-    scroll_right,
-    zoom_in,
-    zoom_out,
-    rotate_left,
-    rotate_right,
-    home,
-    back,
-    recents,
-    notifications,
-    settings,
-    assistant,
-    volume_up,
-    volume_down
-}
 
 class SwitchId {
     String sharedPrefsName;	// e.g. "selectswitch_id"
@@ -139,6 +109,16 @@ public class FaceControlService extends AccessibilityService {
     Context context;
     ElementSelector elementSelector;
     SharedPreferences prefs;
+    // compiled switch -> action bindings, recompiled when a binding preference changes
+    final AtomicReference<SwitchBindings> switchBindings = new AtomicReference<>();
+    // SharedPreferences only keeps a weak reference to its listeners, so this one has to be a field
+    final SharedPreferences.OnSharedPreferenceChangeListener bindingsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            if(SwitchBindings.isBindingKey(key))
+                reloadSwitchBindings();
+        }
+    };
 
     boolean screenOff = false;
     boolean activityForeground = false; // disable switch control when GestureTestActivity is opened
@@ -151,8 +131,15 @@ public class FaceControlService extends AccessibilityService {
     boolean pauseSwitchControl = false; // switch control paused if true
 
     boolean lowResMode = false;
-
-    Thread cameraThread;
+    boolean yuvCapture = true;  // YUV_420_888 capture (no JPEG encode/decode); JPEG is used as fallback
+    boolean previewEnabled = false; // calibration screen shows the camera preview (drawBitmap)
+    boolean pipelinedCapture = true;    // overlap capture, ML Kit and recognition of consecutive frames
+
+    volatile Thread cameraThread;       // set under cameraControlLock, cleared by the camera thread as it exits
+    // Serializes startCamera()/stopCamera() (and check-then-act on cameraThread): they're called from
+    // the start/stop threads, the face test runnables and capture format restarts. Not 'lock', those
+    // calls wait for the camera thread, which needs 'lock' to run.
+    final Object cameraControlLock = new Object();
     //boolean started = false;
 
     Thread startStateThread;
@@ -162,10 +149,39 @@ public class FaceControlService extends AccessibilityService {
     boolean initStop = false;
 
     final Object lock = new Object();
-    Bitmap cameraBitmap = null;
-    Bitmap cameraScaledBitmap = null;
+    // Frame pipeline: capture (onImageAvailable) -> detect (ML Kit) -> recognize (Thr_Camera).
+    // Each stage hands the frame to the next one: capture submits it to ML Kit, ML Kit's callback
+    // puts it into recognizeQueue, Thr_Camera blocks on that queue.
+    // In pipelined mode the stages work on consecutive frames at the same time: frame N+1 is
+    // captured while N is in ML Kit and N-1 is being recognized. ML Kit only gets one frame at a
+    // time, a frame captured meanwhile waits in pendingFrame and is replaced if a newer one
+    // arrives (latest frame wins), same for frames waiting in recognizeQueue.
+    static final int SERIAL_FRAMES_IN_FLIGHT = 1;
+    static final int PIPELINED_FRAMES_IN_FLIGHT = 3;    // one per stage
+    FramePool framePool = new FramePool(FramePool.DEFAULT_SIZE);
+    final BlockingQueue<CameraFrame> recognizeQueue = new LinkedBlockingQueue<>();
+    final CameraFrame stopSignal = new CameraFrame(null);  // put into recognizeQueue by stopCamera()
+    int maxFramesInFlight = PIPELINED_FRAMES_IN_FLIGHT;    // guarded by lock
+    int framesInFlight = 0;             // frames between capture and end of recognize, guarded by lock
+    boolean detectorBusy = false;       // a frame is in ML Kit, guarded by lock
+    CameraFrame pendingFrame = null;    // captured frame waiting for ML Kit, guarded by lock
+    PipelineStats pipelineStats = new PipelineStats();
+    GestureEventQueue gestureEvents;    // recognized gestures on their way to the action thread
+    FrameRateGovernor frameRateGovernor = new FrameRateGovernor();
+    FaceRoiTracker faceRoiTracker = new FaceRoiTracker();
+    final Rect captureRoi = new Rect();     // only used by the capture stage
+    long minFrameIntervalNanos = 0;     // software frame skipping while idle, guarded by lock
+    long lastAcceptedCaptureTime = 0;   // guarded by lock
+    // Camera session: one run of Thr_Camera. Frames are tagged with the session they were captured in;
+    // frames of an earlier session (still in ML Kit when the camera stopped) are dropped on the way,
+    // their faces and sensor timestamps mean nothing to the filters of the next session.
+    int cameraSession = 0;              // guarded by lock
+    boolean cameraSessionActive = false;    // capture accepts frames, guarded by lock
+    CameraFrame cameraFrame = null;     // frame owned by the recognize stage
+    CameraFrame previewFrame = null;    // frame retained by the calibration preview (drawBitmap belongs to it)
+    DebugOverlayRenderer overlayRenderer;   // builds drawBitmap from the recognized frames, off the camera thread
+    volatile boolean debugOverlay = false;  // preview shows what the eye analysis found
     Bitmap eyeBitmap = null;
-    ProcessingImage processingImage;
     List<Face> faceList;
 
     int sensorOrientationDegrees;
@@ -186,17 +202,62 @@ public class FaceControlService extends AccessibilityService {
         context = this;
         sharedServiceInst = this;
         prefs = getSharedPreferences(SettingsActivity.MY_PREFS_NAME, Context.MODE_PRIVATE);
+        switchBindings.set(SwitchBindings.compile(prefs));
+        prefs.registerOnSharedPreferenceChangeListener(bindingsListener);
         registerScreenBroadcast();
         getScreenResolution();
         createElementSelector();
         //runStartStateThread(); // must run this *after* creating elementSelector
         gestureRecognizer = new GestureRecognizer(context);
+        gestureEvents = new GestureEventQueue(new GestureEventQueue.Sink() {
+            @Override
+            public void onGesture(SettingsActivity.SwitchElement.SwitchType type, long timestampNanos) {
+                executeGesture(type);
+            }
+        }, pipelineStats);
+        gestureEvents.start();
+        overlayRenderer = new DebugOverlayRenderer(new DebugOverlayRenderer.Listener() {
+            @Override
+            public void onPreviewRendered(CameraFrame frame, Bitmap bitmap) {
+                // the preview keeps its frame until the next one replaces it, so the pool won't
+                // overwrite the bitmap that's on screen
+                CameraFrame oldFrame;
+                synchronized (drawLock) {
+                    boolean preview;
+                    synchronized (lock) {
+                        preview = previewEnabled;
+                    }
+                    if(preview) {
+                        drawBitmap = bitmap;
+                        oldFrame = previewFrame;
+                        previewFrame = frame;
+                    } else {
+                        // rendered while the preview was being turned off (setPreviewEnabled()
+                        // releases previewFrame after clearing the flag)
+                        oldFrame = frame;
+                    }
+                }
+                if(oldFrame != null)
+                    oldFrame.release();
+            }
+        });
         addView();
 
         setLowResMode(prefs.getBoolean("LowResMode", GestureCalibrationActivity.DEFAULT_LOWRES_MODE));
+        setYuvCapture(prefs.getBoolean("YuvCapture", GestureCalibrationActivity.DEFAULT_YUV_CAPTURE));
+        setPipelinedCapture(prefs.getBoolean("PipelinedCapture", GestureCalibrationActivity.DEFAULT_PIPELINED_CAPTURE));
+        setFaceTracking(prefs.getBoolean("FaceTracking", GestureCalibrationActivity.DEFAULT_FACE_TRACKING));
+        setParallelEyes(prefs.getBoolean("ParallelEyes", GestureCalibrationActivity.DEFAULT_PARALLEL_EYES));
+        setPupilTracking(prefs.getBoolean("PupilTracking", GestureCalibrationActivity.DEFAULT_PUPIL_TRACKING));
+        setEyeCenterEstimator(prefs.getString("EyeCenterEstimator", GestureCalibrationActivity.DEFAULT_EYE_CENTER_ESTIMATOR));
+        setEyeCropRecording(prefs.getBoolean("RecordEyeCrops", GestureCalibrationActivity.DEFAULT_RECORD_EYE_CROPS));
+        setDebugOverlay(prefs.getBoolean("DebugOverlay", GestureCalibrationActivity.DEFAULT_DEBUG_OVERLAY));
         setAssistantPause(prefs.getBoolean("AssistantPause", SettingsActivity.DEFAULT_ASSISTANTPAUSE));
         setEyesClosedPause(prefs.getBoolean("EyesClosedPause", SettingsActivity.DEFAULT_EYESCLOSEDPAUSE));
 
+        // load the ML Kit model now, not when the user presses start
+        prepareFaceDetector();
+
         textToSpeech = new TextToSpeech(context, onInitListener);
         // AccessibilityServiceInfo.FLAG_RETRIEVE_INTERACTIVE_WINDOWS
         // now retrieve window content
@@ -208,12 +269,28 @@ public class FaceControlService extends AccessibilityService {
     @Override
     public void onDestroy() {
         unregisterReceiver(screenBroadcastReceiver);
+        if(prefs != null)
+            prefs.unregisterOnSharedPreferenceChangeListener(bindingsListener);
 
         if (textToSpeech != null) {
             textToSpeech.stop();
             textToSpeech.shutdown();
         }
 
+        synchronized (lock) {
+            if(detector != null) {
+                detector.close();
+                detector = null;
+            }
+        }
+
+        if(gestureRecognizer != null)
+            gestureRecognizer.eyeCenterFinder.shutdown();
+        if(overlayRenderer != null)
+            overlayRenderer.shutdown();
+        if(gestureEvents != null)
+            gestureEvents.shutdown();
+
         super.onDestroy();
     }
 
@@ -345,6 +422,65 @@ public class FaceControlService extends AccessibilityService {
                 clearPauseState();
             }
         }
+        updateDetectionPlan();
+    }
+
+    // Called on the main thread (preference listener); the detection path picks the new table up
+    // with its next gesture
+    void reloadSwitchBindings() {
+        switchBindings.set(SwitchBindings.compile(prefs));
+        Log.i(TAG, "Switch bindings reloaded");
+        updateDetectionPlan();
+    }
+
+    // Called by the recognize stage for a detected gesture; the actions run on the gesture action
+    // thread (executeGesture), so recognition doesn't wait for the ElementSelector
+    void queueGesture(SettingsActivity.SwitchElement.SwitchType type) {
+        if(elementSelector == null || gestureEvents == null)
+            return;
+        if(!gestureEvents.offer(type, SystemClock.elapsedRealtimeNanos()))
+            Log.i(TAG, "Gesture queue full, dropped " + type);
+    }
+
+    // Fires every action bound to a gesture in the selector's current context (gesture action thread;
+    // the context is looked up here, so an earlier gesture that changed it is taken into account)
+    void executeGesture(SettingsActivity.SwitchElement.SwitchType type) {
+        ElementSelector selector = elementSelector;
+        if(selector == null)
+            return;
+        SwitchAction[] actions = switchBindings.get().forGesture(type, selector.getBindingContext());
+        for(SwitchAction action : actions)
+            selector.activateSwitch(action);
+    }
+
+    // Re-derives which gestures we detect (and which ML Kit options that takes) from the switch
+    // bindings; call whenever bindings, eyesClosedPause or the calibration screen state change.
+    // Rebuilds the detector if the ML Kit options changed.
+    void updateDetectionPlan() {
+        DetectionPlan newPlan;
+        boolean rebuildDetector;
+        synchronized (lock) {
+            newPlan = DetectionPlan.fromBindings(switchBindings.get(), eyesClosedPause, previewEnabled);
+            rebuildDetector = detector != null && !newPlan.sameDetectorOptions(detectionPlan);
+            detectionPlan = newPlan;
+        }
+        Log.i(TAG, "Detection plan: " + newPlan);
+
+        // gestures that weren't computed have stale filter state, charge everything again
+        if(gestureRecognizer != null)
+            gestureRecognizer.firstRun = true;
+
+        if(rebuildDetector) {
+            FaceDetector oldDetector;
+            synchronized (lock) {
+                oldDetector = detector;
+                detector = null;
+                detectorWarm = false;
+            }
+            // frames still in the old detector fail and get dropped (see startDetector)
+            oldDetector.close();
+            prepareFaceDetector();
+        }
     }
 
     void setLowResMode(boolean mode) {
@@ -353,6 +489,101 @@ public class FaceControlService extends AccessibilityService {
         }
     }
 
+    void setPipelinedCapture(boolean mode) {
+        // takes effect with the next captured frame, frames already in flight just finish
+        synchronized(lock) {
+            pipelinedCapture = mode;
+            maxFramesInFlight = mode ? PIPELINED_FRAMES_IN_FLIGHT : SERIAL_FRAMES_IN_FLIGHT;
+        }
+    }
+
+    void setFaceTracking(boolean mode) {
+        faceRoiTracker.setEnabled(mode);
+    }
+
+    void setParallelEyes(boolean mode) {
+        if(gestureRecognizer != null)
+            gestureRecognizer.eyeCenterFinder.setParallelEyes(mode);
+    }
+
+    void setPupilTracking(boolean mode) {
+        if(gestureRecognizer != null)
+            gestureRecognizer.eyeCenterFinder.setPupilTracking(mode);
+    }
+
+    // name of an EyeCenterFinder.EstimatorType
+    void setEyeCenterEstimator(String name) {
+        EyeCenterFinder.EstimatorType type;
+        try {
+            type = EyeCenterFinder.EstimatorType.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            Log.i(TAG, "Unknown eye center estimator " + name);
+            type = EyeCenterFinder.EstimatorType.template;
+        }
+        if(gestureRecognizer != null)
+            gestureRecognizer.eyeCenterFinder.setEstimatorType(type);
+    }
+
+    void setEyeCropRecording(boolean mode) {
+        if(gestureRecognizer == null)
+            return;
+        if(mode)
+            gestureRecognizer.eyeCenterFinder.cropRecorder.start(getExternalFilesDir("eyecrops"));
+        else
+            gestureRecognizer.eyeCenterFinder.cropRecorder.stop();
+    }
+
+    void setDebugOverlay(boolean mode) {
+        debugOverlay = mode;
+    }
+
+    void setYuvCapture(boolean mode) {
+        synchronized(lock) {
+            if(yuvCapture == mode)
+                return;
+            yuvCapture = mode;
+        }
+
+        // capture format is chosen when opening the camera, so reopen it if it's running; checked
+        // again under cameraControlLock, a start/stop may be on its way
+        if(cameraThread != null) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (cameraControlLock) {
+                        if(cameraThread == null)
+                            return;
+                        Log.i(TAG, "Capture format changed, restarting camera");
+                        stopCamera();
+                        startCamera();
+                    }
+                }
+            });
+            thread.start();
+        }
+    }
+
+    void setPreviewEnabled(boolean enabled) {
+        synchronized (lock) {
+            previewEnabled = enabled;
+        }
+        // calibration screen turns all gestures on
+        updateDetectionPlan();
+
+        if(!enabled) {
+            // give the preview frames back to the pool (drawBitmap is only kept for its size)
+            if(overlayRenderer != null)
+                overlayRenderer.clear();
+            CameraFrame oldFrame;
+            synchronized (drawLock) {
+                oldFrame = previewFrame;
+                previewFrame = null;
+            }
+            if(oldFrame != null)
+                oldFrame.release();
+        }
+    }
+
     void setActivityForeground(boolean foreground) {
         synchronized (lock) {
             activityForeground = foreground;
@@ -477,24 +708,11 @@ public class FaceControlService extends AccessibilityService {
                     return;
                 }
             } else {
-                ArrayList<Integer> cameraValues = new ArrayList<>();
-                cameraValues.add(SettingsActivity.SwitchElement.SwitchType.smile.getValue());
-                cameraValues.add(SettingsActivity.SwitchElement.SwitchType.eyebrow.getValue());
-                cameraValues.add(SettingsActivity.SwitchElement.SwitchType.left_wink.getValue());
-                cameraValues.add(SettingsActivity.SwitchElement.SwitchType.right_wink.getValue());
-                cameraValues.add(SettingsActivity.SwitchElement.SwitchType.look_left.getValue());
-                cameraValues.add(SettingsActivity.SwitchElement.SwitchType.look_right.getValue());
-                cameraValues.add(SettingsActivity.SwitchElement.SwitchType.mouth_open.getValue());
-
-                for (SettingsActivity.ActionSwitch actionSwitch : SettingsActivity.actionSwitchArray) {
-                    int switchIdNumber = prefs.getInt(actionSwitch.sharedPrefsName, actionSwitch.sharedPrefsDefault);
-                    if (cameraValues.contains(switchIdNumber)) {
-                        Log.i(TAG, "Yes we have a camera switch");
-                        if(!startCamera()) {
-                            handleCameraError(); // send error broadcast
-                            return;
-                        }
-                        break;
+                if(switchBindings.get().usesCamera()) {
+                    Log.i(TAG, "Yes we have a camera switch");
+                    if(!startCamera()) {
+                        handleCameraError(); // send error broadcast
+                        return;
                     }
                 }
             }
@@ -566,18 +784,20 @@ public class FaceControlService extends AccessibilityService {
         @Override
         public void run() {
             if(startState == StartState.started) {
-                if(cameraThread != null) {
-                    testReturnState = TestReturnState.none;
-                    sendBroadcastMessage(MainActivity.MSG_FACETEST_STARTED);
-                }
-                else {
-                    if(startCamera()) {
-                        testReturnState = TestReturnState.stopcamera;
+                synchronized (cameraControlLock) {
+                    if(cameraThread != null) {
+                        testReturnState = TestReturnState.none;
                         sendBroadcastMessage(MainActivity.MSG_FACETEST_STARTED);
                     }
                     else {
-                        testReturnState = TestReturnState.none;
-                        sendBroadcastMessage(MainActivity.MSG_CAMERAOFF);
+                        if(startCamera()) {
+                            testReturnState = TestReturnState.stopcamera;
+                            sendBroadcastMessage(MainActivity.MSG_FACETEST_STARTED);
+                        }
+                        else {
+                            testReturnState = TestReturnState.none;
+                            sendBroadcastMessage(MainActivity.MSG_CAMERAOFF);
+                        }
                     }
                 }
             } else {
@@ -614,6 +834,12 @@ public class FaceControlService extends AccessibilityService {
     };
 
     boolean startCamera() {
+        synchronized (cameraControlLock) {
+            return startCameraLocked();
+        }
+    }
+
+    private boolean startCameraLocked() {
         if(cameraThread == null) {
             // put cameraState to 'ready'... continue when it changes to 'opened' or 'error'
             cameraState = CameraState.ready;
@@ -655,9 +881,16 @@ public class FaceControlService extends AccessibilityService {
     }
 
     void stopCamera() {
+        synchronized (cameraControlLock) {
+            stopCameraLocked();
+        }
+    }
+
+    private void stopCameraLocked() {
         if(cameraThread != null) {
             Log.i(TAG, "setting initStop and waiting for thread to finish");
             initStop = true;
+            recognizeQueue.offer(stopSignal);
 
             // wait for camera to stop
             while(cameraThread != null) {
@@ -667,6 +900,7 @@ public class FaceControlService extends AccessibilityService {
                     e.printStackTrace();
                 }
             }
+            endCameraSession();
             cameraState = CameraState.ready;
             Log.i(TAG, "thread finished");
         } else {
@@ -690,11 +924,11 @@ public class FaceControlService extends AccessibilityService {
         switch(event.getAction()) {
             case KeyEvent.ACTION_DOWN: {
                 int keyId = event.getKeyCode();
-                for(SettingsActivity.ActionSwitch actionSwitch: SettingsActivity.actionSwitchArray) {
-                    if (keyId == prefs.getInt(actionSwitch.sharedPrefsName, actionSwitch.sharedPrefsDefault)) {
-                        elementSelector.activateSwitch(actionSwitch.switchAction);
-                        return true;
-                    }
+                SwitchAction[] actions = switchBindings.get().forKey(keyId, elementSelector.getBindingContext());
+                if(actions.length > 0) {
+                    for(SwitchAction action : actions)
+                        elementSelector.activateSwitch(action);
+                    return true;
                 }
 
                 for(SettingsActivity.ActionSwitch actionSwitch: SettingsActivity.actionSwitchArray) {
@@ -715,11 +949,8 @@ public class FaceControlService extends AccessibilityService {
 
             case KeyEvent.ACTION_UP: {
                 int keyId = event.getKeyCode();
-                for(SettingsActivity.ActionSwitch actionSwitch: SettingsActivity.actionSwitchArray) {
-                    int switchIdNumber = prefs.getInt(actionSwitch.sharedPrefsName, actionSwitch.sharedPrefsDefault);
-                    if(switchIdNumber == keyId)
-                        return true;
-                }
+                if(switchBindings.get().forKey(keyId, elementSelector.getBindingContext()).length > 0)
+                    return true;
             } break;
         }
         return super.onKeyEvent(event);
@@ -736,11 +967,21 @@ public class FaceControlService extends AccessibilityService {
             int frameCounter;
             long time1, time2;
 
+            startupTimer.start();
+            // normally already done at onServiceConnected; otherwise this runs while the camera opens
+            prepareFaceDetector();
+
             gestureRecognizer.firstRun = true;
             gestureRecognizer.g_FPS = 0;
+            gestureRecognizer.resetFrameTimestamp();
+
+            int imageFormat;
+            synchronized (lock) {
+                imageFormat = yuvCapture ? ImageFormat.YUV_420_888 : ImageFormat.JPEG;
+            }
 
             CameraCapture cameraCapture = new CameraCapture(getApplicationContext());
-            boolean ret = cameraCapture.openCamera(onImageAvailableListener);
+            boolean ret = cameraCapture.openCamera(onImageAvailableListener, imageFormat);
             if(!ret) {
                 cameraState = CameraState.error;
                 cameraThread = null;
@@ -748,56 +989,88 @@ public class FaceControlService extends AccessibilityService {
             } else {
                 cameraState = CameraState.opened;
             }
+            startupTimer.mark(StartupTimer.CAMERA_OPENED);
 
             sensorOrientationDegrees = cameraCapture.getSensorOrientationDegrees();
-            cameraCapture.startRepeatCapture();
+            Log.i(TAG, "Capturing in " + (cameraCapture.getImageFormat() == ImageFormat.YUV_420_888 ? "YUV" : "JPEG") + " format");
 
-            initFaceDetector();
-
-            processingImage = ProcessingImage.ready;
             frameCounter = 0;
             time1 = time2 = SystemClock.elapsedRealtime();
+            pipelineStats.reset();
+            frameRateGovernor.reset();
+            faceRoiTracker.reset();
+            synchronized (lock) {
+                minFrameIntervalNanos = frameRateGovernor.getMinFrameIntervalNanos();
+            }
+
+            final int session = beginCameraSession();
+
+            // the detector exists at this point (prepareFaceDetector), though it may still be warming up
+            cameraCapture.startRepeatCapture();
 
             while(true) {
-                // Wait until we have an image to process (todo: alternatively make a looper)
-                if(initStop) {
+                // Recognize stage: wait until ML Kit hands us a frame (or stopCamera() wakes us up)
+                CameraFrame frame;
+                try {
+                    frame = recognizeQueue.take();
+                } catch (InterruptedException e) {
+                    // nobody is supposed to interrupt us: stop, and keep the interrupt for whoever asked
+                    Thread.currentThread().interrupt();
+                    frame = stopSignal;
+                }
+
+                if(frame == stopSignal || initStop) {
                     Log.i(TAG, "Stopping camera thread");
+                    synchronized (lock) {
+                        cameraSessionActive = false;    // capture stage stops taking frames
+                    }
                     cameraCapture.stop();
+                    if(frame != stopSignal)
+                        finishFrame(frame);
+                    // frames ML Kit already gave us are dropped; ones still in ML Kit are dropped by
+                    // their callback once the session ended (stopCamera)
+                    while((frame = recognizeQueue.poll()) != null) {
+                        if(frame != stopSignal)
+                            finishFrame(frame);
+                    }
                     initStop = false;
                     cameraThread = null;
                     break;
                 }
 
-                while(true) {
-                    synchronized (lock) {
-                        if(processingImage == ProcessingImage.preprocessing)
-                            break;
-                    }
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+                if(frame.session != session) {
+                    // an earlier session's frame that got past its ML Kit callback check while
+                    // that session was ending; never let it reach processImage()
+                    Log.i(TAG, "Dropping frame of camera session " + frame.session + " in session " + session);
+                    finishFrame(frame);
+                    continue;
                 }
 
-                //Log.i(TAG, "calling startDetector");
-                startDetector();
-                // wait for ML callback to set status to .processing
-                while(true) {
-                    synchronized (lock) {
-                        if(processingImage == ProcessingImage.processing)
-                            break;
-                    }
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+                // latest frame wins: skip frames that ML Kit finished while we were busy
+                CameraFrame newerFrame;
+                while((newerFrame = recognizeQueue.peek()) != null && newerFrame != stopSignal && newerFrame.session == session) {
+                    recognizeQueue.poll();
+                    pipelineStats.addDroppedFrame();
+                    finishFrame(frame);
+                    frame = newerFrame;
                 }
 
+                frame.recognizeStartTime = SystemClock.elapsedRealtimeNanos();
+                cameraFrame = frame;
+                faceList = frame.faces;
+                DebugOverlaySnapshot overlaySnapshot = startOverlaySnapshot();
                 processImage();
-
-                processingImage = ProcessingImage.ready;
+                updatePreviewBitmap(overlaySnapshot);
+                frame.recognizeEndTime = SystemClock.elapsedRealtimeNanos();
+                pipelineStats.addFrame(frame);
+                finishFrame(frame);
+
+                if(updateFrameRate()) {
+                    cameraCapture.setIdleFrameRate(frameRateGovernor.getRate() == FrameRateGovernor.Rate.idle);
+                    // start a fresh g_FPS measurement at the new rate
+                    frameCounter = 0;
+                    time1 = SystemClock.elapsedRealtime();
+                }
 
                 frameCounter++;
                 time2 = SystemClock.elapsedRealtime();
@@ -805,28 +1078,110 @@ public class FaceControlService extends AccessibilityService {
                     gestureRecognizer.g_FPS = frameCounter;
                     frameCounter = 0;
                     time1 = SystemClock.elapsedRealtime();
-                    Log.i(TAG, "g_FPS = " + gestureRecognizer.g_FPS);
+                    Log.i(TAG, "g_FPS = " + gestureRecognizer.g_FPS + " (" + pipelineStats.getSummary() + ")");
+                    pipelineStats.reset();
                 }
             }
         }
     };
 
+    // Feeds the current state to the governor; returns true if the capture rate has to change
+    boolean updateFrameRate() {
+        boolean paused, foregroundIdle;
+        synchronized (lock) {
+            paused = pauseSwitchControl;
+            // the calibration screen needs full rate, an assistant in the foreground doesn't
+            foregroundIdle = activityForeground && !previewEnabled;
+        }
+
+        if(!frameRateGovernor.update(gestureRecognizer.faceFound, paused, foregroundIdle))
+            return false;
+
+        synchronized (lock) {
+            minFrameIntervalNanos = frameRateGovernor.getMinFrameIntervalNanos();
+        }
+        return true;
+    }
+
+    // Frame leaves the pipeline (recognized, failed or dropped)
+    void finishFrame(CameraFrame frame) {
+        frame.faces = null;
+        frame.release();
+        synchronized (lock) {
+            if(frame.session == cameraSession)  // earlier sessions' frames aren't counted anymore
+                framesInFlight--;
+        }
+    }
+
+    // Starts a new camera session with an empty pipeline; returns its number (Thr_Camera)
+    int beginCameraSession() {
+        int session;
+        CameraFrame waitingFrame;
+        synchronized (lock) {
+            waitingFrame = resetPipeline();     // left over if the previous thread ended without stopCamera()
+            cameraSessionActive = true;
+            session = cameraSession;
+        }
+        if(waitingFrame != null)
+            finishFrame(waitingFrame);
+        return session;
+    }
+
+    // Ends the session once the camera thread is gone (stopCamera): the frame waiting for ML Kit is
+    // released, frames still in ML Kit are dropped by their callback
+    void endCameraSession() {
+        CameraFrame waitingFrame;
+        synchronized (lock) {
+            waitingFrame = resetPipeline();
+            cameraSessionActive = false;
+        }
+        if(waitingFrame != null)
+            finishFrame(waitingFrame);
+    }
+
+    // Guarded by lock; returns the frame that was waiting for ML Kit (caller releases it)
+    private CameraFrame resetPipeline() {
+        CameraFrame waitingFrame = pendingFrame;
+        cameraSession++;
+        pendingFrame = null;
+        detectorBusy = false;
+        framesInFlight = 0;
+        lastAcceptedCaptureTime = 0;
+        return waitingFrame;
+    }
+
     void processImage()
     {
+        // filters integrate with the real time between frames (dropped/skipped frames included)
+        gestureRecognizer.setFrameTimestamp(cameraFrame.sensorTimestamp);
+
         // Do some feature processing
         if(faceList.size() > 0) {
             if(!gestureRecognizer.faceFound)
                 gestureRecognizer.faceFound = true;
+            startupTimer.mark(StartupTimer.FIRST_FACE);
 
-            gestureRecognizer.detectSmile(faceList);
-            gestureRecognizer.detectEyebrowRaise(faceList);
-            gestureRecognizer.detectEyeClosed(faceList);
-            gestureRecognizer.detectEyeGaze(faceList, cameraScaledBitmap);
-            gestureRecognizer.detectMouthOpen(faceList);
+            // only gestures that are bound to something (or all of them on the calibration screen)
+            DetectionPlan plan;
+            synchronized (lock) {
+                plan = detectionPlan;
+            }
+            gestureRecognizer.setFaces(faceList);
+            if(plan.smile)
+                gestureRecognizer.detectSmile();
+            if(plan.eyebrow)
+                gestureRecognizer.detectEyebrowRaise();
+            if(plan.eyeClosed)
+                gestureRecognizer.detectEyeClosed();
+            if(plan.eyeGaze)
+                gestureRecognizer.detectEyeGaze(cameraFrame);
+            if(plan.mouthOpen)
+                gestureRecognizer.detectMouthOpen();
 
             if(gestureRecognizer.g_FPS > 0 && gestureRecognizer.firstRun)
                 gestureRecognizer.firstRun = false;
         } else {
+            gestureRecognizer.setFaces(faceList);
             gestureRecognizer.firstRun = true;
 
             if(gestureRecognizer.faceFound)
@@ -834,50 +1189,171 @@ public class FaceControlService extends AccessibilityService {
         }
     }
 
-    FaceDetector detector;
+    // Snapshot the eye analysis fills in for the debug overlay, null if nobody looks at it
+    DebugOverlaySnapshot startOverlaySnapshot() {
+        boolean preview;
+        synchronized (lock) {
+            preview = previewEnabled;
+        }
+        DebugOverlaySnapshot snapshot = (preview && debugOverlay) ? overlayRenderer.obtainSnapshot() : null;
+        gestureRecognizer.eyeCenterFinder.setOverlaySnapshot(snapshot);
+        return snapshot;
+    }
+
+    void updatePreviewBitmap(DebugOverlaySnapshot overlaySnapshot) {
+        // Only done while the calibration screen is showing the preview. Rotating the frame upright
+        // (and converting YUV frames to a Bitmap) and drawing the overlay happen on the renderer's
+        // thread, this one only hands the frame over
+        boolean preview;
+        synchronized (lock) {
+            preview = previewEnabled;
+        }
+        if(!preview || cameraFrame == null)
+            return;
+        overlayRenderer.submit(cameraFrame, overlaySnapshot);
+    }
+
+    FaceDetector detector;      // kept for the lifetime of the service (rebuilt if the plan needs other options), guarded by lock
+    DetectionPlan detectionPlan = new DetectionPlan(true, true, true, true, true);  // guarded by lock
+    boolean detectorWarm = false;   // warm-up inference finished, guarded by lock
+    StartupTimer startupTimer = new StartupTimer();
+    static final int WARMUP_WIDTH = 640;
+    static final int WARMUP_HEIGHT = 480;
 
     void initFaceDetector()
     {
-        FaceDetectorOptions options =
-                new FaceDetectorOptions.Builder()
-                        .setPerformanceMode(FaceDetectorOptions.PERFORMANCE_MODE_FAST)
-                        .setContourMode(FaceDetectorOptions.CONTOUR_MODE_ALL)
-                        //.setLandmarkMode(FaceDetectorOptions.LANDMARK_MODE_ALL)
-                        .setClassificationMode(FaceDetectorOptions.CLASSIFICATION_MODE_ALL)
-                        .build();
+        // options depend on which gestures are bound (DetectionPlan)
+        FaceDetectorOptions options = detectionPlan.buildDetectorOptions();
         detector = FaceDetection.getClient(options);
     }
 
-    void startDetector() {
-        InputImage image = InputImage.fromBitmap(cameraScaledBitmap, 0);
-        detector.process(image)
-                .addOnSuccessListener(onSuccessListener)
-                .addOnFailureListener(onFailureListener);
+    // Creates the detector (if needed) and runs one inference on a blank frame, so the model load
+    // happens in the background instead of on the first camera frame. Returns right away.
+    void prepareFaceDetector() {
+        synchronized (lock) {
+            if(detector != null) {
+                if(detectorWarm)
+                    startupTimer.mark(StartupTimer.DETECTOR_READY);
+                return;
+            }
+            initFaceDetector();
+        }
+
+        final long warmupStartTime = SystemClock.elapsedRealtime();
+        final FaceDetector warmupDetector = detector;
+        byte[] blankNv21 = new byte[WARMUP_WIDTH * WARMUP_HEIGHT * 3 / 2];
+        Arrays.fill(blankNv21, (byte)128);
+        warmupDetector.process(InputImage.fromByteArray(blankNv21, WARMUP_WIDTH, WARMUP_HEIGHT, 0, InputImage.IMAGE_FORMAT_NV21))
+                .addOnCompleteListener(new OnCompleteListener<List<Face>>() {
+                    @Override
+                    public void onComplete(@NonNull Task<List<Face>> task) {
+                        Log.i(TAG, "Face detector warmed up in " + (SystemClock.elapsedRealtime() - warmupStartTime) + " ms");
+                        synchronized (lock) {
+                            if(detector != warmupDetector)
+                                return;     // replaced meanwhile
+                            detectorWarm = true;
+                        }
+                        startupTimer.mark(StartupTimer.DETECTOR_READY);
+                    }
+                });
     }
 
-    OnSuccessListener<List<Face>> onSuccessListener = new OnSuccessListener<List<Face>>() {
-        @Override
-        public void onSuccess(List<Face> faces) {
-            // Log.i(TAG, "onSuccess");
-            faceList = faces;
-            // Draw the image
-            synchronized (lock) {
-                processingImage = ProcessingImage.processing;
+    // Capture -> detect hand-off: runs ML Kit on the frame right away if it's idle, otherwise the
+    // frame waits (replacing an older waiting frame) until the current detection finishes
+    void submitToDetector(CameraFrame frame) {
+        CameraFrame replacedFrame = null;
+        synchronized (lock) {
+            if(frame.session != cameraSession) {
+                replacedFrame = frame;      // captured just before the session ended
+                frame = null;
+            } else if(detectorBusy) {
+                replacedFrame = pendingFrame;
+                pendingFrame = frame;
+                frame = null;
+            } else {
+                detectorBusy = true;
             }
         }
-    };
 
-    OnFailureListener onFailureListener = new OnFailureListener() {
-        @Override
-        public void onFailure(@NonNull Exception e) {
-            // Task failed with an exception
-            Log.i(TAG, "onFailure");
-            synchronized (lock) {
-                processingImage = ProcessingImage.done;
-            }
-            e.printStackTrace();
+        if(replacedFrame != null) {
+            pipelineStats.addDroppedFrame();
+            finishFrame(replacedFrame);
+        }
+        if(frame != null)
+            startDetector(frame);
+    }
+
+    // Called when ML Kit is done with a frame: starts detection of the waiting frame, if any.
+    // Returns false (and does nothing) for a frame of an earlier camera session: that session's
+    // pipeline state is gone, the caller drops the frame.
+    boolean detectorFinished(CameraFrame frame) {
+        CameraFrame nextFrame;
+        synchronized (lock) {
+            if(frame.session != cameraSession)
+                return false;
+            nextFrame = pendingFrame;
+            pendingFrame = null;
+            if(nextFrame == null)
+                detectorBusy = false;
+        }
+        if(nextFrame != null)
+            startDetector(nextFrame);
+        return true;
+    }
+
+    // Detect stage: runs ML Kit on the frame, whose callback hands it over to the recognize stage
+    void startDetector(final CameraFrame frame) {
+        InputImage image = frame.getInputImage();
+        frame.detectStartTime = SystemClock.elapsedRealtimeNanos();
+
+        FaceDetector faceDetector;
+        synchronized (lock) {
+            faceDetector = detector;
+        }
+        Task<List<Face>> task;
+        try {
+            if(faceDetector == null)
+                throw new IllegalStateException("no detector");
+            task = faceDetector.process(image);
+        } catch (IllegalStateException e) {
+            // detector is being replaced (detection plan changed), drop the frame
+            Log.i(TAG, "Detector not available, dropping frame");
+            pipelineStats.addFailedFrame();
+            finishFrame(frame);
+            detectorFinished(frame);
+            return;
         }
-    };
+
+        task
+                .addOnSuccessListener(new OnSuccessListener<List<Face>>() {
+                    @Override
+                    public void onSuccess(List<Face> faces) {
+                        // Log.i(TAG, "onSuccess");
+                        if(!detectorFinished(frame)) {
+                            finishFrame(frame);     // camera stopped meanwhile
+                            return;
+                        }
+                        frame.detectEndTime = SystemClock.elapsedRealtimeNanos();
+                        startupTimer.mark(StartupTimer.FIRST_DETECTION);
+                        if(frame.hasRoi)
+                            FaceRoiTracker.mapFacesToFrame(faces, frame.roiOffsetX, frame.roiOffsetY);
+                        faceRoiTracker.update(faces, frame.getUprightWidth(), frame.getUprightHeight());
+                        frame.faces = faces;
+                        recognizeQueue.offer(frame);
+                    }
+                })
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(@NonNull Exception e) {
+                        // Task failed with an exception; drop the frame so capture can continue
+                        Log.i(TAG, "onFailure");
+                        e.printStackTrace();
+                        pipelineStats.addFailedFrame();
+                        detectorFinished(frame);
+                        finishFrame(frame);
+                    }
+                });
+    }
 
     int getCameraRotation() {
         int deviceOrientationDegrees;
@@ -906,65 +1382,78 @@ public class FaceControlService extends AccessibilityService {
     }
 
     ImageReader.OnImageAvailableListener onImageAvailableListener = new ImageReader.OnImageAvailableListener() {
-        Image image;
-        Bitmap tmpBitmap;
-
         @Override
         public void onImageAvailable(ImageReader reader) {
-            int deviceOrientation, deviceOrientationDegrees;
-
             //Log.i(TAG, "onImageAvailable");
-            image = reader.acquireLatestImage();
+            Image image = reader.acquireLatestImage();
             if(image == null) {
                 Log.i(TAG, "image=null");
                 return;
             }
 
+            long captureTime = SystemClock.elapsedRealtimeNanos();
+
+            // Capture stage: drop the image if the pipeline is full (a waiting frame doesn't
+            // count, the new one will replace it)
+            int session;
             synchronized (lock) {
-                if (processingImage != ProcessingImage.ready) {
+                if(!cameraSessionActive) {
+                    image.close();      // camera is stopping
+                    return;
+                }
+                int busyFrames = framesInFlight - (pendingFrame != null ? 1 : 0);
+                if (busyFrames >= maxFramesInFlight) {
+                    image.close();
+                    return;
+                }
+                // while idle, skip frames in software too (the camera may not go as low as IDLE_FPS)
+                if (captureTime - lastAcceptedCaptureTime < minFrameIntervalNanos) {
                     image.close();
                     return;
                 }
+                lastAcceptedCaptureTime = captureTime;
+                framesInFlight++;
+                session = cameraSession;
             }
 
-            // Convert from Image to Bitmap object
-            ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-            byte[] bytes = new byte[buffer.capacity()];
-            buffer.get(bytes);
-            tmpBitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, null);
+            CameraFrame frame = framePool.acquire();
+            if(frame == null) {
+                synchronized (lock) {
+                    if(session == cameraSession)
+                        framesInFlight--;
+                }
+                image.close();
+                return;
+            }
+            frame.session = session;
+            frame.captureTime = captureTime;
+            startupTimer.mark(StartupTimer.FIRST_FRAME);
+            frame.sensorTimestamp = image.getTimestamp();
 
-            // Close the Image
-            image.close();
+            boolean halfScale;
+            synchronized (lock) {
+                halfScale = lowResMode;
+            }
 
-            // Now rotate the bitmap
+            // Frames stay in sensor orientation, ML Kit gets the rotation along with the pixels
             int rotation = getCameraRotation();
+            if(image.getFormat() == ImageFormat.YUV_420_888) {
+                // ML Kit takes the NV21 data directly, no Bitmap needed
+                frame.setFromYuvImage(image, rotation, halfScale);
+            } else {
+                // decodes (and scales) into the frame's own reused bitmaps
+                frame.setFromJpegImage(image, rotation, halfScale);
+            }
 
-            Matrix rot_matrix;
-            rot_matrix = new Matrix();
-            rot_matrix.postRotate(rotation);
-            Bitmap tmpCameraBitmap = Bitmap.createBitmap(tmpBitmap, 0, 0, tmpBitmap.getWidth(), tmpBitmap.getHeight(), rot_matrix, false);
+            // Face tracking: detect only around where the face was last time
+            frame.setDetectionRoi(faceRoiTracker.getRoi(captureRoi) ? captureRoi : null);
 
-            Bitmap tmpCameraScaledBitmap;
-            synchronized (lock) {
-                if (lowResMode) {    // todo: check shared preferences for lowResMode
-                    Matrix scale_matrix;
-                    scale_matrix = new Matrix();
-                    scale_matrix.postScale(0.5f, 0.5f);
-                    tmpCameraScaledBitmap = Bitmap.createBitmap(tmpCameraBitmap, 0, 0, tmpCameraBitmap.getWidth(), tmpCameraBitmap.getHeight(), scale_matrix, false);
-                } else {
-                    tmpCameraScaledBitmap = tmpCameraBitmap;
-                }
-            }
+            // Close the Image
+            image.close();
 
-            synchronized (drawLock) {
-                cameraBitmap = tmpCameraBitmap;
-                cameraScaledBitmap = tmpCameraScaledBitmap;
-                drawBitmap = cameraBitmap;
-            }
-            //cameraBitmap = BitmapFactory.decodeResource(getResources(), R.drawable.a);
-            synchronized(lock) {
-                processingImage = ProcessingImage.preprocessing;
-            }
+            // From here on the frame belongs to the detect stage, then the recognize stage, which
+            // releases it after processImage()
+            submitToDetector(frame);
         }
     };
 
@@ -1695,6 +2184,34 @@ class ElementSelector extends ViewGroup {
     long selectTime;
 
     SelectorState selectorState = SelectorState.idle;
+
+    // Which per-context switch bindings apply right now; called from the gesture action thread and the
+    // key event handler, so it reads selectorState under the lock like every other reader
+    SwitchBindings.Context getBindingContext() {
+        SelectorState state;
+        synchronized (lock) {
+            state = selectorState;
+        }
+        switch(state) {
+            case keyboard:
+            case keyboard_menu:
+                return SwitchBindings.Context.keyboard;
+            case singleswitch_menu:
+            case main1_menu:
+            case main2_menu:
+            case home1_menu:
+            case home2_menu:
+            case gestures_menu:
+            case drag_menu:
+            case scroll_menu:
+            case zoom_menu:
+            case globals_menu:
+            case stop_menu:
+                return SwitchBindings.Context.menu;
+            default:
+                return SwitchBindings.Context.scanning;
+        }
+    }
     float scanLine1_pos,
         scanLine2_pos,
         scanLine3_pos,  // this is always x position
@@ -2674,6 +3191,8 @@ class ElementSelector extends ViewGroup {
     }
 
     void activateSwitch(SwitchAction switchAction) {
+        service.startupTimer.mark(StartupTimer.FIRST_GESTURE);
+
         synchronized (lock) {   // lock access to state variables
             if(service.screenOff) {
                 if(switchUnlock) {
@@ -0,0 +1,151 @@
+package com.obstino.facecontrol;
+
+import android.graphics.PointF;
+import android.graphics.Rect;
+
+import com.google.mlkit.vision.face.Face;
+import com.google.mlkit.vision.face.FaceContour;
+
+import java.util.List;
+
+// Facial geometry of one frame, built once (set) and read by every GestureRecognizer detector, so a
+// detector costs array reads instead of getContour()/getPoints() walks and repeated sqrt/asin.
+// All contour points are copied into two flat float arrays; contourStart/contourCount index them by
+// FaceContour type. The derived values (eye widths, inter-ocular distance, roll, nose anchor) are
+// computed once from them. One instance is reused for every frame, it only grows its arrays.
+class FaceGeometry {
+    static final int CONTOUR_TYPES = FaceContour.RIGHT_CHEEK + 1;   // FaceContour types are 1..15
+
+    Face face;                      // source of this frame's geometry (EyeCenterFinder still reads it)
+    boolean valid;                  // false: no face this frame
+
+    float[] pointX = new float[160];    // ML Kit returns 133 contour points
+    float[] pointY = new float[160];
+    int pointCount;
+    final int[] contourStart = new int[CONTOUR_TYPES];
+    final int[] contourCount = new int[CONTOUR_TYPES];
+
+    int boxLeft, boxTop, boxRight, boxBottom;
+    float leftEyeOpen, rightEyeOpen;    // NaN when ML Kit didn't classify the eyes
+
+    // Derived, only meaningful when has() the contours they come from
+    double leftEyeWidth;            // LEFT_EYE point 0 to point 8 (eye corners)
+    double rightEyeWidth;           // RIGHT_EYE point 0 to point 8
+    double interOcular;             // LEFT_EYE point 0 to RIGHT_EYE point 8 (both eyes)
+    float roll;                     // head roll from the eye corners (radians, both eyes)
+    float noseX, noseY;             // NOSE_BOTTOM point 0, around the left nostril; translation anchor
+    private double unrollCos = 1, unrollSin = 0;    // rotation by -roll
+
+    void clear() {
+        face = null;
+        valid = false;
+        pointCount = 0;
+        for(int t = 0; t < CONTOUR_TYPES; t++)
+            contourCount[t] = 0;
+        leftEyeOpen = rightEyeOpen = Float.NaN;
+        leftEyeWidth = rightEyeWidth = interOcular = 0;
+        roll = 0;
+        unrollCos = 1;
+        unrollSin = 0;
+    }
+
+    void set(Face face) {
+        clear();
+        this.face = face;
+        for(FaceContour contour : face.getAllContours())
+            addContour(contour.getFaceContourType(), contour.getPoints());
+
+        Rect box = face.getBoundingBox();
+        boxLeft = box.left;
+        boxTop = box.top;
+        boxRight = box.right;
+        boxBottom = box.bottom;
+
+        Float p = face.getLeftEyeOpenProbability();
+        leftEyeOpen = (p != null) ? p : Float.NaN;
+        p = face.getRightEyeOpenProbability();
+        rightEyeOpen = (p != null) ? p : Float.NaN;
+
+        computeDerived();
+    }
+
+    void addContour(int type, List<PointF> points) {
+        if(type <= 0 || type >= CONTOUR_TYPES || points == null)
+            return;
+        int n = points.size();
+        int start = reserve(type, n);
+        for(int k = 0; k < n; k++) {
+            PointF pt = points.get(k);
+            pointX[start + k] = pt.x;
+            pointY[start + k] = pt.y;
+        }
+    }
+
+    // Same, for points already in arrays (xs[0..n-1], ys[0..n-1])
+    void addContour(int type, float[] xs, float[] ys, int n) {
+        if(type <= 0 || type >= CONTOUR_TYPES)
+            return;
+        int start = reserve(type, n);
+        System.arraycopy(xs, 0, pointX, start, n);
+        System.arraycopy(ys, 0, pointY, start, n);
+    }
+
+    // Makes room for n more points of the contour and returns where they go
+    private int reserve(int type, int n) {
+        if(pointCount + n > pointX.length) {
+            float[] x = new float[2 * (pointCount + n)];
+            float[] y = new float[2 * (pointCount + n)];
+            System.arraycopy(pointX, 0, x, 0, pointCount);
+            System.arraycopy(pointY, 0, y, 0, pointCount);
+            pointX = x;
+            pointY = y;
+        }
+        int start = pointCount;
+        contourStart[type] = start;
+        contourCount[type] = n;
+        pointCount += n;
+        return start;
+    }
+
+    void computeDerived() {
+        valid = true;
+        if(has(FaceContour.LEFT_EYE, 9))
+            leftEyeWidth = distance(FaceContour.LEFT_EYE, 0, FaceContour.LEFT_EYE, 8);
+        if(has(FaceContour.RIGHT_EYE, 9))
+            rightEyeWidth = distance(FaceContour.RIGHT_EYE, 0, FaceContour.RIGHT_EYE, 8);
+        if(has(FaceContour.LEFT_EYE, 9) && has(FaceContour.RIGHT_EYE, 9)) {
+            interOcular = distance(FaceContour.LEFT_EYE, 0, FaceContour.RIGHT_EYE, 8);
+            roll = (float)Math.asin((y(FaceContour.RIGHT_EYE, 8) - y(FaceContour.LEFT_EYE, 0))/interOcular);
+            unrollCos = Math.cos(-roll);
+            unrollSin = Math.sin(-roll);
+        }
+        if(has(FaceContour.NOSE_BOTTOM, 1)) {
+            noseX = x(FaceContour.NOSE_BOTTOM, 0);
+            noseY = y(FaceContour.NOSE_BOTTOM, 0);
+        }
+    }
+
+    // Does the contour exist with at least minPoints points?
+    boolean has(int type, int minPoints) {
+        return contourCount[type] >= minPoints;
+    }
+
+    float x(int type, int index) {
+        return pointX[contourStart[type] + index];
+    }
+
+    float y(int type, int index) {
+        return pointY[contourStart[type] + index];
+    }
+
+    double distance(int typeA, int indexA, int typeB, int indexB) {
+        double dx = x(typeB, indexB) - x(typeA, indexA);
+        double dy = y(typeB, indexB) - y(typeA, indexA);
+        return Math.sqrt(dx*dx + dy*dy);
+    }
+
+    // y of the point with the head roll undone (rotated by -roll around the image origin)
+    float unrolledY(int type, int index) {
+        return (float)(unrollSin*x(type, index) + unrollCos*y(type, index));
+    }
+}
@@ -0,0 +1,93 @@
+package com.obstino.facecontrol;
+
+import android.graphics.PointF;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.google.mlkit.vision.face.Face;
+import com.google.mlkit.vision.face.FaceContour;
+
+import java.util.List;
+
+// Face tracking mode: once ML Kit found a face, the next frames are only detected inside the
+// previous face bounding box plus a motion margin (region of interest, upright frame coordinates).
+// When the face is lost (or the ROI would cover most of the frame anyway) we go back to detecting
+// on the full frame.
+// Updated from the ML Kit callback, read by the capture stage.
+class FaceRoiTracker {
+    String TAG = "FaceControl.FaceRoiTracker";
+
+    static final float MOTION_MARGIN = 0.3f;    // added on every side, relative to the face box size
+    static final float MAX_ROI_AREA = 0.7f;     // bigger ROIs (relative to the frame) aren't worth cropping
+    static final int ROI_ALIGN = 16;            // ROI size is rounded up to this, so crop buffers rarely change size
+
+    private boolean enabled = true;
+    private boolean tracking = false;
+    private final Rect roi = new Rect();
+
+    synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if(!enabled)
+            tracking = false;
+    }
+
+    // Copies the current ROI into out and returns true, or returns false for full-frame detection
+    synchronized boolean getRoi(Rect out) {
+        if(!tracking)
+            return false;
+        out.set(roi);
+        return true;
+    }
+
+    synchronized void reset() {
+        tracking = false;
+    }
+
+    // faces must already be in frame coordinates (see mapFacesToFrame)
+    synchronized void update(List<Face> faces, int frameWidth, int frameHeight) {
+        if(!enabled)
+            return;
+
+        if(faces.size() == 0) {
+            if(tracking)
+                Log.i(TAG, "Face lost, back to full frame detection");
+            tracking = false;
+            return;
+        }
+
+        Rect box = faces.get(0).getBoundingBox();
+        int marginX = (int)(box.width() * MOTION_MARGIN);
+        int marginY = (int)(box.height() * MOTION_MARGIN);
+        int w = alignUp(box.width() + 2 * marginX);
+        int h = alignUp(box.height() + 2 * marginY);
+        if(w >= frameWidth || h >= frameHeight || (float)w * h > MAX_ROI_AREA * frameWidth * frameHeight) {
+            tracking = false;
+            return;
+        }
+
+        // center on the face, then shift inside the frame
+        int left = Math.max(0, Math.min(box.centerX() - w / 2, frameWidth - w));
+        int top = Math.max(0, Math.min(box.centerY() - h / 2, frameHeight - h));
+        roi.set(left, top, left + w, top + h);
+        tracking = true;
+    }
+
+    private static int alignUp(int x) {
+        return (x + ROI_ALIGN - 1) / ROI_ALIGN * ROI_ALIGN;
+    }
+
+    // ML Kit reports faces relative to the (cropped) image it got; move them to frame coordinates.
+    // ML Kit hands out its own Rect/PointF objects, so we offset them in place.
+    static void mapFacesToFrame(List<Face> faces, int offsetX, int offsetY) {
+        if(offsetX == 0 && offsetY == 0)
+            return;
+
+        for(Face face : faces) {
+            face.getBoundingBox().offset(offsetX, offsetY);
+            for(FaceContour contour : face.getAllContours()) {
+                for(PointF p : contour.getPoints())
+                    p.offset(offsetX, offsetY);
+            }
+        }
+    }
+}
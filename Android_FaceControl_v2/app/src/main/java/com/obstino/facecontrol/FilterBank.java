@@ -0,0 +1,239 @@
+package com.obstino.facecontrol;
+
+import static java.lang.Math.PI;
+
+import java.util.Arrays;
+
+// All of GestureRecognizer's signal filters in one place, struct-of-arrays: every channel is a second
+// order section
+//     y = b0*x + b1*x1 + b2*x2 - a1*y1 - a2*y2
+// so first order RC filters (b2 = a2 = 0) and biquads run through the same branch free loop.
+// Filters are integrated with the real time step of every frame (setDt, seconds) so they behave the
+// same at any (or a varying) frame rate. dt is quantized to DT_QUANTUM (0.1 ms): camera timestamps
+// jitter by a few microseconds every frame, and recomputing every coefficient (cos/sin for the biquads)
+// for a change far below what the filters can tell apart is wasted work. Coefficients are cached and
+// only recomputed when the quantized dt changes.
+// With dt = 1/fs the first order channels are the old fixed-rate RC filters (up to the quantization).
+// A detector allocates its inputs as one group (addGroup: consecutive channels, id of the first) and
+// steps them in one loop per frame (step(first, count, ...)).
+// Not thread safe; the camera thread owns it.
+class FilterBank {
+    enum Kind {
+        highpass,           // first order RC highpass
+        lowpass,            // first order RC lowpass
+        biquad_highpass,    // second order sections, bilinear transform; q = 0.7071 is Butterworth
+        biquad_lowpass
+    }
+
+    static final double DT_QUANTUM = 1e-4;     // seconds
+
+    private int count;
+    private double dt = quantizeDt(GestureRecognizer.NOMINAL_DT);
+    int coefficientUpdates;     // times setDt() recomputed the coefficients (for tests)
+
+    // per channel configuration
+    private Kind[] kind = new Kind[16];
+    private double[] fc = new double[16];
+    private double[] q = new double[16];
+    // per channel coefficients (for the current dt)
+    private double[] b0 = new double[16], b1 = new double[16], b2 = new double[16];
+    private double[] a1 = new double[16], a2 = new double[16];
+    // per channel state: previous two inputs and outputs
+    private double[] x1 = new double[16], x2 = new double[16];
+    private double[] y1 = new double[16], y2 = new double[16];
+
+    // Saved filter state, for replaying a recorded input sequence from a known point
+    static class State {
+        final double dt;
+        final double[] x1, x2, y1, y2;
+
+        State(double dt, double[] x1, double[] x2, double[] y1, double[] y2) {
+            this.dt = dt;
+            this.x1 = x1;
+            this.x2 = x2;
+            this.y1 = y1;
+            this.y2 = y2;
+        }
+    }
+
+    int addHighpass(double fc) {
+        return add(Kind.highpass, fc, 0);
+    }
+
+    int addLowpass(double fc) {
+        return add(Kind.lowpass, fc, 0);
+    }
+
+    int addBiquadHighpass(double fc, double q) {
+        return add(Kind.biquad_highpass, fc, q);
+    }
+
+    int addBiquadLowpass(double fc, double q) {
+        return add(Kind.biquad_lowpass, fc, q);
+    }
+
+    // First order channels kinds[k] with cutoff cutoffs[k] as consecutive channels first+k; returns first
+    int addGroup(Kind[] kinds, double[] cutoffs) {
+        if(kinds.length != cutoffs.length)
+            throw new IllegalArgumentException(kinds.length + " kinds for " + cutoffs.length + " cutoffs");
+        for(int k = 0; k < kinds.length; k++) {
+            if(kinds[k] != Kind.highpass && kinds[k] != Kind.lowpass)
+                throw new IllegalArgumentException("Not a first order filter: " + kinds[k]);
+            if(cutoffs[k] <= 0)
+                throw new IllegalArgumentException("Cutoff frequency must be positive: " + cutoffs[k]);
+        }
+        int first = count;
+        for(int k = 0; k < kinds.length; k++)
+            add(kinds[k], cutoffs[k], 0);
+        return first;
+    }
+
+    private int add(Kind channelKind, double cutoff, double quality) {
+        if(cutoff <= 0)
+            throw new IllegalArgumentException("Cutoff frequency must be positive: " + cutoff);
+        if(count == kind.length)
+            grow(2 * count);
+        int ch = count++;
+        kind[ch] = channelKind;
+        fc[ch] = cutoff;
+        q[ch] = quality;
+        updateCoefficients(ch);
+        return ch;
+    }
+
+    private void grow(int capacity) {
+        kind = Arrays.copyOf(kind, capacity);
+        fc = Arrays.copyOf(fc, capacity);
+        q = Arrays.copyOf(q, capacity);
+        b0 = Arrays.copyOf(b0, capacity);
+        b1 = Arrays.copyOf(b1, capacity);
+        b2 = Arrays.copyOf(b2, capacity);
+        a1 = Arrays.copyOf(a1, capacity);
+        a2 = Arrays.copyOf(a2, capacity);
+        x1 = Arrays.copyOf(x1, capacity);
+        x2 = Arrays.copyOf(x2, capacity);
+        y1 = Arrays.copyOf(y1, capacity);
+        y2 = Arrays.copyOf(y2, capacity);
+    }
+
+    int size() {
+        return count;
+    }
+
+    double getDt() {
+        return dt;
+    }
+
+    // The time step the filters actually use for dt: the nearest multiple of DT_QUANTUM
+    static double quantizeDt(double dt) {
+        return Math.round(dt / DT_QUANTUM) * DT_QUANTUM;
+    }
+
+    // Time step of the samples that follow; coefficients are recomputed only if it changed by at least
+    // about DT_QUANTUM
+    void setDt(double dt) {
+        dt = quantizeDt(dt);
+        if(dt == this.dt)
+            return;
+        this.dt = dt;
+        coefficientUpdates++;
+        for(int ch = 0; ch < count; ch++)
+            updateCoefficients(ch);
+    }
+
+    void setCutoffFrequency(int ch, double cutoff) {
+        fc[ch] = cutoff;
+        updateCoefficients(ch);
+    }
+
+    private void updateCoefficients(int ch) {
+        double RC = 1.0/(2*PI*fc[ch]);
+        double alpha;
+        switch (kind[ch]) {
+            case highpass:
+                alpha = RC/(RC + dt);
+                b0[ch] = alpha;
+                b1[ch] = -alpha;
+                b2[ch] = 0;
+                a1[ch] = -alpha;
+                a2[ch] = 0;
+                break;
+            case lowpass:
+                alpha = dt/(RC + dt);
+                b0[ch] = alpha;
+                b1[ch] = 0;
+                b2[ch] = 0;
+                a1[ch] = -(1 - alpha);
+                a2[ch] = 0;
+                break;
+            default:
+                // bilinear transform biquads (Audio EQ Cookbook), normalized so a0 = 1
+                double w0 = 2*PI*fc[ch]*dt;
+                double cosw0 = Math.cos(w0);
+                double a = Math.sin(w0)/(2*q[ch]);
+                double a0 = 1 + a;
+                double b = (kind[ch] == Kind.biquad_lowpass) ? (1 - cosw0)/2 : (1 + cosw0)/2;
+                b0[ch] = b/a0;
+                b1[ch] = ((kind[ch] == Kind.biquad_lowpass) ? 2*b : -2*b)/a0;
+                b2[ch] = b/a0;
+                a1[ch] = -2*cosw0/a0;
+                a2[ch] = (1 - a)/a0;
+                break;
+        }
+    }
+
+    double step(int ch, double x) {
+        double y = b0[ch]*x + b1[ch]*x1[ch] + b2[ch]*x2[ch] - a1[ch]*y1[ch] - a2[ch]*y2[ch];
+        x2[ch] = x1[ch];
+        x1[ch] = x;
+        y2[ch] = y1[ch];
+        y1[ch] = y;
+        return y;
+    }
+
+    // Steps channels first..first+n-1 with inputs x[0..n-1], outputs go to y[0..n-1]
+    void step(int first, int n, double[] x, double[] y) {
+        for(int k = 0, ch = first; k < n; k++, ch++) {
+            double out = b0[ch]*x[k] + b1[ch]*x1[ch] + b2[ch]*x2[ch] - a1[ch]*y1[ch] - a2[ch]*y2[ch];
+            x2[ch] = x1[ch];
+            x1[ch] = x[k];
+            y2[ch] = y1[ch];
+            y1[ch] = out;
+            y[k] = out;
+        }
+    }
+
+    // Puts the channel in the state it would settle to after a constant input x went in forever, and
+    // returns that steady output: DC gain 1 for the lowpasses, 0 for the highpasses. This is exact and
+    // O(1), where stepping the filter until it 'charged' (5*Tau seconds) took up to 5/(2*PI*fc*dt)
+    // samples, ~240 for fc=0.1Hz at 30 fps.
+    double charge(int ch, double x) {
+        double y = (kind[ch] == Kind.lowpass || kind[ch] == Kind.biquad_lowpass) ? x : 0.0;
+        x1[ch] = x;
+        x2[ch] = x;
+        y1[ch] = y;
+        y2[ch] = y;
+        return y;
+    }
+
+    void charge(int first, int n, double[] x, double[] y) {
+        for(int k = 0; k < n; k++)
+            y[k] = charge(first + k, x[k]);
+    }
+
+    State snapshot() {
+        return new State(dt, Arrays.copyOf(x1, count), Arrays.copyOf(x2, count),
+                Arrays.copyOf(y1, count), Arrays.copyOf(y2, count));
+    }
+
+    // Channels must be the same as when the snapshot was taken (channels added since keep their state)
+    void restore(State state) {
+        if(state.x1.length > count)
+            throw new IllegalArgumentException("Snapshot has " + state.x1.length + " channels, bank has " + count);
+        setDt(state.dt);
+        System.arraycopy(state.x1, 0, x1, 0, state.x1.length);
+        System.arraycopy(state.x2, 0, x2, 0, state.x2.length);
+        System.arraycopy(state.y1, 0, y1, 0, state.y1.length);
+        System.arraycopy(state.y2, 0, y2, 0, state.y2.length);
+    }
+}
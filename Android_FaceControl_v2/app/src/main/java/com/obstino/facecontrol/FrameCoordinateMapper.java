@@ -0,0 +1,96 @@
+package com.obstino.facecontrol;
+
+import android.graphics.Rect;
+
+// Maps coordinates between a raw camera frame (sensor orientation, rawWidth x rawHeight) and the
+// upright frame ML Kit reports its contours in, i.e. the raw frame rotated clockwise by 'rotation'.
+// Frames are no longer rotated pixel by pixel; whoever needs upright pixels reads them through this.
+class FrameCoordinateMapper {
+    int rawWidth;
+    int rawHeight;
+    int rotation;   // 0, 90, 180 or 270 (clockwise)
+
+    void set(int rawWidth, int rawHeight, int rotation) {
+        this.rawWidth = rawWidth;
+        this.rawHeight = rawHeight;
+        this.rotation = rotation;
+    }
+
+    int getUprightWidth() {
+        return (rotation % 180 == 0) ? rawWidth : rawHeight;
+    }
+
+    int getUprightHeight() {
+        return (rotation % 180 == 0) ? rawHeight : rawWidth;
+    }
+
+    int uprightToRawX(int x, int y) {
+        switch(rotation) {
+            case 90:
+                return y;
+            case 180:
+                return rawWidth - 1 - x;
+            case 270:
+                return rawWidth - 1 - y;
+            default:
+                return x;
+        }
+    }
+
+    int uprightToRawY(int x, int y) {
+        switch(rotation) {
+            case 90:
+                return rawHeight - 1 - x;
+            case 180:
+                return rawHeight - 1 - y;
+            case 270:
+                return x;
+            default:
+                return y;
+        }
+    }
+
+    // Raw rectangle covering the upright rectangle (x, y, w, h)
+    void uprightRectToRaw(int x, int y, int w, int h, Rect out) {
+        int x1 = uprightToRawX(x, y);
+        int y1 = uprightToRawY(x, y);
+        int x2 = uprightToRawX(x + w - 1, y + h - 1);
+        int y2 = uprightToRawY(x + w - 1, y + h - 1);
+        out.set(Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2) + 1, Math.max(y1, y2) + 1);
+    }
+
+    int rawToUprightX(int x, int y) {
+        switch(rotation) {
+            case 90:
+                return rawHeight - 1 - y;
+            case 180:
+                return rawWidth - 1 - x;
+            case 270:
+                return y;
+            default:
+                return x;
+        }
+    }
+
+    int rawToUprightY(int x, int y) {
+        switch(rotation) {
+            case 90:
+                return x;
+            case 180:
+                return rawHeight - 1 - y;
+            case 270:
+                return rawWidth - 1 - x;
+            default:
+                return y;
+        }
+    }
+
+    // Upright rectangle covering the raw rectangle
+    void rawRectToUpright(Rect raw, Rect out) {
+        int x1 = rawToUprightX(raw.left, raw.top);
+        int y1 = rawToUprightY(raw.left, raw.top);
+        int x2 = rawToUprightX(raw.right - 1, raw.bottom - 1);
+        int y2 = rawToUprightY(raw.right - 1, raw.bottom - 1);
+        out.set(Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2) + 1, Math.max(y1, y2) + 1);
+    }
+}
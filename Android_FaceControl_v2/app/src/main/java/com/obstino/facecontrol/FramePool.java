@@ -0,0 +1,61 @@
+package com.obstino.facecontrol;
+
+import android.util.Log;
+
+// Fixed set of pre-allocated CameraFrames, so that steady-state capture doesn't allocate
+// byte arrays/Bitmaps for every frame.
+// Ownership is explicit: the camera thread acquire()s a frame (refCount=1) and hands it over to
+// the ML stage, which release()s it after processing. Anyone else who wants to keep the frame
+// around for a while (e.g. the calibration preview) has to retain() it and release() it later.
+// A frame returns to the pool when its refCount drops to 0.
+class FramePool {
+    String TAG = "FaceControl.FramePool";
+    // frames in flight (+1 while a pending frame is being replaced) + preview + one spare for the
+    // view still drawing the previous preview
+    static final int DEFAULT_SIZE = FaceControlService.PIPELINED_FRAMES_IN_FLIGHT + 3;
+
+    private final CameraFrame[] frames;
+    private int dropCount = 0;
+
+    FramePool(int size) {
+        frames = new CameraFrame[size];
+        for(int k = 0; k < size; k++)
+            frames[k] = new CameraFrame(this);
+    }
+
+    // Returns a free frame owned by the caller, or null if all frames are in use (caller drops the image)
+    synchronized CameraFrame acquire() {
+        for(CameraFrame frame : frames) {
+            if(frame.refCount == 0) {
+                frame.refCount = 1;
+                return frame;
+            }
+        }
+
+        dropCount++;
+        if(dropCount % 100 == 1)
+            Log.i(TAG, "No free frame (dropped " + dropCount + " so far)");
+        return null;
+    }
+
+    synchronized void retain(CameraFrame frame) {
+        if(frame.refCount <= 0)
+            throw new IllegalStateException("retain() on a frame that isn't owned");
+        frame.refCount++;
+    }
+
+    synchronized void release(CameraFrame frame) {
+        if(frame.refCount <= 0)
+            throw new IllegalStateException("release() on a frame that isn't owned");
+        frame.refCount--;
+    }
+
+    synchronized int getFreeCount() {
+        int free = 0;
+        for(CameraFrame frame : frames) {
+            if(frame.refCount == 0)
+                free++;
+        }
+        return free;
+    }
+}
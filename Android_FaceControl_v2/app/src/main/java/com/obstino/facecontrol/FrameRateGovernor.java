@@ -0,0 +1,76 @@
+package com.obstino.facecontrol;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// Decides whether we capture/detect at full rate or at IDLE_FPS, to save battery while nobody can
+// use the gestures anyway:
+//  -no face in the frame
+//  -switch control paused (pauseSwitchControl)
+//  -some activity in the foreground (activityForeground) that isn't showing the calibration preview
+// Full rate comes back on the very first frame with a face (while not paused) or with a suspected
+// gesture onset (e.g. eyes closing, which is how a paused user resumes), but we only drop to idle
+// after the idle conditions have held for IDLE_DELAY_MS (hysteresis, so a face briefly lost
+// doesn't make the rate bounce around).
+class FrameRateGovernor {
+    String TAG = "FaceControl.FrameRateGovernor";
+
+    enum Rate {
+        full,
+        idle
+    }
+
+    static final int IDLE_FPS = 5;
+    static final long IDLE_DELAY_MS = 3000;     // idle conditions must hold this long before slowing down
+    static final long ONSET_HOLD_MS = 2000;     // full rate kept at least this long after a gesture onset
+
+    private Rate rate = Rate.full;
+    private long idleSinceTime = -1;    // when idle conditions started holding (-1 = they don't)
+    private long onsetTime = -1;
+
+    synchronized Rate getRate() {
+        return rate;
+    }
+
+    // Minimum time between two frames we let into the pipeline (0 = every frame)
+    synchronized long getMinFrameIntervalNanos() {
+        return (rate == Rate.idle) ? 1000000000L / IDLE_FPS : 0;
+    }
+
+    synchronized void notifyGestureOnset() {
+        onsetTime = SystemClock.elapsedRealtime();
+        if(rate != Rate.full)
+            Log.i(TAG, "Gesture onset, going to full rate");
+        // the actual switch happens in update(), called for every recognized frame
+    }
+
+    // Called after every recognized frame; returns true if the rate changed
+    synchronized boolean update(boolean faceFound, boolean paused, boolean foregroundIdle) {
+        long now = SystemClock.elapsedRealtime();
+        boolean onset = onsetTime >= 0 && (now - onsetTime) < ONSET_HOLD_MS;
+        boolean idleConditions = !onset && (!faceFound || paused || foregroundIdle);
+
+        Rate newRate;
+        if(!idleConditions) {
+            idleSinceTime = -1;
+            newRate = Rate.full;
+        } else {
+            if(idleSinceTime < 0)
+                idleSinceTime = now;
+            newRate = (now - idleSinceTime >= IDLE_DELAY_MS) ? Rate.idle : rate;
+        }
+
+        if(newRate == rate)
+            return false;
+
+        Log.i(TAG, "Rate " + rate + " -> " + newRate + " (face=" + faceFound + ", paused=" + paused + ", foreground=" + foregroundIdle + ", onset=" + onset + ")");
+        rate = newRate;
+        return true;
+    }
+
+    synchronized void reset() {
+        rate = Rate.full;
+        idleSinceTime = -1;
+        onsetTime = -1;
+    }
+}
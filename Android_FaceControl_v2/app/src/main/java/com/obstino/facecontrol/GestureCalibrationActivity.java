@@ -61,10 +61,26 @@ public class GestureCalibrationActivity extends AppCompatActivity {
     EditText edittext_wink;
 
     SwitchCompat switch_lowres;
+    SwitchCompat switch_yuv;
+    SwitchCompat switch_pipelined;
+    SwitchCompat switch_tracking;
+    SwitchCompat switch_parallel_eyes;
+    SwitchCompat switch_pupil_tracking;
+    SwitchCompat switch_gradient_estimator;
+    SwitchCompat switch_record_eyes;
+    SwitchCompat switch_debug_overlay;
 
     SharedPreferences prefs;
 
     static boolean DEFAULT_LOWRES_MODE = false;
+    static boolean DEFAULT_YUV_CAPTURE = true;
+    static boolean DEFAULT_PIPELINED_CAPTURE = true;
+    static boolean DEFAULT_FACE_TRACKING = true;
+    static boolean DEFAULT_PARALLEL_EYES = true;
+    static boolean DEFAULT_PUPIL_TRACKING = true;
+    static String DEFAULT_EYE_CENTER_ESTIMATOR = "template";
+    static boolean DEFAULT_RECORD_EYE_CROPS = false;
+    static boolean DEFAULT_DEBUG_OVERLAY = false;
     static int DEFAULT_SMILE_SENSITIVITY = 4;
     static int DEFAULT_EYEBROW_SENSITIVITY = 4;
     static int DEFAULT_MOUTH_SENSITIVITY = 4;
@@ -110,6 +126,143 @@ public class GestureCalibrationActivity extends AppCompatActivity {
         });
         switch_lowres.setChecked(prefs.getBoolean("LowResMode", DEFAULT_LOWRES_MODE));
 
+        switch_yuv = findViewById(R.id.switch_yuv);
+        switch_yuv.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                SharedPreferences.Editor ed = prefs.edit();
+                ed.putBoolean("YuvCapture", isChecked);
+                ed.apply();
+
+                FaceControlService service;
+                service = FaceControlService.sharedServiceInst;
+                if(service != null) {
+                    service.setYuvCapture(isChecked);
+                }
+            }
+        });
+        switch_yuv.setChecked(prefs.getBoolean("YuvCapture", DEFAULT_YUV_CAPTURE));
+
+        switch_pipelined = findViewById(R.id.switch_pipelined);
+        switch_pipelined.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                SharedPreferences.Editor ed = prefs.edit();
+                ed.putBoolean("PipelinedCapture", isChecked);
+                ed.apply();
+
+                FaceControlService service;
+                service = FaceControlService.sharedServiceInst;
+                if(service != null) {
+                    service.setPipelinedCapture(isChecked);
+                }
+            }
+        });
+        switch_pipelined.setChecked(prefs.getBoolean("PipelinedCapture", DEFAULT_PIPELINED_CAPTURE));
+
+        switch_tracking = findViewById(R.id.switch_tracking);
+        switch_tracking.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                SharedPreferences.Editor ed = prefs.edit();
+                ed.putBoolean("FaceTracking", isChecked);
+                ed.apply();
+
+                FaceControlService service;
+                service = FaceControlService.sharedServiceInst;
+                if(service != null) {
+                    service.setFaceTracking(isChecked);
+                }
+            }
+        });
+        switch_tracking.setChecked(prefs.getBoolean("FaceTracking", DEFAULT_FACE_TRACKING));
+
+        switch_parallel_eyes = findViewById(R.id.switch_parallel_eyes);
+        switch_parallel_eyes.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                SharedPreferences.Editor ed = prefs.edit();
+                ed.putBoolean("ParallelEyes", isChecked);
+                ed.apply();
+
+                FaceControlService service;
+                service = FaceControlService.sharedServiceInst;
+                if(service != null) {
+                    service.setParallelEyes(isChecked);
+                }
+            }
+        });
+        switch_parallel_eyes.setChecked(prefs.getBoolean("ParallelEyes", DEFAULT_PARALLEL_EYES));
+
+        switch_pupil_tracking = findViewById(R.id.switch_pupil_tracking);
+        switch_pupil_tracking.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                SharedPreferences.Editor ed = prefs.edit();
+                ed.putBoolean("PupilTracking", isChecked);
+                ed.apply();
+
+                FaceControlService service;
+                service = FaceControlService.sharedServiceInst;
+                if(service != null) {
+                    service.setPupilTracking(isChecked);
+                }
+            }
+        });
+        switch_pupil_tracking.setChecked(prefs.getBoolean("PupilTracking", DEFAULT_PUPIL_TRACKING));
+
+        switch_gradient_estimator = findViewById(R.id.switch_gradient_estimator);
+        switch_gradient_estimator.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                String estimator = isChecked ? EyeCenterFinder.EstimatorType.gradient.name() : EyeCenterFinder.EstimatorType.template.name();
+                SharedPreferences.Editor ed = prefs.edit();
+                ed.putString("EyeCenterEstimator", estimator);
+                ed.apply();
+
+                FaceControlService service;
+                service = FaceControlService.sharedServiceInst;
+                if(service != null) {
+                    service.setEyeCenterEstimator(estimator);
+                }
+            }
+        });
+        switch_gradient_estimator.setChecked(EyeCenterFinder.EstimatorType.gradient.name().equals(prefs.getString("EyeCenterEstimator", DEFAULT_EYE_CENTER_ESTIMATOR)));
+
+        switch_record_eyes = findViewById(R.id.switch_record_eyes);
+        switch_record_eyes.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                SharedPreferences.Editor ed = prefs.edit();
+                ed.putBoolean("RecordEyeCrops", isChecked);
+                ed.apply();
+
+                FaceControlService service;
+                service = FaceControlService.sharedServiceInst;
+                if(service != null) {
+                    service.setEyeCropRecording(isChecked);
+                }
+            }
+        });
+        switch_record_eyes.setChecked(prefs.getBoolean("RecordEyeCrops", DEFAULT_RECORD_EYE_CROPS));
+
+        switch_debug_overlay = findViewById(R.id.switch_debug_overlay);
+        switch_debug_overlay.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                SharedPreferences.Editor ed = prefs.edit();
+                ed.putBoolean("DebugOverlay", isChecked);
+                ed.apply();
+
+                FaceControlService service;
+                service = FaceControlService.sharedServiceInst;
+                if(service != null) {
+                    service.setDebugOverlay(isChecked);
+                }
+            }
+        });
+        switch_debug_overlay.setChecked(prefs.getBoolean("DebugOverlay", DEFAULT_DEBUG_OVERLAY));
+
         textview_smile = findViewById(R.id.textview_smile);
         seekbar_smile = findViewById(R.id.seekbar_smile);
         textview_eyebrow = findViewById(R.id.textview_eyebrow);
@@ -355,7 +508,6 @@ public class GestureCalibrationActivity extends AppCompatActivity {
                                     drawBitmap = mouthOpenBitmap;
                                 }
                                 else {
-                                    //drawBitmap = EyeCenterFinder.myDrawBitmap;
                                     drawBitmap = service.drawBitmap;
                                 }
 
@@ -394,6 +546,7 @@ public class GestureCalibrationActivity extends AppCompatActivity {
         }
 
         service.setActivityForeground(false);
+        service.setPreviewEnabled(false);
         NavUtils.navigateUpFromSameTask(this);
     }
 
@@ -406,5 +559,6 @@ public class GestureCalibrationActivity extends AppCompatActivity {
 
         FaceControlService service = FaceControlService.sharedServiceInst;
         service.setActivityForeground(true);
+        service.setPreviewEnabled(true);
     }
 }
\ No newline at end of file
@@ -0,0 +1,187 @@
+package com.obstino.facecontrol;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Hands recognized gestures from the recognize stage (the only producer) to a dedicated action thread
+// (the only consumer), so a slow ElementSelector.activateSwitch() -- it takes the selector lock the
+// view updater and dispatchDraw also hold -- never stalls frame processing.
+// The queue is a fixed size ring of preallocated slots; the hand-off itself never locks or allocates:
+// each side owns one counter (tail: producer, head: consumer) and publishes it with a release store
+// after touching the slots, so the other side sees the slot contents once it sees the counter.
+// Statistics are kept in consumer-only fields and folded into PipelineStats (which the recognize stage
+// locks for every frame) at most once per STATS_PERIOD_MS, so the only lock the action thread shares
+// with the recognize stage is taken once a period, not once per gesture.
+// Policies:
+//  -full: the new event is dropped (the producer never waits), counted in PipelineStats
+//  -stale: an event older than MAX_EVENT_AGE_MS when the action thread gets to it is dropped; acting
+//   on a gesture the user made a second ago (e.g. after a long UI stall) does more harm than good
+//  -merge: an event of the same gesture as the previous one, made within MERGE_WINDOW_MS of it, is
+//   folded into it (a flickering detector or a repeat while the first one was still queued)
+class GestureEventQueue {
+    String TAG = "FaceControl.GestureEventQueue";
+
+    static final int CAPACITY = 16;     // power of two
+    static final long MAX_EVENT_AGE_MS = 1000;
+    static final long MERGE_WINDOW_MS = 200;
+    static final long STATS_PERIOD_MS = 1000;
+
+    interface Sink {
+        // Called on the action thread, in the order the gestures were recognized
+        void onGesture(SettingsActivity.SwitchElement.SwitchType type, long timestampNanos);
+    }
+
+    private final SettingsActivity.SwitchElement.SwitchType[] types = new SettingsActivity.SwitchElement.SwitchType[CAPACITY];
+    private final long[] timestamps = new long[CAPACITY];
+    private final AtomicLong head = new AtomicLong();   // next slot to consume, written by the consumer
+    private final AtomicLong tail = new AtomicLong();   // next slot to fill, written by the producer
+    private final AtomicInteger droppedFull = new AtomicInteger();
+
+    private final Sink sink;
+    private final PipelineStats stats;
+    // The current action thread; a thread whose start() was undone by shutdown() sees it changed and
+    // exits. A new action thread first waits for the previous one (lastThread) to be gone, so there is
+    // never more than one consumer, even with start() right after shutdown().
+    private volatile Thread actionThread;
+    private Thread lastThread;      // guarded by this
+
+    // only used by the consumer
+    private SettingsActivity.SwitchElement.SwitchType lastType;
+    private long lastTimestamp;
+    private int statGestures, statMaxDepth, statDropped, statMerged;
+    private long statLatencySum, statLatencyMax;
+    private long lastStatsFlush;
+
+    GestureEventQueue(Sink sink, PipelineStats stats) {
+        this.sink = sink;
+        this.stats = stats;
+    }
+
+    // Producer side (recognize stage); timestampNanos is SystemClock.elapsedRealtimeNanos() at recognition.
+    // Returns false if the queue was full and the event got dropped.
+    boolean offer(SettingsActivity.SwitchElement.SwitchType type, long timestampNanos) {
+        long t = tail.get();
+        if(t - head.get() >= CAPACITY) {
+            droppedFull.incrementAndGet();
+            return false;
+        }
+        int slot = (int)(t & (CAPACITY - 1));
+        types[slot] = type;
+        timestamps[slot] = timestampNanos;
+        tail.lazySet(t + 1);
+
+        Thread thread = actionThread;
+        if(thread != null)
+            LockSupport.unpark(thread);
+        return true;
+    }
+
+    // Events waiting for the action thread
+    int size() {
+        return (int)(tail.get() - head.get());
+    }
+
+    // Consumer side: applies the policies to every queued event and passes the survivors to the sink.
+    // Returns the number of events handed to the sink.
+    int drain(long nowNanos) {
+        statDropped += droppedFull.getAndSet(0);
+
+        int delivered = 0;
+        long h = head.get();
+        long t = tail.get();
+        while(h < t) {
+            int slot = (int)(h & (CAPACITY - 1));
+            SettingsActivity.SwitchElement.SwitchType type = types[slot];
+            long timestamp = timestamps[slot];
+            types[slot] = null;
+            int depth = (int)(t - h);
+            head.lazySet(++h);     // the slot is free again
+
+            if(nowNanos - timestamp > TimeUnit.MILLISECONDS.toNanos(MAX_EVENT_AGE_MS)) {
+                statDropped++;
+            } else if(type == lastType && timestamp - lastTimestamp < TimeUnit.MILLISECONDS.toNanos(MERGE_WINDOW_MS)) {
+                statMerged++;
+            } else {
+                lastType = type;
+                lastTimestamp = timestamp;
+                long latency = nowNanos - timestamp;
+                statGestures++;
+                statLatencySum += latency;
+                statLatencyMax = Math.max(statLatencyMax, latency);
+                statMaxDepth = Math.max(statMaxDepth, depth);
+                sink.onGesture(type, timestamp);
+                delivered++;
+            }
+            if(h == t)
+                t = tail.get();     // more arrived while we were busy
+        }
+        if(nowNanos - lastStatsFlush >= TimeUnit.MILLISECONDS.toNanos(STATS_PERIOD_MS))
+            flushStats(nowNanos);
+        return delivered;
+    }
+
+    // Consumer side: hands the statistics gathered since the last flush to PipelineStats
+    void flushStats(long nowNanos) {
+        lastStatsFlush = nowNanos;
+        statDropped += droppedFull.getAndSet(0);
+        if(!hasStats())
+            return;
+        stats.addGestures(statGestures, statLatencySum, statLatencyMax, statMaxDepth, statDropped, statMerged);
+        statGestures = statMaxDepth = statDropped = statMerged = 0;
+        statLatencySum = statLatencyMax = 0;
+    }
+
+    private boolean hasStats() {
+        return statGestures > 0 || statDropped > 0 || statMerged > 0 || droppedFull.get() > 0;
+    }
+
+    synchronized void start() {
+        if(actionThread != null)
+            return;
+        final Thread previous = lastThread;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Thread self = Thread.currentThread();
+                if(previous != null) {
+                    try {
+                        previous.join();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                while(actionThread == self) {
+                    long now = SystemClock.elapsedRealtimeNanos();
+                    try {
+                        drain(now);
+                    } catch (RuntimeException e) {
+                        Log.i(TAG, "Gesture action failed: " + e);
+                    }
+                    if(size() == 0 && actionThread == self) {
+                        if(hasStats())  // wake up to flush them when the period is over
+                            LockSupport.parkNanos(GestureEventQueue.this, lastStatsFlush + TimeUnit.MILLISECONDS.toNanos(STATS_PERIOD_MS) - now);
+                        else
+                            LockSupport.park(GestureEventQueue.this);
+                    }
+                }
+            }
+        }, "GestureActions");
+        thread.setDaemon(true);
+        lastThread = thread;
+        actionThread = thread;
+        thread.start();
+    }
+
+    // Doesn't wait for the action thread: it finishes the gesture it's on and exits
+    synchronized void shutdown() {
+        Thread thread = actionThread;
+        actionThread = null;
+        if(thread != null)
+            LockSupport.unpark(thread);
+    }
+}
@@ -3,8 +3,6 @@ package com.obstino.facecontrol;
 import static java.lang.Math.PI;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.PointF;
 import android.media.AudioManager;
 import android.media.ToneGenerator;
 import android.os.SystemClock;
@@ -15,94 +13,21 @@ import com.google.mlkit.vision.face.FaceContour;
 
 import java.util.List;
 
-class HighpassFilter {
-    private double f_sampling;  // sampling frequency
-    private double f_cutoff;
-    private double prev_x = 0;
-    private double prev_y = 0;
-
-    HighpassFilter(double f_sampling, double f_cutoff) {
-        this.f_sampling = f_sampling;
-        this.f_cutoff = f_cutoff;
-        prev_x = 0;
-        prev_y = 0;
-    }
-
-    void setSamplingFrequency(double f_sampling) {
-        this.f_sampling = f_sampling;
-    }
-
-    void setCutoffFrequency(double f_cutoff) {
-        this.f_cutoff = f_cutoff;
-    }
-
-    double computeSample(double x) {
-        double alpha;
-        double y;
-
-        alpha = (double)f_sampling/(2*PI*f_cutoff + (double)f_sampling);
-        y = alpha*prev_y + alpha*(x - prev_x);
-
-        prev_y = y;
-        prev_x = x;
-
-        return y;
-    }
-
-    double chargeSample(double x) {
-        // It takes 5*Tau seconds to 'charge' a RC filter; Tau=1/(2*PI*fc) [sec] and 5 sec = 5*fs samples
-        double ret = 0;
-        for (int k = 0; k < (int)(5.0*f_sampling / (2.0*PI*f_cutoff)); k++)
-            ret = computeSample(x);
-        return ret;
-    }
-}
-
-class LowpassFilter {
-    private double f_sampling;  // sampling frequency
-    private double f_cutoff;
-    private double prev_y = 0;
-
-    LowpassFilter(double f_sampling, double f_cutoff) {
-        this.f_sampling = f_sampling;
-        this.f_cutoff = f_cutoff;
-        prev_y = 0;
-    }
-
-    void setSamplingFrequency(double f_sampling) {
-        this.f_sampling = f_sampling;
-    }
-
-    void setCutoffFrequency(double f_cutoff) {
-        this.f_cutoff = f_cutoff;
-    }
-
-    double computeSample(double x) {
-        double alpha;
-        double y;
-
-        alpha = 2*PI*f_cutoff / (2*PI*f_cutoff + f_sampling);
-        y = alpha*x + (1 - alpha)*prev_y;
-
-        prev_y = y;
-        return y;
-    }
-
-    double chargeSample(double x) {
-        // It takes 5*Tau seconds to 'charge' a RC filter; Tau=1/(2*PI*fc) [sec] and 5 sec = 5*fs samples
-        double ret = 0;
-        for (int k = 0; k < (int)(5.0*f_sampling / (2.0*PI*f_cutoff)); k++)
-            ret = computeSample(x);
-        return ret;
-    }
-}
-
 public class GestureRecognizer {
     String TAG = "FaceControl.GestureRecognizer";
     FaceControlService service;
     int g_FPS;
+    double g_dt = NOMINAL_DT;   // seconds between this frame and the previous one (camera sensor timestamps)
     boolean firstRun;
 
+    static final double NOMINAL_DT = 1.0/30.0;  // used when we don't have a previous frame
+    private long prevFrameTimestamp = -1;
+
+    final FaceGeometry geometry = new FaceGeometry();  // this frame's face, reused between frames
+    final FilterBank filters = new FilterBank();    // every filter below is a channel of this bank
+    private final double[] filterIn = new double[3];
+    private final double[] filterOut = new double[3];
+
     ToneGenerator toneGenerator;
 
     GestureRecognizer(Context context) {
@@ -112,6 +37,31 @@ public class GestureRecognizer {
         toneGenerator = new ToneGenerator(AudioManager.STREAM_MUSIC, 100);
     }
 
+    // Called with the sensor timestamp (Image.getTimestamp, ns) of every frame before the detect*() calls
+    void setFrameTimestamp(long timestampNanos) {
+        if(prevFrameTimestamp >= 0 && timestampNanos > prevFrameTimestamp)
+            g_dt = (timestampNanos - prevFrameTimestamp) / 1e9;
+        else
+            g_dt = NOMINAL_DT;
+        prevFrameTimestamp = timestampNanos;
+        filters.setDt(g_dt);
+    }
+
+    // Called once per frame before the detect*() calls; they all read the geometry of the first face
+    void setFaces(List<Face> faces) {
+        if(faces.size() > 0)
+            geometry.set(faces.get(0));
+        else
+            geometry.clear();
+    }
+
+    // New camera session: timestamps of the next frames don't relate to the previous ones
+    void resetFrameTimestamp() {
+        prevFrameTimestamp = -1;
+        g_dt = NOMINAL_DT;
+        filters.setDt(g_dt);
+    }
+
     void initializeSensitivities() {
         SMILE_THRESH_INDEX = service.prefs.getInt("smile_sensitivity", GestureCalibrationActivity.DEFAULT_SMILE_SENSITIVITY);
         EYEBROW_THRESH_INDEX = service.prefs.getInt("eyebrow_sensitivity", GestureCalibrationActivity.DEFAULT_EYEBROW_SENSITIVITY);
@@ -135,8 +85,13 @@ public class GestureRecognizer {
     double EYEGAZE_LEFTRIGHT_THRESHOLD_CONSTANT = 0.25;    // percentage of deviation from eye center
     double EYEGAZE_STOP_PERCENTAGE = 0.60;
     double EYEGAZE_CHARGETIME = 0.15;   // time it takes for eye detection to occur
-    LowpassFilter lowpass_eyegaze_fx = new LowpassFilter(30.0, 5.0/(2*PI*EYEGAZE_CHARGETIME));
-    LowpassFilter lowpass_eyegaze_fy = new LowpassFilter(30.0, 5.0/(2*PI*EYEGAZE_CHARGETIME));
+    // fx, fy: one filter group, stepped together
+    int lowpass_eyegaze_fx = filters.addGroup(new FilterBank.Kind[] {FilterBank.Kind.lowpass, FilterBank.Kind.lowpass},
+            new double[] {5.0/(2*PI*EYEGAZE_CHARGETIME), 5.0/(2*PI*EYEGAZE_CHARGETIME)});
+    int lowpass_eyegaze_fy = lowpass_eyegaze_fx + 1;
+
+    EyeCenterFinder eyeCenterFinder = new EyeCenterFinder();    // reused, keeps its buffers between frames
+    final float[] eyeCenter = new float[2];     // findMeanEyeCenter() result
 
     boolean gazeLeftWaitStop = false;
     boolean gazeRightWaitStop = false;
@@ -169,7 +124,7 @@ public class GestureRecognizer {
             0.6 * EYEGAZE_UP_THRESHOLD_CONSTANT,
     };
 
-    void detectEyeGaze(List<Face> faces, Bitmap cameraBitmap) {
+    void detectEyeGaze(CameraFrame cameraFrame) {
         // todo: remove all code detecting "gaze up" :D (but for now it doesn't really matter)
 
         double fx, fy;
@@ -180,37 +135,37 @@ public class GestureRecognizer {
         if(g_FPS == 0)
             return;
 
-        if(faces.size() == 0)
+        if(!geometry.valid) {
+            eyeCenterFinder.resetTracking();
             return;
-
-        Face face = faces.get(0);
-
-        EyeCenterFinder eyeCenterFinder = new EyeCenterFinder(cameraBitmap, face);
-        PointF c = eyeCenterFinder.findMeanEyeCenter(true);
-        PointF d;
-        if(c != null) {
-            d = new PointF(-1 + 2 * c.x, -1 + 2 * c.y);
-        } else {
-            d = new PointF(0.0f, 0.0f);
         }
 
-        lowpass_eyegaze_fx.setSamplingFrequency(g_FPS);
-        lowpass_eyegaze_fy.setSamplingFrequency(g_FPS);
-        if(!firstRun) {
-            fx = lowpass_eyegaze_fx.computeSample(d.x);
-            fy = lowpass_eyegaze_fy.computeSample(d.y);
-        } else {
-            fx = lowpass_eyegaze_fx.chargeSample(d.x);
-            fy = lowpass_eyegaze_fy.chargeSample(d.y);
+        eyeCenterFinder.setFrame(cameraFrame, geometry.face);
+        long gazeStartTime = SystemClock.elapsedRealtimeNanos();
+        boolean found = eyeCenterFinder.findMeanEyeCenter(true, eyeCenter);
+        service.pipelineStats.addGaze(SystemClock.elapsedRealtimeNanos() - gazeStartTime);
+        float dx = 0.0f, dy = 0.0f;
+        if(found) {
+            dx = -1 + 2 * eyeCenter[0];
+            dy = -1 + 2 * eyeCenter[1];
         }
 
+        filterIn[0] = dx;
+        filterIn[1] = dy;
+        if(!firstRun)
+            filters.step(lowpass_eyegaze_fx, 2, filterIn, filterOut);
+        else
+            filters.charge(lowpass_eyegaze_fx, 2, filterIn, filterOut);
+        fx = filterOut[0];
+        fy = filterOut[1];
+
         // If eyes are closed, don't detect eye gaze!! (false detections occur)
-        Float pl = face.getLeftEyeOpenProbability();
-        Float pr = face.getRightEyeOpenProbability();
+        float pl = geometry.leftEyeOpen;
+        float pr = geometry.rightEyeOpen;
         //Log.i(TAG, String.format(Locale.getDefault(), "pl=%.2f; pr=%.2f", pl, pr));
-        if(pl == null || pr == null || pl < 0.90 || pr < 0.90) {
-            fx = lowpass_eyegaze_fx.chargeSample(0);
-            fy = lowpass_eyegaze_fy.chargeSample(0);
+        if(Float.isNaN(pl) || Float.isNaN(pr) || pl < 0.90 || pr < 0.90) {
+            fx = filters.charge(lowpass_eyegaze_fx, 0);
+            fy = filters.charge(lowpass_eyegaze_fy, 0);
         }
 
         // Log.i(TAG, String.format("fx=%.2f", fx));
@@ -222,25 +177,13 @@ public class GestureRecognizer {
                     lookLeftFound = true;
                     gazeLeftWaitStop = true;
                     Log.i(TAG, "LOOKING LEFT");
-                    int lookLeftId = SettingsActivity.SwitchElement.SwitchType.look_left.getValue();
-                    for(SettingsActivity.ActionSwitch actionSwitch: SettingsActivity.actionSwitchArray) {
-                        if(lookLeftId == service.prefs.getInt(actionSwitch.sharedPrefsName, actionSwitch.sharedPrefsDefault)) {
-                            service.elementSelector.activateSwitch(actionSwitch.switchAction);
-                            break;
-                        }
-                    }
+                    service.queueGesture(SettingsActivity.SwitchElement.SwitchType.look_left);
                 } else if(fx < 0 && Math.abs(fx) > thresh_right){
                     lookRightFoundTime = SystemClock.elapsedRealtime();
                     lookRightFound = true;
                     gazeRightWaitStop = true;
                     Log.i(TAG, "LOOKING RIGHT");
-                    int lookRightId = SettingsActivity.SwitchElement.SwitchType.look_right.getValue();
-                    for(SettingsActivity.ActionSwitch actionSwitch: SettingsActivity.actionSwitchArray) {
-                        if(lookRightId == service.prefs.getInt(actionSwitch.sharedPrefsName, actionSwitch.sharedPrefsDefault)) {
-                            service.elementSelector.activateSwitch(actionSwitch.switchAction);
-                            break;
-                        }
-                    }
+                    service.queueGesture(SettingsActivity.SwitchElement.SwitchType.look_right);
                 }
             }/* else if (Math.abs(fy) > thresh_up && !gazeLeftWaitStop && !gazeRightWaitStop && !gazeUpWaitStop) {
                 lookUpFoundTime = SystemClock.elapsedRealtime();
@@ -266,14 +209,16 @@ public class GestureRecognizer {
     }
 
     // we use low fc=0.1Hz because a slow smile will still be registered (i.e. rising slope won't get differentiated)
-    HighpassFilter highpass_smile_Lx = new HighpassFilter(30, 0.1); // prej je bilo 0.5
-    HighpassFilter highpass_smile_Ly = new HighpassFilter(30, 0.1);
-    HighpassFilter highpass_translation_X2 = new HighpassFilter(30, 0.3);   // 0.3 gives 2.2Tau ~= 1sec
-    HighpassFilter highpass_translation_Y2 = new HighpassFilter(30, 0.3);
+    // (Lx, X2, Y2: one filter group, stepped together)
+    // Lx fc=0.1 (prej je bilo 0.5); X2, Y2 fc=0.3, 0.3 gives 2.2Tau ~= 1sec
+    int highpass_smile_Lx = filters.addGroup(new FilterBank.Kind[] {FilterBank.Kind.highpass, FilterBank.Kind.highpass, FilterBank.Kind.highpass},
+            new double[] {0.1, 0.3, 0.3});
+    int highpass_translation_X2 = highpass_smile_Lx + 1;
+    int highpass_translation_Y2 = highpass_smile_Lx + 2;
     double SMILE_THRESHOLD_CONSTANT = 0.12; // 0.09
     double SMILE_STOP_PERCENTAGE = 0.2;
     boolean smileWaitStop = false;
-    LowpassFilter lowpass_smile = new LowpassFilter(30, 2.0); // fc=2.0Hz ==> rise time (90%) = 2.2/(2pi*2.0) = 0.175 sec
+    int lowpass_smile = filters.addLowpass(2.0); // fc=2.0Hz ==> rise time (90%) = 2.2/(2pi*2.0) = 0.175 sec
 
     int SMILE_THRESH_INDEX;
     double[] SMILE_THRESHOLDS = {
@@ -288,7 +233,7 @@ public class GestureRecognizer {
             0.6 * SMILE_THRESHOLD_CONSTANT,
     };
 
-    void detectSmile(List<Face> faces) {
+    void detectSmile() {
         double Lx;
         //double Ly;
         double Lnorm;
@@ -300,70 +245,39 @@ public class GestureRecognizer {
         double lpf;
         double Dnorm;
         double thresh = SMILE_THRESHOLDS[SMILE_THRESH_INDEX]; //SMILE_THRESHOLD_CONSTANT;
-        Face face;
+        FaceGeometry g = geometry;
 
         if(g_FPS == 0)
             return;
 
-        if(faces.size() == 0)
-            return;
-
-        face = faces.get(0);
-
-        FaceContour lowerLipBottom = face.getContour(FaceContour.LOWER_LIP_BOTTOM);
-        if(lowerLipBottom == null)
+        if(!g.valid)
             return;
 
-        FaceContour upperLipTop = face.getContour(FaceContour.UPPER_LIP_TOP);
-        if(upperLipTop == null)
+        if(!g.has(FaceContour.LOWER_LIP_BOTTOM, 5) || !g.has(FaceContour.UPPER_LIP_TOP, 11)
+                || !g.has(FaceContour.LEFT_EYE, 9) || !g.has(FaceContour.NOSE_BOTTOM, 1))
             return;
 
-        FaceContour leftEye = face.getContour(FaceContour.LEFT_EYE);
-        if(leftEye == null)
-            return;
-
-        FaceContour noseBottom = face.getContour(FaceContour.NOSE_BOTTOM);
-        if(noseBottom == null)
-            return;
-
-        List<PointF> noseBottomPoints = noseBottom.getPoints();
-        List<PointF> lowerLipBottomPoints = lowerLipBottom.getPoints();
-        List<PointF> upperLipTopPoints = upperLipTop.getPoints();
-        List<PointF> leftEyePoints = leftEye.getPoints();
-
-        PointF pt_noseBottomLeft = noseBottomPoints.get(0); // around left nostril basically
-        PointF pt_leftMouth = upperLipTopPoints.get(0);
-        PointF pt_rightMouth = upperLipTopPoints.get(10);
-        PointF pt_bottomMouth = lowerLipBottomPoints.get(4);
-        PointF pt_leftEyeLeft = leftEyePoints.get(0);
-        PointF pt_leftEyeRight = leftEyePoints.get(8);
-
         // Lnorm = eye width
-        Lnorm = Math.sqrt(Math.pow(pt_leftEyeRight.x - pt_leftEyeLeft.x, 2) + Math.pow(pt_leftEyeRight.y - pt_leftEyeLeft.y, 2)); //pt_leftEyeRight.x - pt_leftEyeLeft.x;
+        Lnorm = g.leftEyeWidth;
 
         // Lx = rightmost MINUS leftmost lip corner
-        Lx = Math.sqrt(Math.pow(pt_rightMouth.x - pt_leftMouth.x, 2) + Math.pow(pt_rightMouth.y - pt_leftMouth.y, 2)); //pt_rightMouth.x - pt_leftMouth.x;
-        Tx = pt_noseBottomLeft.x;
-        Ty = pt_noseBottomLeft.y;
+        Lx = g.distance(FaceContour.UPPER_LIP_TOP, 0, FaceContour.UPPER_LIP_TOP, 10);
+        Tx = g.noseX;
+        Ty = g.noseY;
 
         // Ly = middle bottom lip (y) MINUS leftmost (y) lip corner
         //Ly = pt_bottomMouth.y - pt_leftMouth.y; // idea: make it max(diff_bottomToleftMouth, diff_bottomTorightMouth)?
 
-        highpass_smile_Lx.setSamplingFrequency(g_FPS);
-        //highpass_smile_Ly.setSamplingFrequency(g_FPS);
-        highpass_translation_X2.setSamplingFrequency(g_FPS);
-        highpass_translation_Y2.setSamplingFrequency(g_FPS);
-        if(!firstRun) {
-            dx = highpass_smile_Lx.computeSample(Lx);
-            //dy = highpass_smile_Ly.computeSample(Ly);
-            dTx = highpass_translation_X2.computeSample(Tx);
-            dTy = highpass_translation_Y2.computeSample(Ty);
-        } else {
-            dx = highpass_smile_Lx.chargeSample(Lx);
-            //dy = highpass_smile_Ly.chargeSample(Ly);
-            dTx = highpass_translation_X2.chargeSample(Tx);
-            dTy = highpass_translation_Y2.chargeSample(Ty);
-        }
+        filterIn[0] = Lx;
+        filterIn[1] = Tx;
+        filterIn[2] = Ty;
+        if(!firstRun)
+            filters.step(highpass_smile_Lx, 3, filterIn, filterOut);
+        else
+            filters.charge(highpass_smile_Lx, 3, filterIn, filterOut);
+        dx = filterOut[0];
+        dTx = filterOut[1];
+        dTy = filterOut[2];
 
         dT = Math.sqrt(Math.pow(dTx, 2.0) + Math.pow(dTy, 2.0))/Lnorm;
         factor = Math.exp(-5.0*dT);    // factor is 0.86 at dT=0.03 and 0.22 at dT=0.3
@@ -375,16 +289,9 @@ public class GestureRecognizer {
             if(!smileWaitStop) {
                 Log.i(TAG, "DETECTED SMILE");
                 if(service.elementSelector != null) {
-                    int smileId = SettingsActivity.SwitchElement.SwitchType.smile.getValue();
-                    for(SettingsActivity.ActionSwitch actionSwitch: SettingsActivity.actionSwitchArray) {
-                        if(smileId == service.prefs.getInt(actionSwitch.sharedPrefsName, actionSwitch.sharedPrefsDefault)) {
-                            service.elementSelector.activateSwitch(actionSwitch.switchAction);
-                            break;
-                        }
-                    }
+                    service.queueGesture(SettingsActivity.SwitchElement.SwitchType.smile);
                 }
-                lowpass_smile.setSamplingFrequency(g_FPS);
-                lowpass_smile.chargeSample(Dnorm);
+                filters.charge(lowpass_smile, Dnorm);
 
                 smileFoundTime = SystemClock.elapsedRealtime();
                 smileFound = true;
@@ -393,8 +300,7 @@ public class GestureRecognizer {
         }
 
         if(smileWaitStop) {
-            lowpass_smile.setSamplingFrequency(g_FPS);
-            lpf = lowpass_smile.computeSample(Dnorm);
+            lpf = filters.step(lowpass_smile, Dnorm);
             if(lpf <= SMILE_STOP_PERCENTAGE * SMILE_THRESHOLD_CONSTANT) {
                 smileWaitStop = false;
                 //Log.i(TAG, "end of smile");
@@ -404,13 +310,15 @@ public class GestureRecognizer {
 
     // Low value of fc=0.1 works well for slow eyebrow lifts, as it doesn't differentiate the slowly rising slope
     // Here the time for it to be differentiated is ~2.2Tau = 3.5 seconds
-    HighpassFilter highpass_eyebrow = new HighpassFilter(30, 0.1);
-    HighpassFilter highpass_translation_X1 = new HighpassFilter(30, 0.3);   // 0.3 gives 2.2Tau ~= 1sec
-    HighpassFilter highpass_translation_Y1 = new HighpassFilter(30, 0.3);
+    // (eyebrow, X1, Y1: one filter group, stepped together; X1, Y1 fc=0.3 gives 2.2Tau ~= 1sec)
+    int highpass_eyebrow = filters.addGroup(new FilterBank.Kind[] {FilterBank.Kind.highpass, FilterBank.Kind.highpass, FilterBank.Kind.highpass},
+            new double[] {0.1, 0.3, 0.3});
+    int highpass_translation_X1 = highpass_eyebrow + 1;
+    int highpass_translation_Y1 = highpass_eyebrow + 2;
     double EYEBROW_THRESHOLD_CONSTANT = 0.09;  // 0.08
     double EYEBROW_STOP_PERCENTAGE = 0.2;
     boolean eyebrowWaitStop = false;
-    LowpassFilter lowpass_eyebrow = new LowpassFilter(30, 2.0); // fc=2.0Hz ==> rise time (90%) = 2.2/(2pi*2.0) = 0.175 sec
+    int lowpass_eyebrow = filters.addLowpass(2.0); // fc=2.0Hz ==> rise time (90%) = 2.2/(2pi*2.0) = 0.175 sec
 
     int EYEBROW_THRESH_INDEX;
     double[] EYEBROW_THRESHOLDS = {
@@ -425,7 +333,7 @@ public class GestureRecognizer {
             0.6 * EYEBROW_THRESHOLD_CONSTANT,
     };
 
-    void detectEyebrowRaise(List<Face> faces) {
+    void detectEyebrowRaise() {
         double Lnorm;
         double Ly, dy = 0;
         double Tx, Ty;  // absolute translation point
@@ -434,49 +342,20 @@ public class GestureRecognizer {
         double lpf;
         double Dnorm;
         double thresh = EYEBROW_THRESHOLDS[EYEBROW_THRESH_INDEX]; //EYEBROW_THRESHOLD_CONSTANT;
-        Face face;
+        FaceGeometry g = geometry;
 
         if(g_FPS == 0)
             return;
 
-        if(faces.size() == 0)
-            return;
-
-        face = faces.get(0);
-
-        FaceContour leftEyebrowTop = face.getContour(FaceContour.LEFT_EYEBROW_TOP);
-        if(leftEyebrowTop == null)
+        if(!g.valid)
             return;
 
-        FaceContour leftEye = face.getContour(FaceContour.LEFT_EYE);
-        if(leftEye == null)
+        if(!g.has(FaceContour.LEFT_EYEBROW_TOP, 5) || !g.has(FaceContour.LEFT_EYE, 9)
+                || !g.has(FaceContour.RIGHT_EYE, 9) || !g.has(FaceContour.NOSE_BOTTOM, 1))
             return;
 
-        FaceContour rightEye = face.getContour(FaceContour.RIGHT_EYE);
-        if(rightEye == null)
-            return;
-
-        FaceContour noseBottom = face.getContour(FaceContour.NOSE_BOTTOM);
-        if(noseBottom == null)
-            return;
-
-        List<PointF> noseBottomPoints = noseBottom.getPoints();
-        List<PointF> leftEyebrowTopPoints = leftEyebrowTop.getPoints();
-        List<PointF> leftEyePoints = leftEye.getPoints();
-        List<PointF> rightEyePoints = rightEye.getPoints();
-
-        PointF pt_noseBottomLeft = noseBottomPoints.get(0); // around left nostril basically
-        PointF pt_leftEyeLeft = leftEyePoints.get(0);
-        PointF pt_leftEyeRight = leftEyePoints.get(8);
-        PointF pt_rightEyeLeft = rightEyePoints.get(0);
-        PointF pt_rightEyeRight = rightEyePoints.get(8);
-
         // Lnorm = eye width
-        Lnorm = Math.sqrt(Math.pow(pt_leftEyeRight.x - pt_leftEyeLeft.x, 2) + Math.pow(pt_leftEyeRight.y - pt_leftEyeLeft.y, 2)); //pt_leftEyeRight.x - pt_leftEyeLeft.x;
-
-        double eyeCornerDist = Math.sqrt(Math.pow(pt_rightEyeRight.x - pt_leftEyeLeft.x, 2) + Math.pow(pt_rightEyeRight.y - pt_leftEyeLeft.y, 2));
-        float angle = (float) Math.asin((pt_rightEyeRight.y - pt_leftEyeLeft.y)/eyeCornerDist);
-        //float angle = (float) Math.asin((pt_leftEyeRight.y - pt_leftEyeLeft.y)/Lnorm);
+        Lnorm = g.leftEyeWidth;
 
         // Ly1 = difference between eyebrow.y and nosebottom_left.y
         // (btw we *must* use this L1 difference because otherwise dy1 goes off chart every time head moves up/down)
@@ -484,27 +363,26 @@ public class GestureRecognizer {
                                 leftEyebrowTopPoints.get(2).y +
                                 leftEyebrowTopPoints.get(3).y +
                                 leftEyebrowTopPoints.get(4).y)/4;*/
-        Ly = rotatePoint(pt_noseBottomLeft, -angle).y -
-                (rotatePoint(leftEyebrowTopPoints.get(1), -angle).y +
-                        rotatePoint(leftEyebrowTopPoints.get(2), -angle).y +
-                        rotatePoint(leftEyebrowTopPoints.get(3), -angle).y +
-                        rotatePoint(leftEyebrowTopPoints.get(4), -angle).y)/4;
-
-        Tx = pt_noseBottomLeft.x;
-        Ty = pt_noseBottomLeft.y;
-
-        highpass_eyebrow.setSamplingFrequency(g_FPS);
-        highpass_translation_X1.setSamplingFrequency(g_FPS);
-        highpass_translation_Y1.setSamplingFrequency(g_FPS);
-        if(!firstRun) {
-            dy = highpass_eyebrow.computeSample(Ly);
-            dTx = highpass_translation_X1.computeSample(Tx);
-            dTy = highpass_translation_Y1.computeSample(Ty);
-        } else {
-            dy = highpass_eyebrow.chargeSample(Ly);
-            dTx = highpass_translation_X1.chargeSample(Tx);
-            dTy = highpass_translation_Y1.chargeSample(Ty);
-        }
+        // (both taken with the head roll undone)
+        Ly = g.unrolledY(FaceContour.NOSE_BOTTOM, 0) -
+                (g.unrolledY(FaceContour.LEFT_EYEBROW_TOP, 1) +
+                        g.unrolledY(FaceContour.LEFT_EYEBROW_TOP, 2) +
+                        g.unrolledY(FaceContour.LEFT_EYEBROW_TOP, 3) +
+                        g.unrolledY(FaceContour.LEFT_EYEBROW_TOP, 4))/4;
+
+        Tx = g.noseX;
+        Ty = g.noseY;
+
+        filterIn[0] = Ly;
+        filterIn[1] = Tx;
+        filterIn[2] = Ty;
+        if(!firstRun)
+            filters.step(highpass_eyebrow, 3, filterIn, filterOut);
+        else
+            filters.charge(highpass_eyebrow, 3, filterIn, filterOut);
+        dy = filterOut[0];
+        dTx = filterOut[1];
+        dTy = filterOut[2];
 
         dT = Math.sqrt(Math.pow(dTx, 2.0) + Math.pow(dTy, 2.0))/Lnorm;
         factor = Math.exp(-5.0*dT);    // factor is 0.86 at dT=0.03 and 0.22 at dT=0.3
@@ -516,16 +394,9 @@ public class GestureRecognizer {
             if(!eyebrowWaitStop) {
                 Log.i(TAG, "DETECTED EYEBROW RAISE");
                 if(service.elementSelector != null) {
-                    int eyebrowId = SettingsActivity.SwitchElement.SwitchType.eyebrow.getValue();
-                    for(SettingsActivity.ActionSwitch actionSwitch: SettingsActivity.actionSwitchArray) {
-                        if(eyebrowId == service.prefs.getInt(actionSwitch.sharedPrefsName, actionSwitch.sharedPrefsDefault)) {
-                            service.elementSelector.activateSwitch(actionSwitch.switchAction);
-                            break;
-                        }
-                    }
+                    service.queueGesture(SettingsActivity.SwitchElement.SwitchType.eyebrow);
                 }
-                lowpass_eyebrow.setSamplingFrequency(g_FPS);
-                lowpass_eyebrow.chargeSample(Dnorm);
+                filters.charge(lowpass_eyebrow, Dnorm);
 
                 eyebrowFoundTime = SystemClock.elapsedRealtime();
                 eyebrowFound = true;
@@ -535,8 +406,7 @@ public class GestureRecognizer {
         }
 
         if(eyebrowWaitStop) {
-            lowpass_eyebrow.setSamplingFrequency(g_FPS);
-            lpf = lowpass_eyebrow.computeSample(Dnorm);
+            lpf = filters.step(lowpass_eyebrow, Dnorm);
             if(lpf <= EYEBROW_STOP_PERCENTAGE * EYEBROW_THRESHOLD_CONSTANT) {
                 eyebrowWaitStop = false;
                 //Log.i(TAG, "end of eyebrow raise");
@@ -574,23 +444,22 @@ public class GestureRecognizer {
             0.70,
     };
 
-    void detectEyeClosed(List<Face> faces)
+    void detectEyeClosed()
     {
-        Float L, R;
+        float L, R;
+        FaceGeometry g = geometry;
 
         double EYECLOSED_THRESH = EYECLOSED_THRESHOLDS[EYECLOSED_THRESH_INDEX];
 
         if(g_FPS == 0)
             return;
 
-        if(faces.size() == 0)
+        if(!g.valid)
             return;
 
-        Face face = faces.get(0);
-
-        L = face.getRightEyeOpenProbability();
-        R = face.getLeftEyeOpenProbability();
-        if(L == null || R == null)
+        L = g.rightEyeOpen;
+        R = g.leftEyeOpen;
+        if(Float.isNaN(L) || Float.isNaN(R))
             return;
 
         // Log.i(TAG, String.format("Left: %.2f; Right: %.2f", L, R));
@@ -604,13 +473,7 @@ public class GestureRecognizer {
             } else if(eyeClosed == EyeClosed.left && (SystemClock.elapsedRealtime() - eyeClosedTime) >= EYECLOSED_MIN_TIME_MS) {
                 Log.i(TAG, "LEFT EYE CLOSED");
                 if(service.elementSelector != null) {
-                    int leftWinkId = SettingsActivity.SwitchElement.SwitchType.left_wink.getValue();
-                    for(SettingsActivity.ActionSwitch actionSwitch: SettingsActivity.actionSwitchArray) {
-                        if(leftWinkId == service.prefs.getInt(actionSwitch.sharedPrefsName, actionSwitch.sharedPrefsDefault)) {
-                            service.elementSelector.activateSwitch(actionSwitch.switchAction);
-                            break;
-                        }
-                    }
+                    service.queueGesture(SettingsActivity.SwitchElement.SwitchType.left_wink);
                 }
                 leftWinkFoundTime = SystemClock.elapsedRealtime();
                 leftWinkFound = true;
@@ -623,13 +486,7 @@ public class GestureRecognizer {
             } else if(eyeClosed == EyeClosed.right && (SystemClock.elapsedRealtime() - eyeClosedTime) >= EYECLOSED_MIN_TIME_MS) {
                 Log.i(TAG, "RIGHT EYE CLOSED");
                 if(service.elementSelector != null) {
-                    int rightWinkId = SettingsActivity.SwitchElement.SwitchType.right_wink.getValue();
-                    for(SettingsActivity.ActionSwitch actionSwitch: SettingsActivity.actionSwitchArray) {
-                        if(rightWinkId == service.prefs.getInt(actionSwitch.sharedPrefsName, actionSwitch.sharedPrefsDefault)) {
-                            service.elementSelector.activateSwitch(actionSwitch.switchAction);
-                            break;
-                        }
-                    }
+                    service.queueGesture(SettingsActivity.SwitchElement.SwitchType.right_wink);
                 }
                 rightWinkFoundTime = SystemClock.elapsedRealtime();
                 rightWinkFound = true;
@@ -656,16 +513,22 @@ public class GestureRecognizer {
                 }
             }
         }
+
+        // closing eye(s) may be the start of a wink or of the (un)pause gesture; keep full frame rate
+        if(eyeClosed != EyeClosed.none)
+            service.frameRateGovernor.notifyGestureOnset();
     }
 
-    HighpassFilter highpass_translation_X3 = new HighpassFilter(30, 0.3);   // 0.3 gives 2.2Tau ~= 1sec
-    HighpassFilter highpass_translation_Y3 = new HighpassFilter(30, 0.3);
+    double MOUTHOPEN_CHARGETIME = 0.20;   // time it takes for mouth open detection to occur
+    // (mouth, X3, Y3: one filter group, stepped together; X3, Y3 fc=0.3 gives 2.2Tau ~= 1sec)
+    int lowpass_mouth = filters.addGroup(new FilterBank.Kind[] {FilterBank.Kind.lowpass, FilterBank.Kind.highpass, FilterBank.Kind.highpass},
+            new double[] {5.0/(2*PI*MOUTHOPEN_CHARGETIME), 0.3, 0.3});
+    int highpass_translation_X3 = lowpass_mouth + 1;
+    int highpass_translation_Y3 = lowpass_mouth + 2;
     double MOUTHOPEN_RATIO_THRESH = 0.25;    // nominal (open mouth) ratio of mouth-height distance to mouth-corner distance
     double MOUTHOPEN_THRESHOLD_CONSTANT = 0.10; // 0.15
     double MOUTHOPEN_STOP_PERCENTAGE = 0.40;
-    double MOUTHOPEN_CHARGETIME = 0.20;   // time it takes for mouth open detection to occur
     boolean mouthOpenWaitStop = false;
-    LowpassFilter lowpass_mouth = new LowpassFilter(30.0, 5.0/(2*PI*MOUTHOPEN_CHARGETIME));
 
     int MOUTHOPEN_THRESH_INDEX;
     double[] MOUTHOPEN_RATIO_THRESHOLDS = {
@@ -680,7 +543,7 @@ public class GestureRecognizer {
             0.4 * MOUTHOPEN_RATIO_THRESH,
     };
 
-    void detectMouthOpen(List<Face> faces) {
+    void detectMouthOpen() {
         double mouthWidth, mouthHeight;
         double mouthRatio;  // ratio of mouth width to mouth height
         double mouthRatio_lpf;
@@ -691,74 +554,40 @@ public class GestureRecognizer {
         double factor;
         double Dnorm;
         double thresh = MOUTHOPEN_THRESHOLD_CONSTANT;
-        Face face;
+        FaceGeometry g = geometry;
 
         if(g_FPS == 0)
             return;
 
-        if(faces.size() == 0)
-            return;
-
-        face = faces.get(0);
-
-        FaceContour upperLipTop = face.getContour(FaceContour.UPPER_LIP_TOP);
-        if(upperLipTop == null)
-            return;
-
-        FaceContour lowerLipTop = face.getContour(FaceContour.LOWER_LIP_TOP);
-        if(lowerLipTop == null)
+        if(!g.valid)
             return;
 
-        FaceContour upperLipBottom = face.getContour(FaceContour.UPPER_LIP_BOTTOM);
-        if(upperLipBottom == null)
+        if(!g.has(FaceContour.UPPER_LIP_TOP, 11) || !g.has(FaceContour.LOWER_LIP_TOP, 5) || !g.has(FaceContour.UPPER_LIP_BOTTOM, 5)
+                || !g.has(FaceContour.LEFT_EYE, 9) || !g.has(FaceContour.NOSE_BOTTOM, 1))
             return;
 
-        FaceContour leftEye = face.getContour(FaceContour.LEFT_EYE);
-        if(leftEye == null)
-            return;
-
-        FaceContour noseBottom = face.getContour(FaceContour.NOSE_BOTTOM);
-        if(noseBottom == null)
-            return;
-
-        List<PointF> noseBottomPoints = noseBottom.getPoints();
-        List<PointF> upperLipTopPoints = upperLipTop.getPoints();
-        List<PointF> upperLipBottomPoints = upperLipBottom.getPoints();
-        List<PointF> lowerLipTopPoints = lowerLipTop.getPoints();
-        List<PointF> leftEyePoints = leftEye.getPoints();
-
-        PointF pt_noseBottomLeft = noseBottomPoints.get(0); // around left nostril basically
-        PointF pt_leftMouth = upperLipTopPoints.get(0);
-        PointF pt_rightMouth = upperLipTopPoints.get(10);
-        PointF pt_topMouth = upperLipBottomPoints.get(4);   // middle upper lip point
-        PointF pt_bottomMouth = lowerLipTopPoints.get(4);   // middle lower lip point
-        PointF pt_leftEyeLeft = leftEyePoints.get(0);
-        PointF pt_leftEyeRight = leftEyePoints.get(8);
-
         // Lnorm = eye width
-        Lnorm = Math.sqrt(Math.pow(pt_leftEyeRight.x - pt_leftEyeLeft.x, 2) + Math.pow(pt_leftEyeRight.y - pt_leftEyeLeft.y, 2)); //pt_leftEyeRight.x - pt_leftEyeLeft.x;
+        Lnorm = g.leftEyeWidth;
 
         // Ly = distance between middle upper lip point and middle lower lip point
-        Ly = Math.sqrt(Math.pow(pt_bottomMouth.x - pt_topMouth.x, 2) + Math.pow(pt_bottomMouth.y - pt_topMouth.y, 2));
-        Tx = pt_noseBottomLeft.x;
-        Ty = pt_noseBottomLeft.y;
+        Ly = g.distance(FaceContour.UPPER_LIP_BOTTOM, 4, FaceContour.LOWER_LIP_TOP, 4);
+        Tx = g.noseX;
+        Ty = g.noseY;
 
-        mouthWidth = Math.sqrt(Math.pow(pt_rightMouth.x - pt_leftMouth.x, 2) + Math.pow(pt_rightMouth.y - pt_leftMouth.y, 2));
+        mouthWidth = g.distance(FaceContour.UPPER_LIP_TOP, 0, FaceContour.UPPER_LIP_TOP, 10);
         mouthHeight = Ly;
         mouthRatio = mouthHeight/mouthWidth;
 
-        lowpass_mouth.setSamplingFrequency(g_FPS);
-        highpass_translation_X3.setSamplingFrequency(g_FPS);
-        highpass_translation_Y3.setSamplingFrequency(g_FPS);
-        if(!firstRun) {
-            fy = lowpass_mouth.computeSample(Ly);
-            dTx = highpass_translation_X3.computeSample(Tx);
-            dTy = highpass_translation_Y3.computeSample(Ty);
-        } else {
-            fy = lowpass_mouth.chargeSample(Ly);
-            dTx = highpass_translation_X3.chargeSample(Tx);
-            dTy = highpass_translation_Y3.chargeSample(Ty);
-        }
+        filterIn[0] = Ly;
+        filterIn[1] = Tx;
+        filterIn[2] = Ty;
+        if(!firstRun)
+            filters.step(lowpass_mouth, 3, filterIn, filterOut);
+        else
+            filters.charge(lowpass_mouth, 3, filterIn, filterOut);
+        fy = filterOut[0];
+        dTx = filterOut[1];
+        dTy = filterOut[2];
 
         dT = Math.sqrt(Math.pow(dTx, 2.0) + Math.pow(dTy, 2.0))/Lnorm;
         factor = Math.exp(-5.0*dT);    // factor is 0.86 at dT=0.03 and 0.22 at dT=0.3
@@ -770,13 +599,7 @@ public class GestureRecognizer {
             if(!mouthOpenWaitStop) {
                 Log.i(TAG, "DETECTED MOUTH OPEN");
                 if(service.elementSelector != null) {
-                    int mouthOpenId = SettingsActivity.SwitchElement.SwitchType.mouth_open.getValue();
-                    for(SettingsActivity.ActionSwitch actionSwitch: SettingsActivity.actionSwitchArray) {
-                        if(mouthOpenId == service.prefs.getInt(actionSwitch.sharedPrefsName, actionSwitch.sharedPrefsDefault)) {
-                            service.elementSelector.activateSwitch(actionSwitch.switchAction);
-                            break;
-                        }
-                    }
+                    service.queueGesture(SettingsActivity.SwitchElement.SwitchType.mouth_open);
                 }
                 mouthOpenFoundTime = SystemClock.elapsedRealtime();
                 mouthOpenFound = true;
@@ -792,10 +615,6 @@ public class GestureRecognizer {
         }
     }
 
-    PointF rotatePoint(PointF v, float beta) { // counterclockwise rotation
-        return new PointF((float)(Math.cos(beta)*v.x - Math.sin(beta)*v.y), (float)(Math.sin(beta)*v.x + Math.cos(beta)*v.y));
-    }
-
     int gestureFoundHoldTime = 1500;
     boolean faceFound = false;
     boolean faceFound() {
@@ -0,0 +1,204 @@
+package com.obstino.facecontrol;
+
+// Means-of-gradients pupil finder (Timm & Barth, "Accurate eye centre localisation by means of
+// gradients"): the pupil center is the point c that maximizes
+//     (255 - gray(c))/255 * mean_i( max(0, d_i . g_i)^2 )
+// where g_i are the unit image gradients at strong edges inside the eye and d_i the unit vectors
+// from c to those edge pixels - at the iris/pupil border gradients point away from the center.
+// Coarse to fine: every candidate is scored on the smallest pyramid level, then each finer level
+// only looks at REFINE_RADIUS pixels around the (upscaled) previous best.
+// Stateless between frames; the pyramid and gradient buffers are reused and only grow. Level 0 is
+// the crop itself (any stride), the smaller levels are packed.
+class GradientEyeCenterEstimator implements EyeCenterEstimator {
+    static final int MAX_LEVELS = 3;
+    static final int MIN_LEVEL_SIZE = 6;        // don't downsample below this width/height
+    static final int REFINE_RADIUS = 2;
+    static final float GRADIENT_STD_FACTOR = 0.3f;  // edge threshold: mean + factor*std of gradient magnitudes
+
+    private final IntRaster[] levelGray = new IntRaster[MAX_LEVELS];
+    private final ByteRaster[] levelMask = new ByteRaster[MAX_LEVELS];
+
+    GradientEyeCenterEstimator() {
+        for(int level = 0; level < MAX_LEVELS; level++) {
+            levelGray[level] = new IntRaster();
+            levelMask[level] = new ByteRaster();
+        }
+    }
+
+    // strong gradients of the current level: position and unit direction
+    private int gradientCount;
+    private int[] gradX = new int[0];
+    private int[] gradY = new int[0];
+    private float[] gradNX = new float[0];
+    private float[] gradNY = new float[0];
+    private float[] gradMag = new float[0];
+
+    private int bestX, bestY;
+    private float bestAlignment;    // mean squared alignment at the best candidate (0..1)
+
+    @Override
+    public void reset() {
+    }
+
+    @Override
+    public float estimate(EyeCrop crop, float[] center) {
+        center[0] = Float.NaN;
+        center[1] = Float.NaN;
+
+        int levels = buildPyramid(crop);
+        int top = levels - 1;
+
+        // coarsest level: every masked pixel is a candidate
+        computeGradients(top);
+        if(!searchCandidates(top, 0, 0, levelGray[top].width - 1, levelGray[top].height - 1))
+            return 0.0f;
+
+        for(int level = top - 1; level >= 0; level--) {
+            int cx = bestX * 2, cy = bestY * 2;
+            computeGradients(level);
+            if(!searchCandidates(level, cx - REFINE_RADIUS, cy - REFINE_RADIUS, cx + 1 + REFINE_RADIUS, cy + 1 + REFINE_RADIUS)) {
+                // nothing usable at this level (e.g. no edges), keep the coarse result
+                float scale = 1 << (level + 1);
+                center[0] = bestX * scale + (scale - 1) / 2.0f;
+                center[1] = bestY * scale + (scale - 1) / 2.0f;
+                return bestAlignment;
+            }
+        }
+
+        center[0] = bestX;
+        center[1] = bestY;
+        return bestAlignment;
+    }
+
+    private int buildPyramid(EyeCrop crop) {
+        IntRaster gray0 = crop.gray;
+        ByteRaster mask0 = crop.mask;
+        levelGray[0].set(gray0.data, gray0.offset, gray0.width, gray0.height, gray0.stride);
+        levelMask[0].set(mask0.data, mask0.offset, mask0.width, mask0.height, mask0.stride);
+
+        int levels = 1;
+        while(levels < MAX_LEVELS) {
+            IntRaster src = levelGray[levels - 1], dst = levelGray[levels];
+            ByteRaster srcMask = levelMask[levels - 1], dstMask = levelMask[levels];
+            int w = src.width / 2, h = src.height / 2;
+            if(w < MIN_LEVEL_SIZE || h < MIN_LEVEL_SIZE)
+                break;
+
+            dst.reset(w, h);
+            dstMask.reset(w, h);
+            int[] srcData = src.data;
+            byte[] srcMaskData = srcMask.data;
+            int srcStride = src.stride, srcMaskStride = srcMask.stride;
+            for(int y = 0; y < h; y++) {
+                for(int x = 0; x < w; x++) {
+                    int k = src.offset + (2 * y) * srcStride + 2 * x;
+                    dst.data[y * w + x] = (srcData[k] + srcData[k + 1] + srcData[k + srcStride] + srcData[k + srcStride + 1]) / 4;
+                    // conservative: the whole 2x2 block must be inside the eye
+                    int m = srcMask.offset + (2 * y) * srcMaskStride + 2 * x;
+                    boolean inside = srcMaskData[m] != 0 && srcMaskData[m + 1] != 0 && srcMaskData[m + srcMaskStride] != 0 && srcMaskData[m + srcMaskStride + 1] != 0;
+                    dstMask.data[y * w + x] = (byte)(inside ? 1 : 0);
+                }
+            }
+            levels++;
+        }
+        return levels;
+    }
+
+    // Central difference gradients at pixels whose 4-neighbourhood is inside the eye (the mask
+    // border itself is an artificial edge), keeping only the strong ones
+    private void computeGradients(int level) {
+        IntRaster grayRaster = levelGray[level];
+        ByteRaster maskRaster = levelMask[level];
+        int[] gray = grayRaster.data;
+        byte[] mask = maskRaster.data;
+        int w = grayRaster.width, h = grayRaster.height;
+        int gs = grayRaster.stride, ms = maskRaster.stride;
+        if(gradX.length < w * h) {
+            gradX = new int[w * h];
+            gradY = new int[w * h];
+            gradNX = new float[w * h];
+            gradNY = new float[w * h];
+            gradMag = new float[w * h];
+        }
+
+        gradientCount = 0;
+        double sum = 0, sumSquares = 0;
+        for(int y = 1; y < h - 1; y++) {
+            for(int x = 1; x < w - 1; x++) {
+                int m = maskRaster.offset + y * ms + x;
+                if(mask[m] == 0 || mask[m - 1] == 0 || mask[m + 1] == 0 || mask[m - ms] == 0 || mask[m + ms] == 0)
+                    continue;
+                int k = grayRaster.offset + y * gs + x;
+                float gx = (gray[k + 1] - gray[k - 1]) / 2.0f;
+                float gy = (gray[k + gs] - gray[k - gs]) / 2.0f;
+                float mag = (float)Math.sqrt(gx * gx + gy * gy);
+                if(mag == 0.0f)
+                    continue;
+                gradX[gradientCount] = x;
+                gradY[gradientCount] = y;
+                gradNX[gradientCount] = gx / mag;
+                gradNY[gradientCount] = gy / mag;
+                gradMag[gradientCount] = mag;
+                gradientCount++;
+                sum += mag;
+                sumSquares += (double)mag * mag;
+            }
+        }
+        if(gradientCount == 0)
+            return;
+
+        double mean = sum / gradientCount;
+        double std = Math.sqrt(Math.max(sumSquares / gradientCount - mean * mean, 0.0));
+        float threshold = (float)(mean + GRADIENT_STD_FACTOR * std);
+        int kept = 0;
+        for(int i = 0; i < gradientCount; i++) {
+            if(gradMag[i] >= threshold) {
+                gradX[kept] = gradX[i];
+                gradY[kept] = gradY[i];
+                gradNX[kept] = gradNX[i];
+                gradNY[kept] = gradNY[i];
+                kept++;
+            }
+        }
+        gradientCount = kept;
+    }
+
+    // Scores masked candidates in [x0, x1] x [y0, y1] (clipped), sets bestX/bestY/bestAlignment.
+    // Returns false if there was no candidate or no gradient.
+    private boolean searchCandidates(int level, int x0, int y0, int x1, int y1) {
+        IntRaster gray = levelGray[level];
+        ByteRaster mask = levelMask[level];
+        int w = gray.width, h = gray.height;
+        if(gradientCount == 0)
+            return false;
+
+        float bestScore = -1.0f;
+        for(int cy = Math.max(y0, 0); cy <= Math.min(y1, h - 1); cy++) {
+            for(int cx = Math.max(x0, 0); cx <= Math.min(x1, w - 1); cx++) {
+                if(mask.get(cx, cy) == 0)
+                    continue;
+
+                float alignment = 0.0f;
+                for(int i = 0; i < gradientCount; i++) {
+                    float dx = gradX[i] - cx;
+                    float dy = gradY[i] - cy;
+                    float dist2 = dx * dx + dy * dy;
+                    if(dist2 == 0.0f)
+                        continue;
+                    float dot = dx * gradNX[i] + dy * gradNY[i];
+                    if(dot > 0.0f)
+                        alignment += dot * dot / dist2;     // (d/|d| . g)^2
+                }
+                alignment /= gradientCount;
+                float score = (255 - gray.get(cx, cy)) / 255.0f * alignment;
+                if(score > bestScore) {
+                    bestScore = score;
+                    bestX = cx;
+                    bestY = cy;
+                    bestAlignment = alignment;
+                }
+            }
+        }
+        return bestScore >= 0.0f;
+    }
+}
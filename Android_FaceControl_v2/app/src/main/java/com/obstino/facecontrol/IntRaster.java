@@ -0,0 +1,77 @@
+package com.obstino.facecontrol;
+
+// Pure-Java image of packed ints (ARGB pixels, or gray values 0..255), so pixel kernels don't depend
+// on android.graphics and run under plain JUnit/JMH. Pixel (x, y) is data[offset + y*stride + x].
+// A raster either owns its buffer (reset() grows it, never shrinks) or is a view into another
+// raster's buffer (view(), same data, no copy).
+class IntRaster {
+    int[] data;
+    int offset;
+    int width;
+    int height;
+    int stride;
+
+    IntRaster() {
+        data = new int[0];
+    }
+
+    IntRaster(int width, int height) {
+        data = new int[width * height];
+        this.width = width;
+        this.height = height;
+        this.stride = width;
+    }
+
+    // Wraps existing packed pixels (stride = width)
+    IntRaster(int[] data, int width, int height) {
+        set(data, 0, width, height, width);
+    }
+
+    void set(int[] data, int offset, int width, int height, int stride) {
+        this.data = data;
+        this.offset = offset;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+    }
+
+    // Makes this a packed width x height raster, reusing the buffer when it's big enough
+    void reset(int width, int height) {
+        if(data.length < width * height)
+            data = new int[width * height];
+        offset = 0;
+        this.width = width;
+        this.height = height;
+        this.stride = width;
+    }
+
+    // Region of interest sharing this raster's data
+    IntRaster view(int x, int y, int w, int h) {
+        IntRaster view = new IntRaster();
+        setView(view, x, y, w, h);
+        return view;
+    }
+
+    // Allocation-free view(): turns dst into the region (x, y, w, h) of this raster
+    void setView(IntRaster dst, int x, int y, int w, int h) {
+        if(x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height)
+            throw new IllegalArgumentException("View " + x + "," + y + " " + w + "x" + h + " outside " + width + "x" + height);
+        dst.set(data, offset + y * stride + x, w, h, stride);
+    }
+
+    int get(int x, int y) {
+        return data[offset + y * stride + x];
+    }
+
+    void put(int x, int y, int value) {
+        data[offset + y * stride + x] = value;
+    }
+
+    void fill(int value) {
+        for(int y = 0; y < height; y++) {
+            int row = offset + y * stride;
+            for(int x = 0; x < width; x++)
+                data[row + x] = value;
+        }
+    }
+}
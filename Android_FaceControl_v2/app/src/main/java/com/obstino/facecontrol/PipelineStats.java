@@ -0,0 +1,120 @@
+package com.obstino.facecontrol;
+
+import java.util.Locale;
+
+// Per-stage timings of the frame pipeline (capture -> detect -> recognize), accumulated over
+// one g_FPS period and then logged/reset by the recognize stage. Also the gesture event queue
+// between recognition and the action thread (GestureEventQueue): latency, depth, drops, merges,
+// folded in by the queue once per its own stats period.
+// All times are SystemClock.elapsedRealtimeNanos() stamps stored in CameraFrame.
+class PipelineStats {
+    static final int STAGE_CAPTURE = 0;     // image acquired -> frame handed to ML Kit (copy/decode)
+    static final int STAGE_DETECT = 1;      // handed to ML Kit -> ML Kit result callback
+    static final int STAGE_QUEUE = 2;       // ML Kit callback -> picked up by the recognize stage
+    static final int STAGE_RECOGNIZE = 3;   // gesture recognition (+ preview)
+    static final int STAGE_TOTAL = 4;       // image acquired -> recognized
+    static final String[] STAGE_NAMES = {"capture", "detect", "queue", "recognize", "total"};
+
+    private final long[] sumNanos = new long[STAGE_NAMES.length];
+    private final long[] maxNanos = new long[STAGE_NAMES.length];
+    private int frameCount = 0;
+    private int failedCount = 0;
+    private int droppedCount = 0;
+    private long gazeSumNanos = 0;      // EyeCenterFinder.findMeanEyeCenter, frames with gaze detection only
+    private long gazeMaxNanos = 0;
+    private int gazeCount = 0;
+    private long gestureSumNanos = 0;   // recognized -> action thread starts the actions
+    private long gestureMaxNanos = 0;
+    private int gestureCount = 0;
+    private int gestureMaxDepth = 0;    // events queued when one was taken (itself included)
+    private int gestureDroppedCount = 0;
+    private int gestureMergedCount = 0;
+
+    synchronized void addFrame(CameraFrame frame) {
+        add(STAGE_CAPTURE, frame.detectStartTime - frame.captureTime);
+        add(STAGE_DETECT, frame.detectEndTime - frame.detectStartTime);
+        add(STAGE_QUEUE, frame.recognizeStartTime - frame.detectEndTime);
+        add(STAGE_RECOGNIZE, frame.recognizeEndTime - frame.recognizeStartTime);
+        add(STAGE_TOTAL, frame.recognizeEndTime - frame.captureTime);
+        frameCount++;
+    }
+
+    synchronized void addFailedFrame() {
+        failedCount++;
+    }
+
+    // frame replaced by a newer one before it reached detect/recognize (latest-frame-wins)
+    synchronized void addDroppedFrame() {
+        droppedCount++;
+    }
+
+    synchronized void addGaze(long nanos) {
+        gazeSumNanos += nanos;
+        if(nanos > gazeMaxNanos)
+            gazeMaxNanos = nanos;
+        gazeCount++;
+    }
+
+    // GestureEventQueue's statistics since its last flush: delivered gestures (latency recognized ->
+    // actions started, queue depth when taken), and events dropped (queue full or too old) or merged
+    synchronized void addGestures(int count, long latencySumNanos, long latencyMaxNanos, int maxDepth, int dropped, int merged) {
+        gestureCount += count;
+        gestureSumNanos += latencySumNanos;
+        if(latencyMaxNanos > gestureMaxNanos)
+            gestureMaxNanos = latencyMaxNanos;
+        if(maxDepth > gestureMaxDepth)
+            gestureMaxDepth = maxDepth;
+        gestureDroppedCount += dropped;
+        gestureMergedCount += merged;
+    }
+
+    private void add(int stage, long nanos) {
+        sumNanos[stage] += nanos;
+        if(nanos > maxNanos[stage])
+            maxNanos[stage] = nanos;
+    }
+
+    synchronized void reset() {
+        for(int k = 0; k < STAGE_NAMES.length; k++) {
+            sumNanos[k] = 0;
+            maxNanos[k] = 0;
+        }
+        frameCount = 0;
+        failedCount = 0;
+        droppedCount = 0;
+        gazeSumNanos = 0;
+        gazeMaxNanos = 0;
+        gazeCount = 0;
+        gestureSumNanos = 0;
+        gestureMaxNanos = 0;
+        gestureCount = 0;
+        gestureMaxDepth = 0;
+        gestureDroppedCount = 0;
+        gestureMergedCount = 0;
+    }
+
+    // e.g. "capture 1.8/3.0 ms, detect 21.4/30.2 ms, ..." (average/max per stage)
+    synchronized String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for(int k = 0; k < STAGE_NAMES.length; k++) {
+            if(k > 0)
+                sb.append(", ");
+            double avg = frameCount > 0 ? sumNanos[k] / (double)frameCount / 1e6 : 0.0;
+            sb.append(String.format(Locale.US, "%s %.1f/%.1f ms", STAGE_NAMES[k], avg, maxNanos[k] / 1e6));
+        }
+        if(gazeCount > 0)
+            sb.append(String.format(Locale.US, ", gaze %.1f/%.1f ms", gazeSumNanos / (double)gazeCount / 1e6, gazeMaxNanos / 1e6));
+        if(gestureCount > 0)
+            sb.append(String.format(Locale.US, ", gestures %d %.1f/%.1f ms depth %d", gestureCount,
+                    gestureSumNanos / (double)gestureCount / 1e6, gestureMaxNanos / 1e6, gestureMaxDepth));
+        if(gestureDroppedCount > 0)
+            sb.append(", gestures dropped ").append(gestureDroppedCount);
+        if(gestureMergedCount > 0)
+            sb.append(", gestures merged ").append(gestureMergedCount);
+        if(failedCount > 0)
+            sb.append(", failed ").append(failedCount);
+        if(droppedCount > 0)
+            sb.append(", replaced ").append(droppedCount);
+        return sb.toString();
+    }
+}
@@ -30,8 +30,6 @@ import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
-
 public class SettingsActivity extends AppCompatActivity {
     String TAG = "FaceControl.SettingsActivity";
 
@@ -601,27 +599,15 @@ public class SettingsActivity extends AppCompatActivity {
     void checkSpinnersForCameraSwitchesAndControlCamera() {
         FaceControlService service;
         service = FaceControlService.sharedServiceInst;
-        if(service == null || service.startState != StartState.started)
+        if(service == null)
             return;
 
-        // we use cameraSwitchIdList to see if we should start camera or not
-        ArrayList<Integer> cameraSwitchIdList = new ArrayList<>();
-        cameraSwitchIdList.add(SwitchElement.SwitchType.smile.getValue());
-        cameraSwitchIdList.add(SwitchElement.SwitchType.eyebrow.getValue());
-        cameraSwitchIdList.add(SwitchElement.SwitchType.left_wink.getValue());
-        cameraSwitchIdList.add(SwitchElement.SwitchType.right_wink.getValue());
-        cameraSwitchIdList.add(SwitchElement.SwitchType.look_left.getValue());
-        cameraSwitchIdList.add(SwitchElement.SwitchType.look_right.getValue());
-        cameraSwitchIdList.add(SwitchElement.SwitchType.mouth_open.getValue());
-
-        boolean cameraSwitchFound = false;
-        for(ActionSwitch actionSwitch : actionSwitchArray) {
-            int switchIdNumber = prefs.getInt(actionSwitch.sharedPrefsName, actionSwitch.sharedPrefsDefault);
-            if(cameraSwitchIdList.contains(switchIdNumber)) {
-                cameraSwitchFound = true;
-                break;
-            }
-        }
+        // (the service recompiles its SwitchBindings and DetectionPlan itself, from its preference listener)
+        if(service.startState != StartState.started)
+            return;
+
+        // compiled here from what we just wrote, the service's copy may not be updated yet
+        boolean cameraSwitchFound = SwitchBindings.compile(prefs).usesCamera();
 
         if(cameraSwitchFound) {
             Log.i(TAG, "There are some camera switches. Starting camera");
@@ -0,0 +1,40 @@
+package com.obstino.facecontrol;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// Measures how long it takes from starting the camera thread until the user can actually use
+// gestures. Every milestone is logged once per camera session, relative to start().
+class StartupTimer {
+    String TAG = "FaceControl.StartupTimer";
+
+    static final int CAMERA_OPENED = 0;
+    static final int DETECTOR_READY = 1;    // warm-up inference done (model loaded)
+    static final int FIRST_FRAME = 2;
+    static final int FIRST_DETECTION = 3;
+    static final int FIRST_FACE = 4;
+    static final int FIRST_GESTURE = 5;
+    static final String[] MILESTONE_NAMES = {"camera opened", "detector ready", "first frame", "first detection", "first face", "first gesture"};
+
+    private long startTime = -1;
+    private final long[] milestoneTimes = new long[MILESTONE_NAMES.length];
+
+    synchronized void start() {
+        startTime = SystemClock.elapsedRealtime();
+        for(int k = 0; k < milestoneTimes.length; k++)
+            milestoneTimes[k] = -1;
+    }
+
+    synchronized void mark(int milestone) {
+        if(startTime < 0 || milestoneTimes[milestone] >= 0)
+            return;
+
+        milestoneTimes[milestone] = SystemClock.elapsedRealtime() - startTime;
+        Log.i(TAG, MILESTONE_NAMES[milestone] + " after " + milestoneTimes[milestone] + " ms");
+    }
+
+    // ms after start(), or -1 if the milestone wasn't reached (yet)
+    synchronized long getTime(int milestone) {
+        return milestoneTimes[milestone];
+    }
+}
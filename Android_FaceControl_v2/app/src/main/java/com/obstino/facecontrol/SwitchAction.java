@@ -0,0 +1,25 @@
+package com.obstino.facecontrol;
+
+enum SwitchAction {
+    select,   // used to initiate actions (scan start & stop scan line, and also select )
+    next,   // used to select menu items (home, back, recents, notifications, scroll, zoom,...)
+            // NOTE: If no switch is assigned to menu, it will auto-select (scan) from items,
+            // until it gets to end of list (then menu disappears)
+    prev,   // either opens menu or selects previous item
+    scroll_down,
+    scroll_up,
+    scroll_left,
+    scroll_right,
+    zoom_in,
+    zoom_out,
+    rotate_left,
+    rotate_right,
+    home,
+    back,
+    recents,
+    notifications,
+    settings,
+    assistant,
+    volume_up,
+    volume_down
+}
@@ -0,0 +1,138 @@
+package com.obstino.facecontrol;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Switch -> action table compiled from the binding preferences (SettingsActivity.actionSwitchArray),
+// so a detected gesture or key press finds its actions with two array lookups instead of a
+// SharedPreferences read per action.
+// A switch may drive several actions (they fire in actionSwitchArray order), and each binding can be
+// overridden per context: a preference named contextKey(sharedPrefsName, context) (e.g.
+// "selectswitch_id@keyboard") holding the usual switch value replaces the default binding while the
+// ElementSelector is in that context; "none" there unbinds the action in that context.
+// Immutable; FaceControlService compiles a new one whenever a binding preference changes and swaps
+// it in atomically, readers just grab the current reference.
+class SwitchBindings {
+    enum Context {
+        scanning,   // idle and point scanning
+        menu,
+        keyboard
+    }
+
+    static final SwitchAction[] NO_ACTIONS = new SwitchAction[0];
+    static final String CONTEXT_SEPARATOR = "@";
+
+    private static final SettingsActivity.SwitchElement.SwitchType[] SWITCH_TYPES = SettingsActivity.SwitchElement.SwitchType.values();
+
+    private final SwitchAction[][][] gestureActions;    // [context][SwitchType.ordinal()]
+    private final int[][] keyCodes;                     // [context][k]: external switches (key codes > 0)
+    private final SwitchAction[][][] keyActions;        // [context][k]
+    private final boolean[] boundInAnyContext;          // [SwitchType.ordinal()]
+
+    private SwitchBindings(SwitchAction[][][] gestureActions, int[][] keyCodes, SwitchAction[][][] keyActions, boolean[] boundInAnyContext) {
+        this.gestureActions = gestureActions;
+        this.keyCodes = keyCodes;
+        this.keyActions = keyActions;
+        this.boundInAnyContext = boundInAnyContext;
+    }
+
+    static String contextKey(String sharedPrefsName, Context context) {
+        return sharedPrefsName + CONTEXT_SEPARATOR + context.name();
+    }
+
+    // Does a change of this preference need a recompile?
+    static boolean isBindingKey(String key) {
+        if(key == null)
+            return true;    // SharedPreferences.Editor.clear()
+        for(SettingsActivity.ActionSwitch actionSwitch : SettingsActivity.actionSwitchArray) {
+            if(key.equals(actionSwitch.sharedPrefsName) || key.startsWith(actionSwitch.sharedPrefsName + CONTEXT_SEPARATOR))
+                return true;
+        }
+        return false;
+    }
+
+    static SwitchBindings compile(SharedPreferences prefs) {
+        Context[] contexts = Context.values();
+        SettingsActivity.ActionSwitch[] actionSwitches = SettingsActivity.actionSwitchArray;
+        SwitchAction[][][] gestureActions = new SwitchAction[contexts.length][SWITCH_TYPES.length][];
+        int[][] keyCodes = new int[contexts.length][];
+        SwitchAction[][][] keyActions = new SwitchAction[contexts.length][][];
+        boolean[] boundInAnyContext = new boolean[SWITCH_TYPES.length];
+
+        for(Context context : contexts) {
+            // switch value of every action in this context
+            int[] switchValues = new int[actionSwitches.length];
+            for(int a = 0; a < actionSwitches.length; a++) {
+                int value = prefs.getInt(actionSwitches[a].sharedPrefsName, actionSwitches[a].sharedPrefsDefault);
+                switchValues[a] = prefs.getInt(contextKey(actionSwitches[a].sharedPrefsName, context), value);
+            }
+
+            for(SettingsActivity.SwitchElement.SwitchType type : SWITCH_TYPES) {
+                SwitchAction[] actions = actionsFor(type.getValue(), switchValues, actionSwitches);
+                gestureActions[context.ordinal()][type.ordinal()] = actions;
+                if(actions.length > 0)
+                    boundInAnyContext[type.ordinal()] = true;
+            }
+
+            List<Integer> codes = new ArrayList<>();
+            for(int value : switchValues) {
+                if(value > 0 && !codes.contains(value))
+                    codes.add(value);
+            }
+            keyCodes[context.ordinal()] = new int[codes.size()];
+            keyActions[context.ordinal()] = new SwitchAction[codes.size()][];
+            for(int k = 0; k < codes.size(); k++) {
+                keyCodes[context.ordinal()][k] = codes.get(k);
+                keyActions[context.ordinal()][k] = actionsFor(codes.get(k), switchValues, actionSwitches);
+            }
+        }
+        return new SwitchBindings(gestureActions, keyCodes, keyActions, boundInAnyContext);
+    }
+
+    private static SwitchAction[] actionsFor(int switchValue, int[] switchValues, SettingsActivity.ActionSwitch[] actionSwitches) {
+        int count = 0;
+        for(int value : switchValues) {
+            if(value == switchValue)
+                count++;
+        }
+        if(count == 0)
+            return NO_ACTIONS;
+        SwitchAction[] actions = new SwitchAction[count];
+        count = 0;
+        for(int a = 0; a < switchValues.length; a++) {
+            if(switchValues[a] == switchValue)
+                actions[count++] = actionSwitches[a].switchAction;
+        }
+        return actions;
+    }
+
+    // Actions bound to a camera switch (gesture) in the given context; never null, don't modify
+    SwitchAction[] forGesture(SettingsActivity.SwitchElement.SwitchType type, Context context) {
+        return gestureActions[context.ordinal()][type.ordinal()];
+    }
+
+    // Actions bound to an external switch (key code) in the given context; never null, don't modify
+    SwitchAction[] forKey(int keyCode, Context context) {
+        int[] codes = keyCodes[context.ordinal()];
+        for(int k = 0; k < codes.length; k++) {
+            if(codes[k] == keyCode)
+                return keyActions[context.ordinal()][k];
+        }
+        return NO_ACTIONS;
+    }
+
+    // Is the switch bound to any action, in any context? (DetectionPlan, camera start)
+    boolean isBound(SettingsActivity.SwitchElement.SwitchType type) {
+        return boundInAnyContext[type.ordinal()];
+    }
+
+    boolean usesCamera() {
+        for(SettingsActivity.SwitchElement.SwitchType type : SWITCH_TYPES) {
+            if(type.getValue() < SettingsActivity.SwitchElement.SwitchType.none.getValue() && isBound(type))
+                return true;
+        }
+        return false;
+    }
+}
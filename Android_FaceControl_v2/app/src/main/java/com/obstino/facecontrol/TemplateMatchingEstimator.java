@@ -0,0 +1,100 @@
+package com.obstino.facecontrol;
+
+// The original pupil finder: dark circle template matching (CircleTemplateMatcher) on the
+// contrast-stretched crop, circle radius derived from the eye size.
+// Pupil tracking: search a window of +-TRACK_WINDOW_RADII template radii around where the pupil
+// was in the previous frame (relative to the eye corners, so it follows head motion and scale).
+// If the best match in the window is clearly worse than what the last full search found, or sits
+// on the window border (pupil may be outside), we search the whole eye box again.
+class TemplateMatchingEstimator implements EyeCenterEstimator {
+    static final int TRACK_WINDOW_RADII = 3;
+    static final float TRACK_MIN_CONFIDENCE_RATIO = 0.9f;
+
+    // Iris diameter to PFL length ratio
+    // (based on paper "Periocular Anthropometry of Normal Chinese and Indian Populations in Singapore")
+    static final double MIN_IRIS2PFL_RATIO = 11.6/35.0;	// could lower this even further, though...
+    static final float R = 0.85f;   // peaks are correlations of at least R*max
+
+    final CircleTemplateMatcher circleTemplateMatcher = new CircleTemplateMatcher();
+
+    private volatile boolean trackingEnabled = true;
+    // tracking state: previous pupil center relative to the eye corner midpoint, in PFL units
+    private boolean tracking = false;
+    private float prevRelX, prevRelY;
+    private float fullSearchConfidence;
+
+    // Circle radius to do template matching (correlation) with, for an eye of the given PFL
+    static int templateRadius(int pfl) {
+        int minRadius = (int)((double)pfl * MIN_IRIS2PFL_RATIO/2.0); // divide by 2 to get radius
+        return Math.max(minRadius/2, 1);
+    }
+
+    static int searchStep(int radius) {
+        return Math.max(radius/2, 1);
+    }
+
+    void setTrackingEnabled(boolean enabled) {
+        trackingEnabled = enabled;
+    }
+
+    @Override
+    public void reset() {
+        tracking = false;
+    }
+
+    @Override
+    public float estimate(EyeCrop crop, float[] center) {
+        int radius = templateRadius(crop.pfl);
+        circleTemplateMatcher.setGrayImage(crop.gray, radius, searchStep(radius));
+
+        boolean tracked = false;
+        if(trackingEnabled && tracking && crop.pfl > 0) {
+            int step = circleTemplateMatcher.searchStep;
+            int half = TRACK_WINDOW_RADII * circleTemplateMatcher.radius;
+            int predictedX = (int)(crop.cornerMidX + prevRelX * crop.pfl);
+            int predictedY = (int)(crop.cornerMidY + prevRelY * crop.pfl);
+            // window starts on the full search grid
+            int x0 = Math.max(predictedX - half, 0) / step * step;
+            int y0 = Math.max(predictedY - half, 0) / step * step;
+            circleTemplateMatcher.setSearchWindow(x0, y0, predictedX + half + 1, predictedY + half + 1);
+            if(!circleTemplateMatcher.isFullSearch()) {
+                circleTemplateMatcher.computeCorrelation();
+                circleTemplateMatcher.thresholdCorrelations(R);
+                tracked = isTrackedMatchGood();
+            }
+        }
+        if(!tracked) {
+            circleTemplateMatcher.setSearchWindow(0, 0, crop.gray.width, crop.gray.height);
+            circleTemplateMatcher.computeCorrelation();
+            circleTemplateMatcher.thresholdCorrelations(R);
+            fullSearchConfidence = circleTemplateMatcher.getPeakDarkness();
+        }
+        circleTemplateMatcher.findConnectedPeakAreas();
+        circleTemplateMatcher.findMaxPeakAreaCenterOfMass(center);
+
+        if(Float.isNaN(center[0]) || crop.pfl <= 0) {
+            tracking = false;
+            return 0.0f;
+        }
+        tracking = true;
+        prevRelX = (center[0] - crop.cornerMidX) / crop.pfl;
+        prevRelY = (center[1] - crop.cornerMidY) / crop.pfl;
+        return circleTemplateMatcher.getPeakDarkness();
+    }
+
+    // After a windowed search: is the best match as good as the full search used to be, and not on
+    // a window border that could cut off the pupil?
+    private boolean isTrackedMatchGood() {
+        CircleTemplateMatcher m = circleTemplateMatcher;
+        if(m.peakSample < 0 || m.getPeakDarkness() < TRACK_MIN_CONFIDENCE_RATIO * fullSearchConfidence)
+            return false;
+
+        int x = m.corrX[m.peakSample];
+        int y = m.corrY[m.peakSample];
+        if((x == m.searchX0 && m.searchX0 > 0) || (x + m.searchStep >= m.searchX1 && m.searchX1 < m.width))
+            return false;
+        if((y == m.searchY0 && m.searchY0 > 0) || (y + m.searchStep >= m.searchY1 && m.searchY1 < m.height))
+            return false;
+        return true;
+    }
+}
@@ -0,0 +1,135 @@
+package com.obstino.facecontrol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the fast correlation and peak area labelling against the original brute force versions
+ * on synthetic eye crops.
+ */
+public class CircleTemplateMatcherTest {
+    // Gray eye crop: white outside an ellipse (masked), skin-ish sclera inside, dark pupil disc, noise
+    static int[] syntheticEyeCrop(Random random, int width, int height) {
+        int[] pixels = new int[width * height];
+        double pupilX = width * (0.3 + 0.4 * random.nextDouble());
+        double pupilY = height * (0.3 + 0.4 * random.nextDouble());
+        double pupilRadius = height * (0.2 + 0.15 * random.nextDouble());
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                double ex = (x - width / 2.0) / (width / 2.0);
+                double ey = (y - height / 2.0) / (height / 2.0);
+                int I;
+                if(ex * ex + ey * ey > 1.0)
+                    I = 255;
+                else if(Math.hypot(x - pupilX, y - pupilY) <= pupilRadius)
+                    I = 20 + random.nextInt(40);
+                else
+                    I = 150 + random.nextInt(80);
+                pixels[y * width + x] = 0xFF000000 | (I << 16) | (I << 8) | I;
+            }
+        }
+        return pixels;
+    }
+
+    @Test
+    public void fastCorrelationMatchesReference() {
+        Random random = new Random(12345);
+        CircleTemplateMatcher fast = new CircleTemplateMatcher();
+        CircleTemplateMatcher reference = new CircleTemplateMatcher();
+
+        for(int k = 0; k < 500; k++) {
+            int width = 4 + random.nextInt(80);
+            int height = 3 + random.nextInt(40);
+            int radius = 1 + random.nextInt(10);
+            int searchStep = Math.max(radius / 2, 1);
+            int[] pixels = syntheticEyeCrop(random, width, height);
+
+            fast.setImage(pixels, width, height, radius, searchStep);
+            fast.computeCorrelation();
+            reference.setImage(pixels, width, height, radius, searchStep);
+            reference.computeCorrelationReference();
+
+            assertEquals(reference.corrCount, fast.corrCount);
+            for(int i = 0; i < reference.corrCount; i++) {
+                assertEquals(reference.corrX[i], fast.corrX[i]);
+                assertEquals(reference.corrY[i], fast.corrY[i]);
+                assertEquals("crop " + width + "x" + height + ", r=" + radius + ", sample " + i,
+                        reference.corrValue[i], fast.corrValue[i]);
+            }
+        }
+    }
+
+    // The original all-pairs labelling: returns the max area's peaks (sample indices) in list order
+    static List<Integer> referenceMaxPeakArea(CircleTemplateMatcher m) {
+        List<List<Integer>> areas = new ArrayList<>();
+        for(int i = 0; i < m.peakCount; i++) {
+            int c1 = m.peaks[i];
+            List<Integer> target = null;
+            for(int a = 0; a < areas.size(); a++) {
+                List<Integer> area = areas.get(a);
+                for(int c2 : area) {
+                    if(Math.sqrt(Math.pow(m.corrX[c1] - m.corrX[c2], 2) + Math.pow(m.corrY[c1] - m.corrY[c2], 2)) < (double)(2 * m.radius)) {
+                        if(target == null) {
+                            target = area;
+                            target.add(c1);
+                        } else {
+                            target.addAll(area);
+                            areas.remove(a--);
+                        }
+                        break;
+                    }
+                }
+            }
+            if(target == null) {
+                List<Integer> area = new ArrayList<>();
+                area.add(c1);
+                areas.add(area);
+            }
+        }
+
+        List<Integer> maxArea = null;
+        for(List<Integer> area : areas) {
+            if(maxArea == null || area.size() > maxArea.size())
+                maxArea = area;
+        }
+        return maxArea;
+    }
+
+    @Test
+    public void peakAreasMatchAllPairsLabelling() {
+        Random random = new Random(777);
+        CircleTemplateMatcher matcher = new CircleTemplateMatcher();
+
+        for(int k = 0; k < 500; k++) {
+            int width = 4 + random.nextInt(80);
+            int height = 3 + random.nextInt(40);
+            int radius = 1 + random.nextInt(8);
+            int searchStep = 1 + random.nextInt(radius + 1);
+            int[] pixels = syntheticEyeCrop(random, width, height);
+
+            matcher.setImage(pixels, width, height, radius, searchStep);
+            matcher.computeCorrelation();
+            matcher.thresholdCorrelations(0.3 + 0.65 * random.nextDouble());
+            matcher.findConnectedPeakAreas();
+            List<Integer> expected = referenceMaxPeakArea(matcher);
+
+            // findMaxPeakAreaCenterOfMass() needs PointF, so compare the chosen area directly
+            int maxPeakArea = -1, maxPeakAreaSize = 0;
+            for(int area = 0; area < matcher.peakCount; area++) {
+                if(matcher.parent[area] == area && matcher.areaSize[area] > maxPeakAreaSize) {
+                    maxPeakAreaSize = matcher.areaSize[area];
+                    maxPeakArea = area;
+                }
+            }
+            List<Integer> actual = new ArrayList<>();
+            for(int p = matcher.areaHead[maxPeakArea]; p >= 0; p = matcher.nextInArea[p])
+                actual.add(matcher.peaks[p]);
+            assertEquals(expected, actual);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.obstino.facecontrol;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs every EyeCenterEstimator over the same eye crops and checks how far they are from the true pupil
+ * center (synthetic crops) or that they can be compared at all (recorded crops).
+ *
+ * Recorded crops (see EyeCropRecorder, "Record eye crops" on the calibration screen) are pulled from
+ * the device's files/eyecrops directory and passed with ./gradlew test -Deyecrops.dir=... (the test is
+ * skipped without it). To see the numbers, run the benchmarks module's eyeCenterReport task.
+ */
+public class EyeCenterEstimatorTest {
+    static class Sample {
+        final String name;
+        final EyeCrop crop;
+        final float trueX, trueY;   // NaN for recorded crops
+
+        Sample(String name, EyeCrop crop, float trueX, float trueY) {
+            this.name = name;
+            this.crop = crop;
+            this.trueX = trueX;
+            this.trueY = trueY;
+        }
+    }
+
+    static class Report {
+        final String[] names;
+        final double[] meanMicros;
+        final double[] meanTruthError;  // in PFL units, NaN if no ground truth
+        double meanDisagreement;        // between the first two estimators, in PFL units
+        double agreeFraction;           // crops where they are within AGREE_PFL of each other
+
+        Report(String[] names) {
+            this.names = names;
+            meanMicros = new double[names.length];
+            meanTruthError = new double[names.length];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for(int e = 0; e < names.length; e++)
+                sb.append(String.format(Locale.US, "%-10s %8.1f us/crop, error vs truth %.3f PFL%n", names[e], meanMicros[e], meanTruthError[e]));
+            sb.append(String.format(Locale.US, "disagreement %.3f PFL, within %.2f PFL on %.0f%% of crops", meanDisagreement, AGREE_PFL, 100 * agreeFraction));
+            return sb.toString();
+        }
+    }
+
+    static final double AGREE_PFL = 0.1;
+
+    // Looks like a preprocessed eye: almond shaped mask, bright sclera, darker iris, black pupil, noise
+    static Sample syntheticSample(Random random, int width, int height) {
+        EyeCrop crop = new EyeCrop();
+        crop.reset(width, height);
+        crop.cornerMidX = width / 2.0f;
+        crop.cornerMidY = height / 2.0f;
+        crop.pfl = width;
+
+        float irisRadius = height * (0.35f + 0.1f * random.nextFloat());
+        float pupilRadius = irisRadius * 0.45f;
+        float cx = width / 2.0f + (random.nextFloat() - 0.5f) * (width - 2 * irisRadius) * 0.8f;
+        float cy = height / 2.0f + (random.nextFloat() - 0.5f) * height * 0.15f;
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                double ex = (x + 0.5 - width / 2.0) / (width / 2.0);
+                double ey = (y + 0.5 - height / 2.0) / (height / 2.0);
+                if(ex * ex + ey * ey > 1.0) {
+                    crop.gray.put(x, y, 255);
+                    crop.mask.put(x, y, 0);
+                    continue;
+                }
+                crop.mask.put(x, y, 1);
+                double d = Math.hypot(x - cx, y - cy);
+                int I = (d <= pupilRadius) ? 15 : (d <= irisRadius) ? 80 : 200;
+                crop.gray.put(x, y, Math.max(0, Math.min(254, I + (int)(random.nextGaussian() * 12))));
+            }
+        }
+        return new Sample("synthetic" + width + "x" + height, crop, cx, cy);
+    }
+
+    static List<Sample> syntheticSamples(int count, long seed) {
+        Random random = new Random(seed);
+        List<Sample> samples = new ArrayList<>();
+        for(int k = 0; k < count; k++) {
+            int width = 24 + random.nextInt(40);
+            int height = width / 2 + random.nextInt(5) - 2;
+            samples.add(syntheticSample(random, width, height));
+        }
+        return samples;
+    }
+
+    // Reads an EyeCropRecorder PGM (see EyeCropPgm)
+    static Sample readPgm(File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return new Sample(file.getName(), EyeCropPgm.read(in), Float.NaN, Float.NaN);
+        } catch (IOException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+    }
+
+    static List<Sample> readPgmDirectory(File dir) throws IOException {
+        List<Sample> samples = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if(files == null)
+            return samples;
+        Arrays.sort(files);
+        for(File file : files) {
+            if(file.getName().endsWith(".pgm"))
+                samples.add(readPgm(file));
+        }
+        return samples;
+    }
+
+    static Report run(List<Sample> samples, String[] names, EyeCenterEstimator[] estimators, int repeats) {
+        Report report = new Report(names);
+        float[][] centers = new float[estimators.length][2];
+        int[] truthCount = new int[estimators.length];
+        int compared = 0, agreed = 0;
+
+        for(Sample sample : samples) {
+            for(int e = 0; e < estimators.length; e++) {
+                estimators[e].reset();  // crops are independent, no tracking between them
+                long start = System.nanoTime();
+                for(int r = 0; r < repeats; r++)
+                    estimators[e].estimate(sample.crop, centers[e]);
+                report.meanMicros[e] += (System.nanoTime() - start) / 1000.0 / repeats;
+
+                if(!Float.isNaN(sample.trueX) && !Float.isNaN(centers[e][0])) {
+                    report.meanTruthError[e] += Math.hypot(centers[e][0] - sample.trueX, centers[e][1] - sample.trueY) / sample.crop.pfl;
+                    truthCount[e]++;
+                }
+            }
+            if(estimators.length >= 2 && !Float.isNaN(centers[0][0]) && !Float.isNaN(centers[1][0])) {
+                double d = Math.hypot(centers[0][0] - centers[1][0], centers[0][1] - centers[1][1]) / sample.crop.pfl;
+                report.meanDisagreement += d;
+                if(d <= AGREE_PFL)
+                    agreed++;
+                compared++;
+            }
+        }
+
+        for(int e = 0; e < estimators.length; e++) {
+            report.meanMicros[e] /= samples.size();
+            report.meanTruthError[e] = truthCount[e] > 0 ? report.meanTruthError[e] / truthCount[e] : Double.NaN;
+        }
+        report.meanDisagreement = compared > 0 ? report.meanDisagreement / compared : Double.NaN;
+        report.agreeFraction = compared > 0 ? agreed / (double)compared : Double.NaN;
+        return report;
+    }
+
+    static Report runAll(List<Sample> samples) {
+        TemplateMatchingEstimator template = new TemplateMatchingEstimator();
+        template.setTrackingEnabled(false);
+        return run(samples, new String[] {"template", "gradient"},
+                new EyeCenterEstimator[] {template, new GradientEyeCenterEstimator()}, 20);
+    }
+
+    @Test
+    public void estimatorsFindSyntheticPupils() {
+        Report report = runAll(syntheticSamples(200, 42));
+        for(int e = 0; e < report.names.length; e++)
+            assertTrue(report.names[e] + " error " + report.meanTruthError[e], report.meanTruthError[e] < 0.05);
+    }
+
+    @Test
+    public void estimatorsOnRecordedCrops() throws IOException {
+        String dir = System.getProperty("eyecrops.dir");
+        Assume.assumeNotNull(dir);      // nothing recorded to compare on
+        List<Sample> samples = readPgmDirectory(new File(dir));
+        assertFalse("No .pgm crops in " + dir, samples.isEmpty());
+        Report report = runAll(samples);
+        assertFalse("No crop both estimators found a center in\n" + report, Double.isNaN(report.agreeFraction));
+    }
+}
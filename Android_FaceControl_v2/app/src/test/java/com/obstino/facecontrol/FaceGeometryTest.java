@@ -0,0 +1,96 @@
+package com.obstino.facecontrol;
+
+import com.google.mlkit.vision.face.FaceContour;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The shared geometry must give the detectors exactly the values they used to compute from the
+ * contour point lists themselves. Points are plain float arrays ({xs, ys}): android.graphics.PointF
+ * is a stub without fields in local unit tests.
+ */
+public class FaceGeometryTest {
+    static float[][] randomPoints(Random random, int n) {
+        float[][] points = new float[2][n];
+        for(int k = 0; k < n; k++) {
+            points[0][k] = random.nextFloat() * 480;
+            points[1][k] = random.nextFloat() * 640;
+        }
+        return points;
+    }
+
+    static void addContour(FaceGeometry g, int type, float[][] points) {
+        g.addContour(type, points[0], points[1], points[0].length);
+    }
+
+    // y of GestureRecognizer's rotatePoint(), as it had it
+    static float rotatedY(float[][] points, int k, float beta) {
+        return (float)(Math.sin(beta)*points[0][k] + Math.cos(beta)*points[1][k]);
+    }
+
+    static double dist(float[][] a, int ka, float[][] b, int kb) {
+        return Math.sqrt(Math.pow(b[0][kb] - a[0][ka], 2) + Math.pow(b[1][kb] - a[1][ka], 2));
+    }
+
+    @Test
+    public void derivedValuesMatchPointLists() {
+        Random random = new Random(22);
+        FaceGeometry g = new FaceGeometry();
+        for(int trial = 0; trial < 100; trial++) {
+            float[][] leftEye = randomPoints(random, 16);
+            float[][] rightEye = randomPoints(random, 16);
+            float[][] eyebrow = randomPoints(random, 5);
+            float[][] nose = randomPoints(random, 3);
+            float[][] lip = randomPoints(random, 11);
+
+            g.clear();
+            addContour(g, FaceContour.FACE, randomPoints(random, 36));
+            addContour(g, FaceContour.LEFT_EYE, leftEye);
+            addContour(g, FaceContour.LEFT_EYEBROW_TOP, eyebrow);
+            addContour(g, FaceContour.RIGHT_EYE, rightEye);
+            addContour(g, FaceContour.NOSE_BOTTOM, nose);
+            addContour(g, FaceContour.UPPER_LIP_TOP, lip);
+            g.computeDerived();
+
+            assertTrue(g.valid);
+            assertEquals(dist(leftEye, 0, leftEye, 8), g.leftEyeWidth, 0.0);
+            assertEquals(dist(rightEye, 0, rightEye, 8), g.rightEyeWidth, 0.0);
+            assertEquals(dist(lip, 0, lip, 10), g.distance(FaceContour.UPPER_LIP_TOP, 0, FaceContour.UPPER_LIP_TOP, 10), 0.0);
+            double eyeCornerDist = dist(leftEye, 0, rightEye, 8);
+            assertEquals(eyeCornerDist, g.interOcular, 0.0);
+            float angle = (float)Math.asin((rightEye[1][8] - leftEye[1][0])/eyeCornerDist);
+            assertEquals(angle, g.roll, 0.0f);
+            assertEquals(nose[0][0], g.noseX, 0.0f);
+            assertEquals(nose[1][0], g.noseY, 0.0f);
+            assertEquals(rotatedY(nose, 0, -angle), g.unrolledY(FaceContour.NOSE_BOTTOM, 0), 0.0f);
+            for(int k = 0; k < 5; k++)
+                assertEquals(rotatedY(eyebrow, k, -angle), g.unrolledY(FaceContour.LEFT_EYEBROW_TOP, k), 0.0f);
+        }
+    }
+
+    @Test
+    public void missingContoursAndReuse() {
+        Random random = new Random(5);
+        FaceGeometry g = new FaceGeometry();
+        g.clear();
+        addContour(g, FaceContour.FACE, randomPoints(random, 300));     // more than the initial arrays hold
+        float[][] leftEye = randomPoints(random, 16);
+        addContour(g, FaceContour.LEFT_EYE, leftEye);
+        g.computeDerived();
+        assertTrue(g.has(FaceContour.LEFT_EYE, 16));
+        assertEquals(leftEye[0][15], g.x(FaceContour.LEFT_EYE, 15), 0.0f);
+        assertFalse(g.has(FaceContour.RIGHT_EYE, 1));
+        assertEquals(0.0, g.interOcular, 0.0);
+        assertEquals(0.0f, g.roll, 0.0f);
+        assertTrue(Float.isNaN(g.leftEyeOpen));
+
+        g.clear();
+        assertFalse(g.valid);
+        assertFalse(g.has(FaceContour.FACE, 1));
+        assertFalse(g.has(FaceContour.LEFT_EYE, 1));
+    }
+}
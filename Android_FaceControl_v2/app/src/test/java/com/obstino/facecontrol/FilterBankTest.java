@@ -0,0 +1,230 @@
+package com.obstino.facecontrol;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static java.lang.Math.PI;
+import static org.junit.Assert.*;
+
+public class FilterBankTest {
+    // The first order RC filters GestureRecognizer used before the bank
+    static class ReferenceRC {
+        final boolean highpass;
+        final double fc;
+        double prev_x, prev_y;
+
+        ReferenceRC(boolean highpass, double fc) {
+            this.highpass = highpass;
+            this.fc = fc;
+        }
+
+        double computeSample(double x, double dt) {
+            double RC = 1.0/(2*PI*fc);
+            double y;
+            if(highpass) {
+                double alpha = RC/(RC + dt);
+                y = alpha*prev_y + alpha*(x - prev_x);
+            } else {
+                double alpha = dt/(RC + dt);
+                y = alpha*x + (1 - alpha)*prev_y;
+            }
+            prev_y = y;
+            prev_x = x;
+            return y;
+        }
+    }
+
+    static double jitteredDt(Random random) {
+        // camera frame intervals: 30 fps with jitter, never below 5 ms
+        return Math.max((1.0 + 0.3 * random.nextGaussian()) / 30.0, 0.005);
+    }
+
+    @Test
+    public void firstOrderChannelsMatchRCFilters() {
+        Random random = new Random(23);
+        FilterBank bank = new FilterBank();
+        double[] cutoffs = {0.1, 0.3, 2.0, 5.3};
+        ReferenceRC[] reference = new ReferenceRC[2 * cutoffs.length];
+        for(int k = 0; k < cutoffs.length; k++) {
+            assertEquals(2 * k, bank.addHighpass(cutoffs[k]));
+            reference[2 * k] = new ReferenceRC(true, cutoffs[k]);
+            assertEquals(2 * k + 1, bank.addLowpass(cutoffs[k]));
+            reference[2 * k + 1] = new ReferenceRC(false, cutoffs[k]);
+        }
+        double[] x = new double[bank.size()], y = new double[bank.size()];
+        for(int n = 0; n < 2000; n++) {
+            double dt = (n % 100 < 50) ? 1.0 / 30.0 : jitteredDt(random);
+            bank.setDt(dt);
+            for(int ch = 0; ch < x.length; ch++)
+                x[ch] = 40 * Math.sin(n * 0.05) + random.nextGaussian();
+            bank.step(0, x.length, x, y);
+            for(int ch = 0; ch < x.length; ch++)
+                assertEquals(reference[ch].computeSample(x[ch], FilterBank.quantizeDt(dt)), y[ch], 1e-9);
+        }
+    }
+
+    @Test
+    public void jitteredDtDoesNotRecompute() {
+        Random random = new Random(7);
+        FilterBank bank = new FilterBank();
+        bank.addHighpass(0.3);
+        bank.addBiquadLowpass(1.5, 0.7071);
+        bank.setDt(0.0334);
+        int updates = bank.coefficientUpdates;
+        for(int n = 0; n < 1000; n++) {
+            // timestamp jitter of up to +-40 us stays in the same 0.1 ms bucket
+            bank.setDt(0.0334 + (random.nextDouble() - 0.5) * 8e-5);
+            bank.step(0, random.nextDouble());
+        }
+        assertEquals(updates, bank.coefficientUpdates);
+        assertEquals(0.0334, bank.getDt(), 1e-12);
+
+        // a real frame rate change does
+        bank.setDt(0.0400);
+        assertEquals(updates + 1, bank.coefficientUpdates);
+        assertEquals(0.0400, bank.getDt(), 1e-12);
+    }
+
+    @Test
+    public void groupsAreConsecutive() {
+        FilterBank bank = new FilterBank();
+        bank.addBiquadLowpass(1.0, 0.7071);
+        int first = bank.addGroup(new FilterBank.Kind[] {FilterBank.Kind.lowpass, FilterBank.Kind.highpass, FilterBank.Kind.highpass},
+                new double[] {2.0, 0.3, 0.3});
+        assertEquals(1, first);
+        assertEquals(4, bank.size());
+        assertEquals(10.0, bank.charge(first, 10.0), 0.0);          // lowpass
+        assertEquals(0.0, bank.charge(first + 1, 10.0), 0.0);       // highpass
+
+        try {
+            bank.addGroup(new FilterBank.Kind[] {FilterBank.Kind.biquad_lowpass}, new double[] {1.0});
+            fail("biquad in a group");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(4, bank.size());
+    }
+
+    @Test
+    public void groupStepEqualsSingleSteps() {
+        Random random = new Random(4);
+        FilterBank group = new FilterBank(), single = new FilterBank();
+        for(FilterBank bank : new FilterBank[] {group, single}) {
+            bank.addHighpass(0.3);
+            bank.addLowpass(2.0);
+            bank.addBiquadLowpass(1.5, 0.7071);
+        }
+        double[] x = new double[3], y = new double[3];
+        for(int n = 0; n < 500; n++) {
+            double dt = jitteredDt(random);
+            group.setDt(dt);
+            single.setDt(dt);
+            for(int ch = 0; ch < 3; ch++)
+                x[ch] = random.nextDouble() * 100;
+            group.step(0, 3, x, y);
+            for(int ch = 0; ch < 3; ch++)
+                assertEquals(single.step(ch, x[ch]), y[ch], 0.0);
+        }
+    }
+
+    @Test
+    public void biquadSectionsSettle() {
+        FilterBank bank = new FilterBank();
+        int lp = bank.addBiquadLowpass(2.0, 0.7071);
+        int hp = bank.addBiquadHighpass(2.0, 0.7071);
+        double ylp = 0, yhp = 0;
+        for(int n = 0; n < 300; n++) {
+            ylp = bank.step(lp, 10.0);
+            yhp = bank.step(hp, 10.0);
+        }
+        assertEquals(10.0, ylp, 1e-6);
+        assertEquals(0.0, yhp, 1e-6);
+
+        // Butterworth: -3 dB at the cutoff
+        double peak = 0;
+        for(int n = 0; n < 3000; n++) {
+            double out = bank.step(lp, Math.sin(2 * PI * 2.0 * n / 30.0));
+            if(n > 1500)
+                peak = Math.max(peak, Math.abs(out));
+        }
+        assertEquals(Math.sqrt(0.5), peak, 0.02);
+    }
+
+    @Test
+    public void chargeIsSteadyState() {
+        Random random = new Random(24);
+        FilterBank bank = new FilterBank();
+        int hp = bank.addHighpass(0.1);
+        int lp = bank.addLowpass(2.0);
+        int bhp = bank.addBiquadHighpass(0.3, 0.7071);
+        int blp = bank.addBiquadLowpass(1.0, 0.7071);
+        for(int n = 0; n < 50; n++)
+            bank.step(0, 4, new double[] {random.nextDouble(), random.nextDouble(), random.nextDouble(), random.nextDouble()}, new double[4]);
+
+        bank.setDt(jitteredDt(random));
+        assertEquals(0.0, bank.charge(hp, 37.5), 0.0);
+        assertEquals(37.5, bank.charge(lp, 37.5), 0.0);
+        assertEquals(0.0, bank.charge(bhp, 37.5), 0.0);
+        assertEquals(37.5, bank.charge(blp, 37.5), 0.0);
+        // the input keeps coming: nothing moves
+        for(int n = 0; n < 100; n++) {
+            bank.setDt(jitteredDt(random));
+            assertEquals(0.0, bank.step(hp, 37.5), 0.0);
+            assertEquals(37.5, bank.step(lp, 37.5), 1e-12);
+            assertEquals(0.0, bank.step(bhp, 37.5), 1e-9);
+            assertEquals(37.5, bank.step(blp, 37.5), 1e-9);
+        }
+
+        // a step from the charged state is what a long run up at the old input gives
+        double dt = FilterBank.quantizeDt(1.0 / 30.0);
+        ReferenceRC reference = new ReferenceRC(true, 0.1);
+        for(int n = 0; n < 5000; n++)
+            reference.computeSample(37.5, dt);
+        bank.setDt(dt);
+        bank.charge(hp, 37.5);
+        assertEquals(reference.computeSample(40.0, dt), bank.step(hp, 40.0), 1e-9);
+    }
+
+    @Test
+    public void snapshotRestoreReplays() {
+        Random random = new Random(9);
+        FilterBank bank = new FilterBank();
+        bank.addHighpass(0.1);
+        bank.addLowpass(2.0);
+        bank.addBiquadHighpass(0.5, 1.0);
+        double[] x = new double[3], y = new double[3];
+        for(int n = 0; n < 100; n++) {
+            bank.setDt(jitteredDt(random));
+            x[0] = x[1] = x[2] = random.nextDouble();
+            bank.step(0, 3, x, y);
+        }
+
+        FilterBank.State state = bank.snapshot();
+        double[] inputs = new double[200], dts = new double[200], first = new double[600];
+        for(int n = 0; n < 200; n++) {
+            inputs[n] = random.nextDouble() * 50;
+            dts[n] = jitteredDt(random);
+            bank.setDt(dts[n]);
+            x[0] = x[1] = x[2] = inputs[n];
+            bank.step(0, 3, x, y);
+            System.arraycopy(y, 0, first, 3 * n, 3);
+        }
+
+        bank.restore(state);
+        for(int n = 0; n < 200; n++) {
+            bank.setDt(dts[n]);
+            x[0] = x[1] = x[2] = inputs[n];
+            bank.step(0, 3, x, y);
+            for(int ch = 0; ch < 3; ch++)
+                assertEquals(first[3 * n + ch], y[ch], 0.0);
+        }
+
+        try {
+            new FilterBank().restore(state);
+            fail("restore into a smaller bank");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.obstino.facecontrol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GestureEventQueueTest {
+    static final SettingsActivity.SwitchElement.SwitchType SMILE = SettingsActivity.SwitchElement.SwitchType.smile;
+    static final SettingsActivity.SwitchElement.SwitchType EYEBROW = SettingsActivity.SwitchElement.SwitchType.eyebrow;
+    static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    static class RecordingSink implements GestureEventQueue.Sink {
+        final List<SettingsActivity.SwitchElement.SwitchType> types = new ArrayList<>();
+        final List<Long> timestamps = new ArrayList<>();
+
+        @Override
+        public void onGesture(SettingsActivity.SwitchElement.SwitchType type, long timestampNanos) {
+            types.add(type);
+            timestamps.add(timestampNanos);
+        }
+    }
+
+    @Test
+    public void deliversInOrder() {
+        RecordingSink sink = new RecordingSink();
+        PipelineStats stats = new PipelineStats();
+        GestureEventQueue queue = new GestureEventQueue(sink, stats);
+        assertTrue(queue.offer(SMILE, 1000 * MS));
+        assertTrue(queue.offer(EYEBROW, 1100 * MS));
+        assertTrue(queue.offer(SMILE, 1500 * MS));
+        assertEquals(3, queue.size());
+
+        assertEquals(3, queue.drain(1600 * MS));
+        assertEquals(0, queue.size());
+        assertEquals(3, sink.types.size());
+        assertEquals(SMILE, sink.types.get(0));
+        assertEquals(EYEBROW, sink.types.get(1));
+        assertEquals(SMILE, sink.types.get(2));
+        assertEquals(1500 * MS, (long)sink.timestamps.get(2));
+        queue.flushStats(1600 * MS);
+        assertTrue(stats.getSummary().contains("gestures 3 "));
+        assertTrue(stats.getSummary().contains("depth 3"));
+    }
+
+    @Test
+    public void fullQueueDropsNewest() {
+        RecordingSink sink = new RecordingSink();
+        PipelineStats stats = new PipelineStats();
+        GestureEventQueue queue = new GestureEventQueue(sink, stats);
+        for(int k = 0; k < GestureEventQueue.CAPACITY; k++)
+            assertTrue(queue.offer(k % 2 == 0 ? SMILE : EYEBROW, k * MS));
+        assertFalse(queue.offer(SMILE, 999 * MS));
+
+        queue.drain(100 * MS);
+        assertEquals(GestureEventQueue.CAPACITY, sink.types.size());
+        assertFalse(sink.timestamps.contains(999 * MS));
+        queue.flushStats(100 * MS);
+        assertTrue(stats.getSummary().contains("gestures dropped 1"));
+        assertTrue(queue.offer(SMILE, 999 * MS));   // room again
+    }
+
+    @Test
+    public void staleEventsDroppedAndRepeatsMerged() {
+        RecordingSink sink = new RecordingSink();
+        PipelineStats stats = new PipelineStats();
+        GestureEventQueue queue = new GestureEventQueue(sink, stats);
+        queue.offer(SMILE, 0);                          // stale by the time it's drained
+        queue.offer(EYEBROW, 1000 * MS);
+        queue.offer(EYEBROW, 1100 * MS);                // repeat within the merge window
+        queue.offer(EYEBROW, 1000 * MS + GestureEventQueue.MERGE_WINDOW_MS * MS + 1);
+        queue.offer(SMILE, 1250 * MS);
+
+        assertEquals(3, queue.drain(GestureEventQueue.MAX_EVENT_AGE_MS * MS + 1));
+        assertEquals(EYEBROW, sink.types.get(0));
+        assertEquals(EYEBROW, sink.types.get(1));
+        assertEquals(SMILE, sink.types.get(2));
+        queue.flushStats(GestureEventQueue.MAX_EVENT_AGE_MS * MS + 1);
+        String summary = stats.getSummary();
+        assertTrue(summary, summary.contains("gestures dropped 1"));
+        assertTrue(summary, summary.contains("gestures merged 1"));
+    }
+
+    @Test
+    public void statsFlushedOncePerPeriod() {
+        RecordingSink sink = new RecordingSink();
+        PipelineStats stats = new PipelineStats();
+        GestureEventQueue queue = new GestureEventQueue(sink, stats);
+        queue.flushStats(0);
+        queue.offer(SMILE, 10 * MS);
+        queue.drain(20 * MS);
+        queue.offer(EYEBROW, 500 * MS);
+        queue.drain(510 * MS);
+        assertFalse(stats.getSummary().contains("gestures"));   // still within the period
+
+        queue.offer(SMILE, GestureEventQueue.STATS_PERIOD_MS * MS);
+        queue.drain(GestureEventQueue.STATS_PERIOD_MS * MS + 5 * MS);
+        String summary = stats.getSummary();
+        assertTrue(summary, summary.contains("gestures 3 "));
+        assertTrue(summary, summary.contains("/10.0 ms"));     // max latency of the period
+    }
+
+    @Test
+    public void producerAndConsumerThreads() throws InterruptedException {
+        final RecordingSink sink = new RecordingSink();
+        final PipelineStats stats = new PipelineStats();
+        final GestureEventQueue queue = new GestureEventQueue(sink, stats);
+        final int events = 200000;
+        final List<Long> offered = new ArrayList<>();
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for(int k = 0; k < events; k++) {
+                    long timestamp = k * GestureEventQueue.MERGE_WINDOW_MS * MS;
+                    if(queue.offer(k % 2 == 0 ? SMILE : EYEBROW, timestamp))
+                        offered.add(timestamp);
+                }
+            }
+        });
+        producer.start();
+        while(producer.isAlive())
+            queue.drain(0);     // never stale: every timestamp is >= now
+        producer.join();
+        queue.drain(0);
+
+        assertEquals(offered, sink.timestamps);
+        for(int k = 1; k < sink.timestamps.size(); k++)
+            assertTrue(sink.timestamps.get(k) > sink.timestamps.get(k - 1));
+    }
+}
@@ -0,0 +1,153 @@
+package com.obstino.facecontrol;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Views (offset/stride) into a bigger raster must give the same kernel results as a packed copy of
+ * the same pixels.
+ */
+public class RasterTest {
+    // Random pixels with the eye crop pasted at (x, y), so reads outside the view would show up
+    static IntRaster embed(int[] pixels, int width, int height, int x, int y, int border, Random random) {
+        IntRaster big = new IntRaster(width + x + border, height + y + border);
+        for(int k = 0; k < big.data.length; k++)
+            big.data[k] = random.nextInt();
+        for(int v = 0; v < height; v++) {
+            for(int u = 0; u < width; u++)
+                big.put(x + u, y + v, pixels[v * width + u]);
+        }
+        return big;
+    }
+
+    @Test
+    public void viewAddressesRegion() {
+        IntRaster raster = new IntRaster(10, 8);
+        for(int k = 0; k < raster.data.length; k++)
+            raster.data[k] = k;
+        IntRaster view = raster.view(3, 2, 4, 5);
+        assertEquals(10, view.stride);
+        assertEquals(2 * 10 + 3, view.get(0, 0));
+        assertEquals(6 * 10 + 6, view.get(3, 4));
+
+        IntRaster inner = view.view(1, 1, 2, 2);
+        assertEquals(3 * 10 + 4, inner.get(0, 0));
+        inner.fill(-1);
+        assertEquals(-1, raster.get(5, 4));
+        assertEquals(4 * 10 + 6, raster.get(6, 4));
+
+        try {
+            raster.view(8, 0, 3, 1);
+            fail("view outside the raster");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void byteRasterIsUnsigned() {
+        ByteRaster raster = new ByteRaster(3, 2);
+        raster.put(2, 1, 200);
+        assertEquals(200, raster.get(2, 1));
+        assertEquals(200, raster.view(1, 1, 2, 1).get(1, 0));
+    }
+
+    @Test
+    public void matcherOnViewMatchesPackedCopy() {
+        Random random = new Random(18);
+        for(int trial = 0; trial < 200; trial++) {
+            int width = 8 + random.nextInt(60);
+            int height = 6 + random.nextInt(30);
+            int radius = 1 + random.nextInt(Math.max(height / 3, 1));
+            int step = Math.max(radius / 2, 1);
+            int[] argb = CircleTemplateMatcherTest.syntheticEyeCrop(random, width, height);
+
+            IntRaster packed = new IntRaster(width, height);
+            for(int k = 0; k < width * height; k++) {
+                int pix = argb[k];
+                packed.data[k] = (((pix >> 16) & 0xFF) + ((pix >> 8) & 0xFF) + (pix & 0xFF)) / 3;
+            }
+            int x = random.nextInt(5), y = random.nextInt(5);
+            IntRaster view = embed(packed.data, width, height, x, y, 1 + random.nextInt(5), random).view(x, y, width, height);
+
+            CircleTemplateMatcher onPacked = new CircleTemplateMatcher();
+            CircleTemplateMatcher onView = new CircleTemplateMatcher();
+            onPacked.setGrayImage(packed, radius, step);
+            onView.setGrayImage(view, radius, step);
+            onPacked.computeCorrelation();
+            onView.computeCorrelation();
+            assertEquals(onPacked.corrCount, onView.corrCount);
+            for(int i = 0; i < onPacked.corrCount; i++)
+                assertEquals(onPacked.corrValue[i], onView.corrValue[i]);
+
+            float[] a = new float[2], b = new float[2];
+            onPacked.thresholdCorrelations(0.85f);
+            onView.thresholdCorrelations(0.85f);
+            onPacked.findConnectedPeakAreas();
+            onView.findConnectedPeakAreas();
+            onPacked.findMaxPeakAreaCenterOfMass(a);
+            onView.findMaxPeakAreaCenterOfMass(b);
+            assertArrayEquals(a, b, 0.0f);
+        }
+    }
+
+    @Test
+    public void preprocessorOnViewMatchesPackedCopy() {
+        Random random = new Random(7);
+        float[] polyX = {1.0f, 6.0f, 14.0f, 22.0f, 27.0f, 21.0f, 13.0f, 5.0f};
+        float[] polyY = {7.0f, 2.5f, 1.0f, 2.5f, 7.0f, 11.5f, 13.0f, 11.0f};
+        int width = 28, height = 14;
+        int[] argb = CircleTemplateMatcherTest.syntheticEyeCrop(random, width, height);
+
+        EyePreprocessor preprocessor = new EyePreprocessor();
+        ByteRaster packedMask = new ByteRaster(width, height);
+        IntRaster packedGray = new IntRaster(width, height);
+        preprocessor.rasterizeMask(polyX, polyY, polyX.length, packedMask);
+        preprocessor.applyContrast(new IntRaster(argb, width, height), packedMask, 5.0, packedGray);
+
+        IntRaster image = embed(argb, width, height, 3, 2, 4, random).view(3, 2, width, height);
+        ByteRaster mask = new ByteRaster(width + 7, height + 3).view(5, 1, width, height);
+        IntRaster gray = new IntRaster(width + 2, height + 2).view(1, 1, width, height);
+        gray.data[0] = 12345;   // outside the view, must stay untouched
+        preprocessor.rasterizeMask(polyX, polyY, polyX.length, mask);
+        preprocessor.applyContrast(image, mask, 5.0, gray);
+
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                assertEquals(packedMask.get(x, y), mask.get(x, y));
+                assertEquals(packedGray.get(x, y), gray.get(x, y));
+            }
+        }
+        assertEquals(12345, gray.data[0]);
+    }
+
+    @Test
+    public void gradientEstimatorOnViewMatchesPackedCopy() {
+        Random random = new Random(3);
+        for(int trial = 0; trial < 50; trial++) {
+            EyeCenterEstimatorTest.Sample sample = EyeCenterEstimatorTest.syntheticSample(random, 40, 20);
+            EyeCrop packed = sample.crop;
+
+            EyeCrop viewed = new EyeCrop();
+            viewed.gray.set(embed(packed.gray.data, 40, 20, 2, 3, 2, random).data, 3 * 44 + 2, 40, 20, 44);
+            ByteRaster bigMask = new ByteRaster(45, 21);
+            for(int y = 0; y < 20; y++) {
+                for(int x = 0; x < 40; x++)
+                    bigMask.put(x + 5, y + 1, packed.mask.get(x, y));
+            }
+            bigMask.setView(viewed.mask, 5, 1, 40, 20);
+            viewed.pfl = packed.pfl;
+            viewed.cornerMidX = packed.cornerMidX;
+            viewed.cornerMidY = packed.cornerMidY;
+
+            float[] a = new float[2], b = new float[2];
+            float confidenceA = new GradientEyeCenterEstimator().estimate(packed, a);
+            float confidenceB = new GradientEyeCenterEstimator().estimate(viewed, b);
+            assertArrayEquals(a, b, 0.0f);
+            assertEquals(confidenceA, confidenceB, 0.0f);
+        }
+    }
+}
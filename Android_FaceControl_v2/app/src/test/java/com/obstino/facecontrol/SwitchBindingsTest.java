@@ -0,0 +1,95 @@
+package com.obstino.facecontrol;
+
+import android.content.SharedPreferences;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SwitchBindingsTest {
+    // Read-only SharedPreferences over a map, enough for SwitchBindings.compile()
+    static SharedPreferences prefs(final Map<String, Integer> values) {
+        return (SharedPreferences)Proxy.newProxyInstance(SharedPreferences.class.getClassLoader(),
+                new Class<?>[] {SharedPreferences.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if(method.getName().equals("getInt")) {
+                            Integer value = values.get((String)args[0]);
+                            return value != null ? value : args[1];
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    static final SettingsActivity.SwitchElement.SwitchType SMILE = SettingsActivity.SwitchElement.SwitchType.smile;
+    static final SettingsActivity.SwitchElement.SwitchType EYEBROW = SettingsActivity.SwitchElement.SwitchType.eyebrow;
+    static final SettingsActivity.SwitchElement.SwitchType MOUTH = SettingsActivity.SwitchElement.SwitchType.mouth_open;
+
+    @Test
+    public void defaultsBindSmileAndEyebrow() {
+        SwitchBindings bindings = SwitchBindings.compile(prefs(new HashMap<String, Integer>()));
+        for(SwitchBindings.Context context : SwitchBindings.Context.values()) {
+            assertArrayEquals(new SwitchAction[] {SwitchAction.select}, bindings.forGesture(SMILE, context));
+            assertArrayEquals(new SwitchAction[] {SwitchAction.next}, bindings.forGesture(EYEBROW, context));
+            assertEquals(0, bindings.forGesture(MOUTH, context).length);
+        }
+        assertTrue(bindings.usesCamera());
+        assertFalse(bindings.isBound(MOUTH));
+    }
+
+    @Test
+    public void oneGestureDrivesSeveralActions() {
+        Map<String, Integer> values = new HashMap<>();
+        values.put("backswitch_id", SMILE.getValue());
+        values.put("homeswitch_id", SMILE.getValue());
+        SwitchBindings bindings = SwitchBindings.compile(prefs(values));
+        // actionSwitchArray order
+        assertArrayEquals(new SwitchAction[] {SwitchAction.select, SwitchAction.home, SwitchAction.back},
+                bindings.forGesture(SMILE, SwitchBindings.Context.scanning));
+    }
+
+    @Test
+    public void contextOverridesReplaceDefaults() {
+        Map<String, Integer> values = new HashMap<>();
+        values.put(SwitchBindings.contextKey("selectswitch_id", SwitchBindings.Context.keyboard), MOUTH.getValue());
+        values.put(SwitchBindings.contextKey("nextswitch_id", SwitchBindings.Context.menu), SettingsActivity.SwitchElement.SwitchType.none.getValue());
+        SwitchBindings bindings = SwitchBindings.compile(prefs(values));
+
+        assertArrayEquals(new SwitchAction[] {SwitchAction.select}, bindings.forGesture(SMILE, SwitchBindings.Context.menu));
+        assertEquals(0, bindings.forGesture(SMILE, SwitchBindings.Context.keyboard).length);
+        assertArrayEquals(new SwitchAction[] {SwitchAction.select}, bindings.forGesture(MOUTH, SwitchBindings.Context.keyboard));
+        assertEquals(0, bindings.forGesture(EYEBROW, SwitchBindings.Context.menu).length);
+        assertArrayEquals(new SwitchAction[] {SwitchAction.next}, bindings.forGesture(EYEBROW, SwitchBindings.Context.scanning));
+        assertTrue(bindings.isBound(MOUTH));
+    }
+
+    @Test
+    public void externalSwitchesByKeyCode() {
+        Map<String, Integer> values = new HashMap<>();
+        values.put("selectswitch_id", 66);
+        values.put("nextswitch_id", SettingsActivity.SwitchElement.SwitchType.none.getValue());
+        values.put("volumeupswitch_id", 66);
+        values.put(SwitchBindings.contextKey("backswitch_id", SwitchBindings.Context.keyboard), 62);
+        SwitchBindings bindings = SwitchBindings.compile(prefs(values));
+
+        assertArrayEquals(new SwitchAction[] {SwitchAction.select, SwitchAction.volume_up}, bindings.forKey(66, SwitchBindings.Context.menu));
+        assertEquals(0, bindings.forKey(62, SwitchBindings.Context.menu).length);
+        assertArrayEquals(new SwitchAction[] {SwitchAction.back}, bindings.forKey(62, SwitchBindings.Context.keyboard));
+        assertFalse(bindings.usesCamera());
+    }
+
+    @Test
+    public void bindingKeys() {
+        assertTrue(SwitchBindings.isBindingKey("selectswitch_id"));
+        assertTrue(SwitchBindings.isBindingKey("selectswitch_id@menu"));
+        assertFalse(SwitchBindings.isBindingKey("ScanBandSpeed"));
+        assertTrue(SwitchBindings.isBindingKey(null));
+    }
+}
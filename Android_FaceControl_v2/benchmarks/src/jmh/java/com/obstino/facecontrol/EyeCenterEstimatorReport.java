@@ -0,0 +1,80 @@
+package com.obstino.facecontrol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Runs every EyeCenterEstimator over the benchmark corpora and prints latency and how well they agree;
+// a quick side by side without JMH (EyeCenterEstimatorTest in the app checks the same on synthetic
+// eyes with ground truth).
+//
+//   ./gradlew :benchmarks:eyeCenterReport
+//   ./gradlew :benchmarks:eyeCenterReport -Peyecrops.dir=/path/to/eyecrops   (adds the recorded crops)
+//
+// Arguments, if any, are the corpora to run (see EyeCropCorpus).
+public class EyeCenterEstimatorReport {
+    static final double AGREE_PFL = 0.1;
+    static final int REPEATS = 20;
+
+    public static void main(String[] args) throws IOException {
+        List<String> corpora = new ArrayList<>();
+        if(args.length > 0) {
+            for(String arg : args)
+                corpora.add(arg);
+        } else {
+            corpora.add("synthetic-24");
+            corpora.add("synthetic-48");
+            corpora.add("synthetic-96");
+            if(System.getProperty("eyecrops.dir") != null)
+                corpora.add("recorded");
+        }
+
+        EyePreprocessor preprocessor = new EyePreprocessor();
+        for(String corpus : corpora) {
+            List<EyeCropCorpus.Entry> entries = EyeCropCorpus.load(corpus);
+            List<EyeCrop> crops = new ArrayList<>();
+            for(EyeCropCorpus.Entry entry : entries)
+                crops.add(new EyeKernelBenchmark.Prepared(entry, preprocessor).crop);
+            System.out.println(crops.size() + " eye crops, " + corpus + ":\n" + run(crops));
+        }
+    }
+
+    static String run(List<EyeCrop> crops) {
+        TemplateMatchingEstimator template = new TemplateMatchingEstimator();
+        template.setTrackingEnabled(false);
+        String[] names = {"template", "gradient"};
+        EyeCenterEstimator[] estimators = {template, new GradientEyeCenterEstimator()};
+
+        double[] meanMicros = new double[estimators.length];
+        float[][] centers = new float[estimators.length][2];
+        double disagreement = 0;
+        int compared = 0, agreed = 0;
+        for(EyeCrop crop : crops) {
+            for(int e = 0; e < estimators.length; e++) {
+                estimators[e].reset();  // crops are independent, no tracking between them
+                long start = System.nanoTime();
+                for(int r = 0; r < REPEATS; r++)
+                    estimators[e].estimate(crop, centers[e]);
+                meanMicros[e] += (System.nanoTime() - start) / 1000.0 / REPEATS / crops.size();
+            }
+            if(!Float.isNaN(centers[0][0]) && !Float.isNaN(centers[1][0])) {
+                double d = Math.hypot(centers[0][0] - centers[1][0], centers[0][1] - centers[1][1]) / crop.pfl;
+                disagreement += d;
+                if(d <= AGREE_PFL)
+                    agreed++;
+                compared++;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for(int e = 0; e < estimators.length; e++)
+            sb.append(String.format(Locale.US, "%-10s %8.1f us/crop%n", names[e], meanMicros[e]));
+        if(compared > 0)
+            sb.append(String.format(Locale.US, "disagreement %.3f PFL, within %.2f PFL on %.0f%% of crops",
+                    disagreement / compared, AGREE_PFL, 100.0 * agreed / compared));
+        else
+            sb.append("no crop where both estimators found a center");
+        return sb.toString();
+    }
+}
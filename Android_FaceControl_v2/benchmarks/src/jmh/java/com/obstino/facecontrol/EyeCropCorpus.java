@@ -0,0 +1,121 @@
+package com.obstino.facecontrol;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Eye crops the benchmarks run on, in the form EyeCenterFinder has them before preprocessing: an
+// ARGB crop plus the 16 point eye contour (crop coordinates).
+//  -"synthetic-<width>": CROPS generated eyes of width x width/2 pixels (fixed seed, so runs compare)
+//  -"recorded": every .pgm in the eyecrops.dir system property (see EyeCropRecorder); these are
+//   already preprocessed gray crops: the later stages run on them as recorded, the masking and
+//   contrast stages get the gray value in every channel and the ellipse inscribed in the crop
+class EyeCropCorpus {
+    static final int CROPS = 32;
+    static final int CONTOUR_POINTS = 16;
+
+    static class Entry {
+        final IntRaster argb;
+        final EyeCrop recorded;     // preprocessed crop as recorded, null for synthetic entries
+        final float[] contourX = new float[CONTOUR_POINTS];
+        final float[] contourY = new float[CONTOUR_POINTS];
+        final int pfl;
+        final float cornerMidX, cornerMidY;
+
+        Entry(IntRaster argb, EyeCrop recorded, int pfl, float cornerMidX, float cornerMidY) {
+            this.argb = argb;
+            this.recorded = recorded;
+            this.pfl = pfl;
+            this.cornerMidX = cornerMidX;
+            this.cornerMidY = cornerMidY;
+            // contour point 0 and 8 are the eye corners, like ML Kit's LEFT_EYE/RIGHT_EYE contours
+            for(int k = 0; k < CONTOUR_POINTS; k++) {
+                double angle = Math.PI + 2.0 * Math.PI * k / CONTOUR_POINTS;
+                contourX[k] = (float)(argb.width / 2.0 + Math.cos(angle) * (argb.width / 2.0));
+                contourY[k] = (float)(argb.height / 2.0 + Math.sin(angle) * (argb.height / 2.0));
+            }
+        }
+    }
+
+    static List<Entry> load(String corpus) throws IOException {
+        if(corpus.startsWith("synthetic-"))
+            return synthetic(Integer.parseInt(corpus.substring("synthetic-".length())), CROPS, 19);
+        if(corpus.equals("recorded")) {
+            String dir = System.getProperty("eyecrops.dir");
+            if(dir == null)
+                throw new IllegalArgumentException("Corpus 'recorded' needs -Deyecrops.dir");
+            return recorded(new File(dir));
+        }
+        throw new IllegalArgumentException("Unknown corpus " + corpus);
+    }
+
+    // Skin colored background, white sclera, brown iris, black pupil, sensor noise
+    static List<Entry> synthetic(int width, int count, long seed) {
+        Random random = new Random(seed);
+        int height = width / 2;
+        List<Entry> entries = new ArrayList<>();
+        for(int n = 0; n < count; n++) {
+            IntRaster argb = new IntRaster(width, height);
+            float irisRadius = height * (0.35f + 0.1f * random.nextFloat());
+            float pupilRadius = irisRadius * 0.45f;
+            float cx = width / 2.0f + (random.nextFloat() - 0.5f) * (width - 2 * irisRadius) * 0.8f;
+            float cy = height / 2.0f + (random.nextFloat() - 0.5f) * height * 0.15f;
+            for(int y = 0; y < height; y++) {
+                for(int x = 0; x < width; x++) {
+                    double ex = (x + 0.5 - width / 2.0) / (width / 2.0);
+                    double ey = (y + 0.5 - height / 2.0) / (height / 2.0);
+                    double d = Math.hypot(x - cx, y - cy);
+                    int r, g, b;
+                    if(ex * ex + ey * ey > 1.0) {
+                        r = 200; g = 150; b = 120;
+                    } else if(d <= pupilRadius) {
+                        r = g = b = 15;
+                    } else if(d <= irisRadius) {
+                        r = 110; g = 70; b = 40;
+                    } else {
+                        r = 215; g = 210; b = 205;
+                    }
+                    int noise = (int)(random.nextGaussian() * 10);
+                    argb.put(x, y, 0xFF000000 | (clamp(r + noise) << 16) | (clamp(g + noise) << 8) | clamp(b + noise));
+                }
+            }
+            entries.add(new Entry(argb, null, width, width / 2.0f, height / 2.0f));
+        }
+        return entries;
+    }
+
+    static List<Entry> recorded(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if(files == null)
+            throw new IOException("Can't list " + dir);
+        Arrays.sort(files);
+        List<Entry> entries = new ArrayList<>();
+        for(File file : files) {
+            if(!file.getName().endsWith(".pgm"))
+                continue;
+            EyeCrop crop;
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                crop = EyeCropPgm.read(in);
+            }
+            IntRaster argb = new IntRaster(crop.gray.width, crop.gray.height);
+            for(int k = 0; k < argb.width * argb.height; k++) {
+                int I = crop.gray.data[k];
+                argb.data[k] = 0xFF000000 | (I << 16) | (I << 8) | I;
+            }
+            entries.add(new Entry(argb, crop, crop.pfl, crop.cornerMidX, crop.cornerMidY));
+        }
+        if(entries.isEmpty())
+            throw new IOException("No .pgm crops in " + dir);
+        return entries;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
@@ -0,0 +1,146 @@
+package com.obstino.facecontrol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.List;
+
+// One benchmark per EyeCenterFinder stage, each op is one eye crop (the corpus is cycled through so
+// the branch predictor doesn't learn a single image):
+//  mask            contour polygon -> mask                 EyePreprocessor.rasterizeMask
+//  contrast        ARGB + mask -> contrast stretched gray  EyePreprocessor.applyContrast
+//  correlation     circle template correlation, full search  CircleTemplateMatcher.computeCorrelation
+//  correlationReference  the same with the brute force kernel    CircleTemplateMatcher.computeCorrelationReference
+//  labelling       threshold + connected peak areas         CircleTemplateMatcher.findConnectedPeakAreas
+//  centerOfMass    center of the biggest peak area          CircleTemplateMatcher.findMaxPeakAreaCenterOfMass
+//  templateEstimator / gradientEstimator  whole EyeCenterEstimator.estimate (no tracking)
+// Stages after 'contrast' read the crops preprocessed during setup (or as recorded), and each entry
+// has its own matcher with the correlation already computed, so every stage is measured alone.
+// Results are returned as primitives: JMH's generated code lives in another package and can't name
+// the package-private raster types.
+@State(Scope.Thread)
+public class EyeKernelBenchmark {
+    @Param({"synthetic-24", "synthetic-48", "synthetic-96"})
+    public String corpus;
+
+    static class Prepared {
+        final EyeCropCorpus.Entry entry;
+        final ByteRaster mask;
+        final IntRaster contrastGray;   // output of the contrast benchmark
+        final EyeCrop crop;
+        final CircleTemplateMatcher matcher = new CircleTemplateMatcher();
+
+        Prepared(EyeCropCorpus.Entry entry, EyePreprocessor preprocessor) {
+            this.entry = entry;
+            int width = entry.argb.width, height = entry.argb.height;
+            mask = new ByteRaster(width, height);
+            contrastGray = new IntRaster(width, height);
+            preprocessor.rasterizeMask(entry.contourX, entry.contourY, EyeCropCorpus.CONTOUR_POINTS, mask);
+
+            crop = new EyeCrop();
+            crop.reset(width, height);
+            if(entry.recorded != null) {
+                System.arraycopy(entry.recorded.gray.data, 0, crop.gray.data, 0, width * height);
+                System.arraycopy(entry.recorded.mask.data, 0, crop.mask.data, 0, width * height);
+            } else {
+                System.arraycopy(mask.data, 0, crop.mask.data, 0, width * height);
+                preprocessor.applyContrast(entry.argb, crop.mask, CONTRAST, crop.gray);
+            }
+            crop.pfl = entry.pfl;
+            crop.cornerMidX = entry.cornerMidX;
+            crop.cornerMidY = entry.cornerMidY;
+
+            int radius = TemplateMatchingEstimator.templateRadius(crop.pfl);
+            matcher.setGrayImage(crop.gray, radius, TemplateMatchingEstimator.searchStep(radius));
+            matcher.computeCorrelation();
+            matcher.thresholdCorrelations(TemplateMatchingEstimator.R);
+            matcher.findConnectedPeakAreas();
+        }
+    }
+
+    static final double CONTRAST = 5.0;     // as in EyeCenterFinder
+
+    private Prepared[] prepared;
+    private int next;
+    private final EyePreprocessor preprocessor = new EyePreprocessor();
+    private final TemplateMatchingEstimator templateEstimator = new TemplateMatchingEstimator();
+    private final GradientEyeCenterEstimator gradientEstimator = new GradientEyeCenterEstimator();
+    private final float[] center = new float[2];
+
+    @Setup
+    public void setup() throws IOException {
+        List<EyeCropCorpus.Entry> entries = EyeCropCorpus.load(corpus);
+        prepared = new Prepared[entries.size()];
+        for(int k = 0; k < prepared.length; k++)
+            prepared[k] = new Prepared(entries.get(k), preprocessor);
+        templateEstimator.setTrackingEnabled(false);
+        next = 0;
+    }
+
+    private Prepared nextCrop() {
+        Prepared p = prepared[next];
+        next = (next + 1 == prepared.length) ? 0 : next + 1;
+        return p;
+    }
+
+    @Benchmark
+    public int mask() {
+        Prepared p = nextCrop();
+        preprocessor.rasterizeMask(p.entry.contourX, p.entry.contourY, EyeCropCorpus.CONTOUR_POINTS, p.mask);
+        return p.mask.get(p.mask.width / 2, p.mask.height / 2);
+    }
+
+    @Benchmark
+    public int contrast() {
+        Prepared p = nextCrop();
+        preprocessor.applyContrast(p.entry.argb, p.mask, CONTRAST, p.contrastGray);
+        return p.contrastGray.get(p.contrastGray.width / 2, p.contrastGray.height / 2);
+    }
+
+    @Benchmark
+    public int correlation() {
+        Prepared p = nextCrop();
+        p.matcher.setSearchWindow(0, 0, p.crop.gray.width, p.crop.gray.height);
+        p.matcher.computeCorrelation();
+        return p.matcher.corrCount;
+    }
+
+    @Benchmark
+    public int correlationReference() {
+        Prepared p = nextCrop();
+        p.matcher.setSearchWindow(0, 0, p.crop.gray.width, p.crop.gray.height);
+        p.matcher.computeCorrelationReference();
+        return p.matcher.corrCount;
+    }
+
+    @Benchmark
+    public int labelling() {
+        Prepared p = nextCrop();
+        p.matcher.thresholdCorrelations(TemplateMatchingEstimator.R);
+        p.matcher.findConnectedPeakAreas();
+        return p.matcher.peakCount;
+    }
+
+    @Benchmark
+    public float centerOfMass() {
+        Prepared p = nextCrop();
+        p.matcher.findMaxPeakAreaCenterOfMass(center);
+        return center[0] + center[1];
+    }
+
+    @Benchmark
+    public float templateEstimator() {
+        Prepared p = nextCrop();
+        return templateEstimator.estimate(p.crop, center) + center[0];
+    }
+
+    @Benchmark
+    public float gradientEstimator() {
+        Prepared p = nextCrop();
+        return gradientEstimator.estimate(p.crop, center) + center[0];
+    }
+}